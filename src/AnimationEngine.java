@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+
+/* This defines the AnimationEngine class, which advances animation
+ * tracks in fixed time steps, independent of how often frames are drawn.
+ *
+ * advance() adds elapsed time and runs as many TICK steps as fit; the
+ * remainder is carried over, and sample() interpolates every track by
+ * that remainder so motion stays smooth at any frame rate. Given the same
+ * calls to advance(), the tracks always take the same values, so the
+ * engine can be driven by hand without a display or a clock.
+ * start() runs the simulation on its own thread instead, in which case
+ * the renderer only calls sample().
+ */
+class AnimationEngine {
+
+    public static final double TICK = 1.0 / 60;		// seconds per simulation step
+    static final int MAX_TICKS = 15;		// per advance(), so a stall is not replayed all at once
+
+    private final ArrayList<AnimationTrack> tracks = new ArrayList<AnimationTrack>();
+    private double accumulator = 0;
+    private long ticks = 0;
+    private boolean paused = false;
+    private Thread thread;
+
+    public synchronized AnimationTrack add(AnimationTrack track) {
+        tracks.add(track);
+        return track;
+    }
+
+    public synchronized void remove(AnimationTrack track) {
+        tracks.remove(track);
+    }
+
+    /* simulates the given number of seconds and returns how many ticks ran */
+    public synchronized int advance(double seconds) {
+        if (paused || seconds <= 0) {
+            return 0;
+        }
+        accumulator += seconds;
+        int n = 0;
+        while (accumulator >= TICK && n < MAX_TICKS) {
+            for (int i = 0; i < tracks.size(); i++) {
+                tracks.get(i).step();
+            }
+            accumulator -= TICK;
+            n++;
+        }
+        if (accumulator >= TICK) {
+            accumulator %= TICK;	// drop what could not be caught up
+        }
+        ticks += n;
+        return n;
+    }
+
+    /* publishes the interpolated value of every track for rendering */
+    public synchronized void sample() {
+        double alpha = accumulator / TICK;
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).sample(alpha);
+        }
+    }
+
+    public synchronized long getTicks() {
+        return ticks;
+    }
+
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /* runs the simulation on a thread of its own until stop() */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            long last = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                advance((now - last) / 1e9);
+                last = now;
+                try {
+                    Thread.sleep((long) (TICK * 1000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "animation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized boolean isThreaded() {
+        return thread != null;
+    }
+}
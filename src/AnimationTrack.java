@@ -0,0 +1,133 @@
+/* This defines the AnimationTrack class, one animated value of an
+ * AnimationEngine.
+ * A track moves a position between from and to at a fixed rate per
+ * simulation tick, either wrapping around (LOOP) or bouncing back and
+ * forth (PING_PONG), and maps it through an easing curve. It keeps the
+ * values before and after the last tick so that rendering can
+ * interpolate between ticks.
+ */
+class AnimationTrack {
+
+    public enum Mode {
+        LOOP,
+        PING_PONG
+    }
+
+    public enum Easing {
+        LINEAR,
+        SMOOTH,		// smoothstep, slow at both ends
+        SINE;		// half a cosine wave, slow at both ends
+
+        public double apply(double t) {
+            switch (this) {
+                case SMOOTH:
+                    return t * t * (3 - 2 * t);
+                case SINE:
+                    return (1 - Math.cos(Math.PI * t)) / 2;
+                default:
+                    return t;
+            }
+        }
+    }
+
+    public final String name;
+    public final Mode mode;
+    public final Easing easing;
+    private final double from, to;
+    private volatile double rate;		// position units per tick
+    private double position;
+    private int direction = 1;
+    private double previous, current;	// eased values before and after the last tick
+
+    /* what the renderer reads, written by AnimationEngine.sample() */
+    private volatile float sampled;
+    private volatile int sampled_direction = 1;
+
+    public AnimationTrack(String name, Mode mode, double from, double to, double rate, Easing easing) {
+        this.name = name;
+        this.mode = mode;
+        this.easing = easing;
+        this.from = from;
+        this.to = to;
+        this.rate = rate;
+        start(from, 1);
+    }
+
+    public static AnimationTrack loop(String name, double from, double to, double rate) {
+        return new AnimationTrack(name, Mode.LOOP, from, to, rate, Easing.LINEAR);
+    }
+
+    public static AnimationTrack pingPong(String name, double from, double to, double rate) {
+        return new AnimationTrack(name, Mode.PING_PONG, from, to, rate, Easing.LINEAR);
+    }
+
+    /* puts the track at position, moving in direction (1 or -1) */
+    public AnimationTrack start(double position, int direction) {
+        this.position = Math.max(from, Math.min(to, position));
+        this.direction = direction < 0 ? -1 : 1;
+        previous = current = eval();
+        sampled = (float) current;
+        sampled_direction = this.direction;
+        return this;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /* advances one tick */
+    void step() {
+        previous = current;
+        double span = to - from;
+        position += direction * rate;
+        if (mode == Mode.LOOP) {
+            /* keep previous on the same lap so interpolation does not run backwards */
+            while (span > 0 && position >= to) {
+                position -= span;
+                previous -= span;
+            }
+            while (span > 0 && position < from) {
+                position += span;
+                previous += span;
+            }
+        } else {
+            if (position > to) {
+                position = Math.max(from, to - (position - to));
+                direction = -1;
+            } else if (position < from) {
+                position = Math.min(to, from + (from - position));
+                direction = 1;
+            }
+        }
+        current = eval();
+    }
+
+    private double eval() {
+        double span = to - from;
+        return span == 0 ? from : from + span * easing.apply((position - from) / span);
+    }
+
+    /* the value alpha of the way from the previous tick to the current one */
+    double value(double alpha) {
+        return previous + (current - previous) * alpha;
+    }
+
+    void sample(double alpha) {
+        sampled = (float) value(alpha);
+        sampled_direction = direction;
+    }
+
+    /* the value as of the last AnimationEngine.sample() */
+    public float get() {
+        return sampled;
+    }
+
+    /* 1 while the position is increasing, -1 while it is decreasing */
+    public int getDirection() {
+        return sampled_direction;
+    }
+}
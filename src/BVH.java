@@ -0,0 +1,310 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/* This defines the BVH class, a bounding volume hierarchy over a set of
+ * boxes, stored as flat arrays.
+ *
+ * The tree is built top down with the surface area heuristic, evaluated
+ * over BINS bins of the box centroids along each axis. Nodes are laid out
+ * depth first, so the first child of node n is n + 1 and only the second
+ * child is stored. Each node has two ints in nodes[]: a leaf has the
+ * first of its entries in order[] and their count, an inner node the
+ * index of its second child and -1 - its split axis.
+ *
+ * The queries hand leaf entries, not primitives, to the caller's test;
+ * entry i is primitive order[i], so a caller can keep its primitive data
+ * in entry order and read it sequentially.
+ */
+class BVH {
+
+    static final int BINS = 16;
+    static final int LEAF_LIMIT = 16;		// leaves never get bigger unless the boxes cannot be told apart
+    static final float TRAVERSAL_COST = 1f;	// relative to testing one primitive
+
+    public final float[] bounds;		// min x, y, z and max x, y, z of every node
+    public final int[] nodes;
+    public final int[] order;			// primitive of every leaf entry
+    public int num_nodes;
+    public int depth;					// of the deepest leaf, the root being 1
+
+    /* build state */
+    private float[] boxes;
+    private float[] centroids;
+    private final int[] bin_count = new int[BINS];
+    private final float[] bin_bounds = new float[BINS * 6];
+    private final float[] right_area = new float[BINS];
+    private final float[] acc = new float[6];
+
+    /* builds the tree over count boxes, six floats each in boxes */
+    public BVH(float[] boxes, int count) {
+        this.boxes = boxes;
+        centroids = new float[count * 3];
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            for (int a = 0; a < 3; a++) {
+                centroids[i * 3 + a] = (boxes[i * 6 + a] + boxes[i * 6 + 3 + a]) / 2;
+            }
+        }
+        int capacity = Math.max(1, 2 * count - 1);
+        bounds = new float[capacity * 6];
+        nodes = new int[capacity * 2];
+        num_nodes = 1;
+        build(0, 0, count, 1);
+        this.boxes = null;
+        centroids = null;
+    }
+
+    public int size() {
+        return order.length;
+    }
+
+    private void build(int node, int start, int end, int level) {
+        depth = Math.max(depth, level);
+        int n = end - start;
+        float[] b = bounds;
+        int o = node * 6;
+        float cminx = Float.POSITIVE_INFINITY, cminy = cminx, cminz = cminx;
+        float cmaxx = Float.NEGATIVE_INFINITY, cmaxy = cmaxx, cmaxz = cmaxx;
+        setEmpty(b, o);
+        for (int i = start; i < end; i++) {
+            int p = order[i];
+            grow(b, o, boxes, p * 6);
+            float x = centroids[p * 3], y = centroids[p * 3 + 1], z = centroids[p * 3 + 2];
+            cminx = Math.min(cminx, x);
+            cminy = Math.min(cminy, y);
+            cminz = Math.min(cminz, z);
+            cmaxx = Math.max(cmaxx, x);
+            cmaxy = Math.max(cmaxy, y);
+            cmaxz = Math.max(cmaxz, z);
+        }
+        if (n <= 1) {
+            leaf(node, start, n);
+            return;
+        }
+
+        /* the cheapest split over the bins of the axis the centroids spread
+         * along the most; trying the other two as well costs three times
+         * the build time for little better trees
+         */
+        float[] cmin = {cminx, cminy, cminz};
+        float[] extent = {cmaxx - cminx, cmaxy - cminy, cmaxz - cminz};
+        float best = Float.POSITIVE_INFINITY;
+        int best_axis = -1, best_bin = 0;
+        int a = extent[0] >= extent[1] ? (extent[0] >= extent[2] ? 0 : 2) : (extent[1] >= extent[2] ? 1 : 2);
+        if (extent[a] > 0) {
+            Arrays.fill(bin_count, 0);
+            for (int k = 0; k < BINS; k++) {
+                setEmpty(bin_bounds, k * 6);
+            }
+            float scale = BINS / extent[a];
+            for (int i = start; i < end; i++) {
+                int p = order[i];
+                int k = Math.min(BINS - 1, (int) ((centroids[p * 3 + a] - cmin[a]) * scale));
+                bin_count[k]++;
+                grow(bin_bounds, k * 6, boxes, p * 6);
+            }
+            /* right_area[k] is the area of bins k + 1 .. BINS - 1 */
+            setEmpty(acc, 0);
+            for (int k = BINS - 1; k > 0; k--) {
+                grow(acc, 0, bin_bounds, k * 6);
+                right_area[k - 1] = area(acc, 0);
+            }
+            setEmpty(acc, 0);
+            int left = 0;
+            for (int k = 0; k < BINS - 1; k++) {
+                grow(acc, 0, bin_bounds, k * 6);
+                left += bin_count[k];
+                if (left == 0 || left == n) {
+                    continue;
+                }
+                float cost = area(acc, 0) * left + right_area[k] * (n - left);
+                if (cost < best) {
+                    best = cost;
+                    best_axis = a;
+                    best_bin = k;
+                }
+            }
+        }
+
+        float node_area = area(b, o);
+        boolean worth = best_axis >= 0 && (n > LEAF_LIMIT
+                || TRAVERSAL_COST + (node_area > 0 ? best / node_area : n) < n);
+        int mid;
+        if (worth) {
+            /* move the entries left of the split to the front */
+            float scale = BINS / extent[best_axis];
+            int i = start, j = end - 1;
+            while (i <= j) {
+                int p = order[i];
+                int k = Math.min(BINS - 1, (int) ((centroids[p * 3 + best_axis] - cmin[best_axis]) * scale));
+                if (k <= best_bin) {
+                    i++;
+                } else {
+                    order[i] = order[j];
+                    order[j--] = p;
+                }
+            }
+            mid = i;
+        } else if (n > LEAF_LIMIT) {
+            best_axis = 0;
+            mid = start + n / 2;	// all centroids coincide; any split is as good
+        } else {
+            leaf(node, start, n);
+            return;
+        }
+
+        int first = num_nodes++;
+        build(first, start, mid, level + 1);
+        int second = num_nodes++;
+        build(second, mid, end, level + 1);
+        nodes[node * 2] = second;
+        nodes[node * 2 + 1] = -1 - best_axis;
+    }
+
+    private void leaf(int node, int first, int count) {
+        nodes[node * 2] = first;
+        nodes[node * 2 + 1] = count;
+    }
+
+    private static void setEmpty(float[] b, int o) {
+        b[o] = b[o + 1] = b[o + 2] = Float.POSITIVE_INFINITY;
+        b[o + 3] = b[o + 4] = b[o + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    /* plain comparisons; Math.min and max are slower for their NaN handling */
+    private static void grow(float[] b, int o, float[] c, int p) {
+        for (int a = 0; a < 3; a++) {
+            if (c[p + a] < b[o + a]) {
+                b[o + a] = c[p + a];
+            }
+            if (c[p + 3 + a] > b[o + 3 + a]) {
+                b[o + 3 + a] = c[p + 3 + a];
+            }
+        }
+    }
+
+    /* half the surface area, which is all the heuristic needs */
+    private static float area(float[] b, int o) {
+        float dx = b[o + 3] - b[o], dy = b[o + 4] - b[o + 1], dz = b[o + 5] - b[o + 2];
+        return dx < 0 ? 0 : dx * dy + dy * dz + dz * dx;
+    }
+
+    /* tests leaf entry i against a ray and returns the distance of a hit
+     * nearer than tMax, or tMax
+     */
+    interface RayTest {
+        float hit(int i, float tMax);
+    }
+
+    /* returns the nearest distance test reports along origin + t * dir
+     * for t in [0, tMax], or tMax if nothing is hit
+     */
+    public float raycast(float[] origin, float[] dir, float tMax, RayTest test) {
+        float ox = origin[0], oy = origin[1], oz = origin[2];
+        float ix = 1 / dir[0], iy = 1 / dir[1], iz = 1 / dir[2];
+        int[] stack = new int[depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int n = stack[--top];
+            int o = n * 6;
+            /* the slab test */
+            float t0x = (bounds[o] - ox) * ix, t1x = (bounds[o + 3] - ox) * ix;
+            float t0y = (bounds[o + 1] - oy) * iy, t1y = (bounds[o + 4] - oy) * iy;
+            float t0z = (bounds[o + 2] - oz) * iz, t1z = (bounds[o + 5] - oz) * iz;
+            float near = Math.max(Math.max(Math.min(t0x, t1x), Math.min(t0y, t1y)), Math.max(Math.min(t0z, t1z), 0));
+            float far = Math.min(Math.min(Math.max(t0x, t1x), Math.max(t0y, t1y)), Math.min(Math.max(t0z, t1z), tMax));
+            if (near > far) {
+                continue;
+            }
+            int count = nodes[n * 2 + 1];
+            if (count >= 0) {
+                int first = nodes[n * 2];
+                for (int i = first; i < first + count; i++) {
+                    tMax = test.hit(i, tMax);
+                }
+            } else if (dir[-1 - count] < 0) {	// visit the child nearer the origin first
+                stack[top++] = n + 1;
+                stack[top++] = nodes[n * 2];
+            } else {
+                stack[top++] = nodes[n * 2];
+                stack[top++] = n + 1;
+            }
+        }
+        return tMax;
+    }
+
+    /* returns the squared distance from a point to leaf entry i, if it
+     * is less than best, or best
+     */
+    interface PointTest {
+        float distance2(int i, float best);
+    }
+
+    /* returns the least squared distance test reports, or best if no
+     * entry is nearer than that
+     */
+    public float nearest(float[] point, float best, PointTest test) {
+        int[] stack = new int[depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int n = stack[--top];
+            if (distance2(n, point) >= best) {
+                continue;
+            }
+            int count = nodes[n * 2 + 1];
+            if (count >= 0) {
+                int first = nodes[n * 2];
+                for (int i = first; i < first + count; i++) {
+                    best = test.distance2(i, best);
+                }
+            } else if (distance2(n + 1, point) < distance2(nodes[n * 2], point)) {
+                stack[top++] = nodes[n * 2];
+                stack[top++] = n + 1;
+            } else {
+                stack[top++] = n + 1;
+                stack[top++] = nodes[n * 2];
+            }
+        }
+        return best;
+    }
+
+    /* the squared distance from a point to the box of node n */
+    private float distance2(int n, float[] p) {
+        float d = 0;
+        for (int a = 0; a < 3; a++) {
+            float e = Math.max(0, Math.max(bounds[n * 6 + a] - p[a], p[a] - bounds[n * 6 + 3 + a]));
+            d += e * e;
+        }
+        return d;
+    }
+
+    /* calls visit with every leaf entry whose leaf box overlaps [min, max];
+     * the caller tests the entries themselves
+     */
+    public void overlapping(float[] min, float[] max, IntConsumer visit) {
+        int[] stack = new int[depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int n = stack[--top];
+            int o = n * 6;
+            if (bounds[o] > max[0] || bounds[o + 1] > max[1] || bounds[o + 2] > max[2]
+                    || bounds[o + 3] < min[0] || bounds[o + 4] < min[1] || bounds[o + 5] < min[2]) {
+                continue;
+            }
+            int count = nodes[n * 2 + 1];
+            if (count >= 0) {
+                int first = nodes[n * 2];
+                for (int i = first; i < first + count; i++) {
+                    visit.accept(i);
+                }
+            } else {
+                stack[top++] = nodes[n * 2];
+                stack[top++] = n + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* This defines the ClusterBuilder class, which turns an .obj file of any
+ * size into a ClusterStore while holding only small parts of it in memory:
+ *
+ *   read      the file is parsed a chunk at a time by ObjParser.stream();
+ *             positions and faces go to temporary files, and the bounds
+ *             and centroid are summed up
+ *   assign    every face goes to the cell of a grid over the bounds that
+ *             holds its centroid, and adds its area weighted normal to
+ *             its vertices in a normal file
+ *   sort      the faces are copied into a file ordered by cell, with the
+ *             counts of the last pass
+ *   write     every cell that has faces becomes a cluster: its vertices
+ *             are gathered and renumbered, its degenerate faces dropped,
+ *             and the mesh reordered for the vertex cache and written
+ *
+ * The temporary files are read through mappings of 1 GB each, so they
+ * may be larger than the heap and than 2 GB; the operating system pages
+ * them. The grid is as fine as gives clusters of about
+ * CLUSTER_FACES faces on a surface. Normals are summed over the whole
+ * mesh, so there are no seams between the clusters, but vertices are not
+ * welded across the file as Mesh.load() does.
+ *
+ *     java ClusterBuilder generate scan.obj 20000000
+ *     java ClusterBuilder build scan.obj
+ *
+ * writes a test surface of about 20 million triangles and clusters it.
+ */
+final class ClusterBuilder {
+
+    static final int CLUSTER_FACES = 1 << 15;	// faces per cluster aimed for
+    static final int MAX_CELLS = 128;			// along the longest side of the grid
+    static final int SEGMENT_BITS = 30;		// temporary files are mapped 1 GB at a time
+    static final int BLOCK = 12 << 18;			// bytes copied at a time, whole faces
+
+    private ClusterBuilder() {
+    }
+
+    /* a file mapped in segments, so it can exceed 2 GB; the accessors
+     * take byte offsets, which must be aligned to 4 bytes
+     */
+    private static final class Mapped {
+        final ByteBuffer[] parts;
+
+        Mapped(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+            parts = new ByteBuffer[(int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < parts.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                parts[i] = channel.map(mode, start, Math.min(1L << SEGMENT_BITS, size - start)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        float getFloat(long offset) {
+            return parts[(int) (offset >>> SEGMENT_BITS)].getFloat((int) (offset & ((1 << SEGMENT_BITS) - 1)));
+        }
+
+        void putFloat(long offset, float value) {
+            parts[(int) (offset >>> SEGMENT_BITS)].putFloat((int) (offset & ((1 << SEGMENT_BITS) - 1)), value);
+        }
+
+        int getInt(long offset) {
+            return parts[(int) (offset >>> SEGMENT_BITS)].getInt((int) (offset & ((1 << SEGMENT_BITS) - 1)));
+        }
+
+        void putInt(long offset, int value) {
+            parts[(int) (offset >>> SEGMENT_BITS)].putInt((int) (offset & ((1 << SEGMENT_BITS) - 1)), value);
+        }
+
+        void free() {
+            for (ByteBuffer b : parts) {
+                MeshManager.free(b);
+            }
+        }
+    }
+
+    /* what the read pass learns about the file */
+    private static final class Totals {
+        long num_verts, num_faces;
+        final float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        final float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        final double[] sum = new double[3];
+    }
+
+    public static void build(String filename) throws IOException {
+        long start = System.nanoTime();
+        File source = new File(filename);
+        File directory = ClusterStore.directory(filename);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] old = directory.listFiles();
+        for (File f : old == null ? new File[0] : old) {
+            f.delete();
+        }
+        File positions = new File(directory, "positions.tmp"), faces = new File(directory, "faces.tmp");
+        File normals = new File(directory, "normals.tmp"), cells = new File(directory, "cells.tmp");
+        File sorted = new File(directory, "sorted.tmp");
+        try {
+            Totals totals = read(filename, positions, faces);
+            if (totals.num_faces == 0) {
+                throw new IOException(filename + " has no faces.");
+            }
+            long read = System.nanoTime();
+
+            /* the grid and the frame of Mesh.normalize() */
+            float size = 0;
+            for (int i = 0; i < 3; i++) {
+                size = Math.max(size, totals.max[i] - totals.min[i]);
+            }
+            /* a surface crosses about 4 n^2 of the cells of an n^3 grid */
+            int cellsPerSide = (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(Math.sqrt(totals.num_faces / (4.0 * CLUSTER_FACES)))));
+            float cell = size > 0 ? size / cellsPerSide : 1;
+            int[] grid = new int[3];
+            for (int i = 0; i < 3; i++) {
+                grid[i] = Math.max(1, (int) Math.ceil((totals.max[i] - totals.min[i]) / cell));
+            }
+            long[] counts = assign(totals, grid, cell, positions, faces, normals, cells);
+            long assigned = System.nanoTime();
+
+            long[] first = new long[counts.length];
+            for (int k = 1; k < counts.length; k++) {
+                first[k] = first[k - 1] + counts[k - 1];
+            }
+            sort(totals, first.clone(), faces, cells, sorted);
+            long sortedAt = System.nanoTime();
+
+            float[] center = new float[3];
+            for (int i = 0; i < 3; i++) {
+                center[i] = (float) (totals.sum[i] / totals.num_verts);
+            }
+            int clusters = write(source, directory, totals, counts, first, center, size > 0 ? 1 / size : 1,
+                    positions, normals, sorted);
+            long end = System.nanoTime();
+            System.out.println(String.format("Clustered %s: %d vertices and %d faces into %d clusters "
+                            + "(%dx%dx%d grid) in %.1f s: read %.1f s, assign %.1f s, sort %.1f s, write %.1f s.",
+                    filename, totals.num_verts, totals.num_faces, clusters, grid[0], grid[1], grid[2],
+                    (end - start) / 1e9, (read - start) / 1e9, (assigned - read) / 1e9,
+                    (sortedAt - assigned) / 1e9, (end - sortedAt) / 1e9));
+        } finally {
+            for (File f : new File[]{positions, faces, normals, cells, sorted}) {
+                f.delete();
+            }
+        }
+    }
+
+    /* parses the file into a positions and a faces file */
+    private static Totals read(String filename, File positions, File faces) throws IOException {
+        final Totals totals = new Totals();
+        try (RandomAccessFile p = new RandomAccessFile(positions, "rw");
+             RandomAccessFile f = new RandomAccessFile(faces, "rw")) {
+            final FileChannel pc = p.getChannel(), fc = f.getChannel();
+            final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+            ObjParser.stream(filename, parser -> {
+                for (int i = 0; i < parser.num_verts * 3; i++) {
+                    float x = parser.verts[i];
+                    totals.min[i % 3] = Math.min(totals.min[i % 3], x);
+                    totals.max[i % 3] = Math.max(totals.max[i % 3], x);
+                    totals.sum[i % 3] += x;
+                }
+                totals.num_verts += parser.num_verts;
+                totals.num_faces += parser.num_faces;
+                if (totals.num_verts > Integer.MAX_VALUE) {
+                    throw new IOException(filename + " has more than 2^31 vertices.");
+                }
+                for (int i = 0; i < parser.num_verts * 3; ) {
+                    block.clear();
+                    int n = Math.min(parser.num_verts * 3 - i, BLOCK / 4);
+                    block.asFloatBuffer().put(parser.verts, i, n);
+                    block.limit(n * 4);
+                    write(pc, block);
+                    i += n;
+                }
+                for (int i = 0; i < parser.num_faces * 3; ) {
+                    block.clear();
+                    int n = Math.min(parser.num_faces * 3 - i, BLOCK / 4);
+                    block.asIntBuffer().put(parser.faces, i, n);
+                    block.limit(n * 4);
+                    write(fc, block);
+                    i += n;
+                }
+            });
+            MeshManager.free(block);
+        }
+        return totals;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /* fills b from channel, returning false at the end of the file */
+    private static boolean fill(FileChannel channel, ByteBuffer b) throws IOException {
+        b.clear();
+        while (b.hasRemaining() && channel.read(b) >= 0) {
+        }
+        b.flip();
+        return b.hasRemaining();
+    }
+
+    /* writes the cell of every face and sums the vertex normals; returns the faces per cell */
+    private static long[] assign(Totals totals, int[] grid, float cell, File positions, File faces,
+                                 File normals, File cells) throws IOException {
+        long[] counts = new long[grid[0] * grid[1] * grid[2]];
+        try (RandomAccessFile p = new RandomAccessFile(positions, "r");
+             RandomAccessFile n = new RandomAccessFile(normals, "rw");
+             RandomAccessFile f = new RandomAccessFile(faces, "r");
+             RandomAccessFile c = new RandomAccessFile(cells, "rw")) {
+            Mapped verts = new Mapped(p.getChannel(), FileChannel.MapMode.READ_ONLY, totals.num_verts * 12);
+            Mapped norms = new Mapped(n.getChannel(), FileChannel.MapMode.READ_WRITE, totals.num_verts * 12);
+            ByteBuffer in = ByteBuffer.allocateDirect(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer out = ByteBuffer.allocateDirect(BLOCK / 3).order(ByteOrder.LITTLE_ENDIAN);
+            float[] corner = new float[9];
+            while (fill(f.getChannel(), in)) {
+                out.clear();
+                while (in.remaining() >= 12) {
+                    long a = in.getInt() * 12L, b = in.getInt() * 12L, d = in.getInt() * 12L;
+                    for (int k = 0; k < 3; k++) {
+                        corner[k] = verts.getFloat(a + k * 4);
+                        corner[3 + k] = verts.getFloat(b + k * 4);
+                        corner[6 + k] = verts.getFloat(d + k * 4);
+                    }
+                    float e1x = corner[3] - corner[0], e1y = corner[4] - corner[1], e1z = corner[5] - corner[2];
+                    float e2x = corner[6] - corner[0], e2y = corner[7] - corner[1], e2z = corner[8] - corner[2];
+                    float nx = e1y * e2z - e1z * e2y, ny = e2x * e1z - e2z * e1x, nz = e1x * e2y - e1y * e2x;
+                    addNormal(norms, a, nx, ny, nz);
+                    addNormal(norms, b, nx, ny, nz);
+                    addNormal(norms, d, nx, ny, nz);
+                    int id = 0;
+                    for (int k = 0; k < 3; k++) {
+                        float centroid = (corner[k] + corner[3 + k] + corner[6 + k]) / 3;
+                        int i = (int) ((centroid - totals.min[k]) / cell);
+                        id = id * grid[k] + Math.max(0, Math.min(grid[k] - 1, i));
+                    }
+                    counts[id]++;
+                    out.putInt(id);
+                }
+                out.flip();
+                write(c.getChannel(), out);
+            }
+            verts.free();
+            norms.free();
+            MeshManager.free(in);
+            MeshManager.free(out);
+        }
+        return counts;
+    }
+
+    private static void addNormal(Mapped norms, long offset, float nx, float ny, float nz) {
+        norms.putFloat(offset, norms.getFloat(offset) + nx);
+        norms.putFloat(offset + 4, norms.getFloat(offset + 4) + ny);
+        norms.putFloat(offset + 8, norms.getFloat(offset + 8) + nz);
+    }
+
+    /* copies the faces into sorted in the order of their cells */
+    private static void sort(Totals totals, long[] next, File faces, File cells, File sorted) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(faces, "r");
+             RandomAccessFile c = new RandomAccessFile(cells, "r");
+             RandomAccessFile s = new RandomAccessFile(sorted, "rw")) {
+            Mapped out = new Mapped(s.getChannel(), FileChannel.MapMode.READ_WRITE, totals.num_faces * 12);
+            ByteBuffer in = ByteBuffer.allocateDirect(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer ids = ByteBuffer.allocateDirect(BLOCK / 3).order(ByteOrder.LITTLE_ENDIAN);
+            while (fill(f.getChannel(), in)) {
+                fill(c.getChannel(), ids);
+                while (in.remaining() >= 12) {
+                    long o = next[ids.getInt()]++ * 12;
+                    out.putInt(o, in.getInt());
+                    out.putInt(o + 4, in.getInt());
+                    out.putInt(o + 8, in.getInt());
+                }
+            }
+            out.free();
+            MeshManager.free(in);
+            MeshManager.free(ids);
+        }
+    }
+
+    /* writes a cluster for every cell with faces and the index; returns the number of clusters */
+    private static int write(File source, File directory, Totals totals, long[] counts, long[] first,
+                             float[] center, float scale, File positions, File normals, File sorted) throws IOException {
+        int clusters = 0;
+        int[] cluster_verts = new int[16], cluster_faces = new int[16];
+        float[] bounds = new float[16 * 6];
+        int[] faces = new int[0], index = new int[0], keys = new int[0];
+        float[] verts = new float[0], norms = new float[0];
+        try (RandomAccessFile p = new RandomAccessFile(positions, "r");
+             RandomAccessFile n = new RandomAccessFile(normals, "r");
+             RandomAccessFile s = new RandomAccessFile(sorted, "r")) {
+            Mapped vin = new Mapped(p.getChannel(), FileChannel.MapMode.READ_ONLY, totals.num_verts * 12);
+            Mapped nin = new Mapped(n.getChannel(), FileChannel.MapMode.READ_ONLY, totals.num_verts * 12);
+            Mapped fin = new Mapped(s.getChannel(), FileChannel.MapMode.READ_ONLY, totals.num_faces * 12);
+            for (int cell = 0; cell < counts.length; cell++) {
+                int num_faces = (int) counts[cell];
+                if (num_faces == 0) {
+                    continue;
+                }
+                if (faces.length < num_faces * 3) {
+                    faces = new int[num_faces * 3];
+                    verts = new float[num_faces * 9];
+                    norms = new float[num_faces * 9];
+                    keys = new int[Integer.highestOneBit(num_faces * 3) * 4];
+                    index = new int[keys.length];
+                }
+
+                /* renumber the vertices in the order the faces use them,
+                 * through a hash table from file indices to cluster indices
+                 */
+                Arrays.fill(keys, 0, Integer.highestOneBit(num_faces * 3) * 4, -1);
+                int mask = Integer.highestOneBit(num_faces * 3) * 4 - 1;
+                int num_verts = 0;
+                for (int i = 0; i < num_faces * 3; i++) {
+                    int v = fin.getInt((first[cell] * 3 + i) * 4);
+                    int slot = (v * 0x9E3779B9 >>> 7) & mask;
+                    while (keys[slot] != -1 && keys[slot] != v) {
+                        slot = (slot + 1) & mask;
+                    }
+                    if (keys[slot] == -1) {
+                        keys[slot] = v;
+                        index[slot] = num_verts;
+                        for (int k = 0; k < 3; k++) {
+                            verts[num_verts * 3 + k] = (vin.getFloat(v * 12L + k * 4) - center[k]) * scale;
+                            norms[num_verts * 3 + k] = nin.getFloat(v * 12L + k * 4);
+                        }
+                        num_verts++;
+                    }
+                    faces[i] = index[slot];
+                }
+                for (int i = 0; i < num_verts * 3; i += 3) {
+                    float x = norms[i], y = norms[i + 1], z = norms[i + 2];
+                    float length = (float) Math.sqrt(x * x + y * y + z * z);
+                    if (length > 0) {
+                        norms[i] = x / length;
+                        norms[i + 1] = y / length;
+                        norms[i + 2] = z / length;
+                    }
+                }
+
+                Mesh mesh = new Mesh(verts, num_verts, faces, num_faces);
+                mesh.norms = norms;
+                MeshTopology.removeDegenerate(mesh);
+                MeshTopology.removeUnused(mesh);
+                if (mesh.num_faces == 0) {
+                    continue;
+                }
+                mesh.computeBounds();
+                MeshOptimizer.optimize(mesh);
+                MeshCache.write(mesh, ClusterStore.file(directory, clusters), source.length(), source.lastModified(), 0);
+                if (clusters == cluster_faces.length) {
+                    cluster_verts = Arrays.copyOf(cluster_verts, clusters * 2);
+                    cluster_faces = Arrays.copyOf(cluster_faces, clusters * 2);
+                    bounds = Arrays.copyOf(bounds, clusters * 12);
+                }
+                cluster_verts[clusters] = mesh.num_verts;
+                cluster_faces[clusters] = mesh.num_faces;
+                System.arraycopy(mesh.min, 0, bounds, clusters * 6, 3);
+                System.arraycopy(mesh.max, 0, bounds, clusters * 6 + 3, 3);
+                clusters++;
+            }
+            vin.free();
+            nin.free();
+            fin.free();
+        }
+        ClusterStore.writeIndex(source, directory, totals.num_verts, totals.num_faces,
+                clusters, cluster_verts, cluster_faces, bounds);
+        return clusters;
+    }
+
+    /* writes a closed, bumpy sphere of about triangles triangles as an .obj
+     * file, a chunk of rows at a time
+     */
+    public static void generate(String filename, long triangles) throws IOException {
+        int rows = (int) Math.max(4, Math.sqrt(triangles / 4.0));
+        int columns = rows * 2;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 20)) {
+            byte[] line = new byte[128];
+            out.write("# generated by ClusterBuilder\n".getBytes("US-ASCII"));
+            for (int r = 0; r <= rows; r++) {
+                double theta = Math.PI * r / rows;
+                for (int c = 0; c < (r == 0 || r == rows ? 1 : columns); c++) {
+                    double phi = 2 * Math.PI * c / columns;
+                    double radius = 1 + 0.05 * Math.sin(12 * theta) * Math.sin(9 * phi)
+                            + 0.01 * Math.sin(97 * theta + 3 * phi) * Math.cos(61 * phi);
+                    int n = 0;
+                    line[n++] = 'v';
+                    n = number(line, n, radius * Math.sin(theta) * Math.cos(phi));
+                    n = number(line, n, radius * Math.cos(theta));
+                    n = number(line, n, radius * Math.sin(theta) * Math.sin(phi));
+                    line[n++] = '\n';
+                    out.write(line, 0, n);
+                }
+            }
+            /* vertex 1 is the north pole, then the rings of columns, then the south pole */
+            long south = 2 + (long) (rows - 1) * columns;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    long a = r == 0 ? 1 : 2 + (long) (r - 1) * columns + c;
+                    long b = r == 0 ? 1 : 2 + (long) (r - 1) * columns + (c + 1) % columns;
+                    long d = r == rows - 1 ? south : 2 + (long) r * columns + c;
+                    long e = r == rows - 1 ? south : 2 + (long) r * columns + (c + 1) % columns;
+                    if (r > 0) {
+                        face(out, line, a, d, b);
+                    }
+                    if (r < rows - 1) {
+                        face(out, line, b, d, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void face(OutputStream out, byte[] line, long a, long b, long c) throws IOException {
+        int n = 0;
+        line[n++] = 'f';
+        n = integer(line, n, a);
+        n = integer(line, n, b);
+        n = integer(line, n, c);
+        line[n++] = '\n';
+        out.write(line, 0, n);
+    }
+
+    /* appends " x" with six decimals */
+    private static int number(byte[] line, int n, double x) {
+        line[n++] = ' ';
+        long fixed = Math.round(x * 1e6);
+        if (fixed < 0) {
+            line[n++] = '-';
+            fixed = -fixed;
+        }
+        n = digits(line, n, fixed / 1000000, 1);
+        line[n++] = '.';
+        return digits(line, n, fixed % 1000000, 6);
+    }
+
+    private static int integer(byte[] line, int n, long x) {
+        line[n++] = ' ';
+        return digits(line, n, x, 1);
+    }
+
+    /* appends x in decimal, with at least width digits */
+    private static int digits(byte[] line, int n, long x, int width) {
+        int count = 0;
+        for (long y = x; y > 0 || count < width; y /= 10) {
+            count++;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            line[n + i] = (byte) ('0' + x % 10);
+            x /= 10;
+        }
+        return n + count;
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && args[0].equals("generate")) {
+                generate(args[1], Long.parseLong(args[2]));
+                System.out.println("Wrote " + args[1] + " (" + new File(args[1]).length() / 1048576 + " MB).");
+            } else if (args.length == 2 && args[0].equals("build")) {
+                build(args[1]);
+            } else {
+                System.out.println("Usage: java ClusterBuilder generate FILE TRIANGLES | build FILE");
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* This defines the ClusterPager class, which keeps the clusters of a
+ * ClusterStore that are being drawn in memory, and no more of them than
+ * fit a budget.
+ *
+ * Every cluster is a node of the scene with the bounds from the store,
+ * so the scene's culling decides what is in view, and the drawables of
+ * the clusters call use() only when they are drawn, with their size on
+ * screen. Once a frame, on the thread that draws, update() closes the
+ * clusters that were not drawn in the last frame, least recently drawn
+ * first, while those loaded and those asked for exceed the budget; then
+ * it starts loading what was asked for, the largest on screen first, at
+ * most MAX_LOADS at a time and only what fits. A cluster is missing from
+ * the picture until it has been loaded.
+ *
+ * The meshes go through a MeshManager, whose host budget decides when the
+ * mapped files of closed clusters are really let go; the pager's budget
+ * is what the owner holds and draws.
+ */
+class ClusterPager<T> {
+
+    static final int MAX_LOADS = 4;		// clusters being loaded at once
+
+    /* makes and drops the drawable models of the clusters */
+    interface Owner<T> {
+        /* a model for a cluster being loaded; it takes over the handle */
+        T open(MeshManager.Handle handle, int cluster);
+
+        /* deletes the model's GPU copies and gives its handle back; runs in update() */
+        void close(T model);
+
+        /* waits until the model has taken its loaded mesh, for setBlocking() */
+        default void await(T model) {
+        }
+    }
+
+    public final ClusterStore store;
+    private final MeshManager meshes;
+    private final ModelLoader loader;
+    private final Owner<T> owner;
+    private long budget;
+    private boolean blocking;
+
+    private final Object[] models;			// per cluster, null when not loaded
+    private final MeshManager.Handle[] handles;
+    private final long[] last_drawn;		// frame of the last use()
+    private final float[] wanted;			// the largest size on screen asked for in this frame
+    private final boolean[] failed;
+    private final ArrayList<Integer> asked = new ArrayList<Integer>();
+    private long frame = 1;
+    private long resident;					// bytes of the clusters loaded or being loaded
+    private int loading;
+
+    /* what happened since the pager was made */
+    private long loads, evictions;
+
+    public ClusterPager(ClusterStore store, MeshManager meshes, ModelLoader loader, Owner<T> owner, long budget) {
+        this.store = store;
+        this.meshes = meshes;
+        this.loader = loader;
+        this.owner = owner;
+        this.budget = budget;
+        int n = store.size();
+        models = new Object[n];
+        handles = new MeshManager.Handle[n];
+        last_drawn = new long[n];
+        wanted = new float[n];
+        failed = new boolean[n];
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /* makes update() start every load that fits and wait for them, so
+     * that what is drawn does not depend on how fast the disk is
+     */
+    public synchronized void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /* the model of a cluster that is being drawn, or null while it is not
+     * loaded; pixels is its projected radius, or -1 if unknown
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T use(int cluster, float pixels) {
+        last_drawn[cluster] = frame;
+        if (models[cluster] != null) {
+            return handles[cluster].mesh.isDone() ? (T) models[cluster] : null;
+        }
+        if (!failed[cluster]) {
+            if (wanted[cluster] == 0) {
+                asked.add(cluster);
+            }
+            wanted[cluster] = Math.max(wanted[cluster], Math.max(pixels, Float.MIN_VALUE));
+        }
+        return null;
+    }
+
+    /* starts a frame: closes what is not drawn any more as far as the
+     * budget needs, and starts the loads asked for in the last frame
+     */
+    public void update() {
+        ArrayList<T> started = new ArrayList<T>();
+        synchronized (this) {
+            long needed = 0;
+            for (int c : asked) {
+                needed += store.getBytes(c);
+            }
+
+            /* closes loaded clusters that were not drawn in the last frame */
+            if (resident + needed > budget) {
+                ArrayList<Integer> idle = new ArrayList<Integer>();
+                for (int c = 0; c < models.length; c++) {
+                    if (models[c] != null && last_drawn[c] < frame && handles[c].mesh.isDone()) {
+                        idle.add(c);
+                    }
+                }
+                idle.sort((a, b) -> Long.compare(last_drawn[a], last_drawn[b]));
+                for (int i = 0; i < idle.size() && resident + needed > budget; i++) {
+                    close(idle.get(i));
+                    evictions++;
+                }
+            }
+            for (int c = 0; c < models.length; c++) {
+                /* a cluster that failed has said so and is not tried again */
+                if (models[c] != null && handles[c].mesh.isCompletedExceptionally()) {
+                    close(c);
+                    failed[c] = true;
+                }
+            }
+
+            Integer[] order = asked.toArray(new Integer[asked.size()]);
+            Arrays.sort(order, (a, b) -> Float.compare(wanted[b], wanted[a]));
+            for (int c : order) {
+                if ((blocking || loading < MAX_LOADS) && resident + store.getBytes(c) <= budget) {
+                    final int cluster = c;
+                    MeshManager.Handle h = meshes.acquire(store.key(c), () -> loader.loadCluster(store, cluster));
+                    handles[c] = h;
+                    T model = owner.open(h, c);
+                    models[c] = model;
+                    resident += store.getBytes(c);
+                    loading++;
+                    loads++;
+                    started.add(model);
+                    h.mesh.whenComplete((mesh, error) -> loaded());
+                }
+                wanted[c] = 0;
+            }
+            asked.clear();
+            frame++;
+        }
+        if (blocking) {
+            for (T model : started) {
+                owner.await(model);
+            }
+        }
+    }
+
+    private synchronized void loaded() {
+        loading--;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void close(int c) {
+        owner.close((T) models[c]);
+        models[c] = null;
+        handles[c] = null;
+        resident -= store.getBytes(c);
+    }
+
+    /* closes every cluster; the pager can be used again */
+    public synchronized void clear() {
+        for (int c = 0; c < models.length; c++) {
+            if (models[c] != null) {
+                close(c);
+            }
+        }
+    }
+
+    public synchronized long getResidentBytes() {
+        return resident;
+    }
+
+    public synchronized String toString() {
+        int n = 0;
+        for (Object m : models) {
+            n += m != null ? 1 : 0;
+        }
+        return String.format("%s: %d of %d clusters loaded, %.1f of %.1f MB; %d loads, %d evicted",
+                store.name, n, models.length, resident / 1048576.0, budget / 1048576.0, loads, evictions);
+    }
+}
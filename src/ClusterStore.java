@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/* This defines the ClusterStore class, a mesh too large for memory kept
+ * on disk in spatial clusters that can be loaded one at a time.
+ *
+ * ClusterBuilder makes the store from an .obj file, in a directory next
+ * to it (scan.obj -> scan.obj.clusters), with one MeshCache file per
+ * cluster (00000.mesh, 00001.mesh, ...) and an index, little-endian:
+ *   magic, version                        2 ints
+ *   source length, modification time      2 longs
+ *   num_verts, num_faces of the source    2 longs
+ *   clusters                              1 int
+ *   per cluster: num_verts, num_faces     2 ints
+ *                bounding box min, max    6 floats
+ * The index is written last, so a build that did not finish is not used.
+ * All clusters share the frame of the whole mesh, centered and scaled
+ * into a unit box as Mesh.load() does, so their bounds are known without
+ * loading them.
+ */
+class ClusterStore {
+
+    static final int MAGIC = 0x53554c43;	// "CLUS"
+    static final int VERSION = 1;
+    static final int ENTRY_SIZE = 32;	// bytes per cluster in the index
+
+    public final String name;			// of the source file
+    public final File directory;
+    public final long num_verts, num_faces;	// of the source
+    private final int[] cluster_verts, cluster_faces;
+    private final float[] bounds;		// min and max of every cluster
+
+    private ClusterStore(String name, File directory, long num_verts, long num_faces, int clusters) {
+        this.name = name;
+        this.directory = directory;
+        this.num_verts = num_verts;
+        this.num_faces = num_faces;
+        cluster_verts = new int[clusters];
+        cluster_faces = new int[clusters];
+        bounds = new float[clusters * 6];
+    }
+
+    public static File directory(String filename) {
+        return new File(filename + ".clusters");
+    }
+
+    /* the store of filename, built first if it is missing or stale */
+    public static ClusterStore open(String filename) throws IOException {
+        ClusterStore store = read(filename);
+        if (store == null) {
+            ClusterBuilder.build(filename);
+            store = read(filename);
+            if (store == null) {
+                throw new IOException("Could not build the clusters of " + filename);
+            }
+        }
+        return store;
+    }
+
+    /* the store of filename, or null if there is none for this version of the file */
+    static ClusterStore read(String filename) throws IOException {
+        File source = new File(filename);
+        File index = new File(directory(filename), "index");
+        if (!source.isFile() || !index.isFile()) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(index.toPath());
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < 44 || in.getInt() != MAGIC || in.getInt() != VERSION
+                || in.getLong() != source.length() || in.getLong() != source.lastModified()) {
+            return null;
+        }
+        long verts = in.getLong(), faces = in.getLong();
+        int clusters = in.getInt();
+        if (clusters < 0 || bytes.length != 44 + (long) clusters * ENTRY_SIZE) {
+            return null;
+        }
+        ClusterStore store = new ClusterStore(filename, directory(filename), verts, faces, clusters);
+        for (int c = 0; c < clusters; c++) {
+            store.cluster_verts[c] = in.getInt();
+            store.cluster_faces[c] = in.getInt();
+            for (int i = 0; i < 6; i++) {
+                store.bounds[c * 6 + i] = in.getFloat();
+            }
+        }
+        return store;
+    }
+
+    /* writes the index of the clusters the builder has written */
+    static void writeIndex(File source, File directory, long num_verts, long num_faces,
+                           int clusters, int[] verts, int[] faces, float[] bounds) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(44 + clusters * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION);
+        out.putLong(source.length()).putLong(source.lastModified());
+        out.putLong(num_verts).putLong(num_faces);
+        out.putInt(clusters);
+        for (int c = 0; c < clusters; c++) {
+            out.putInt(verts[c]).putInt(faces[c]);
+            for (int i = 0; i < 6; i++) {
+                out.putFloat(bounds[c * 6 + i]);
+            }
+        }
+        out.flip();
+        File tmp = new File(directory, "index.tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            file.setLength(0);
+            while (out.hasRemaining()) {
+                file.getChannel().write(out);
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, "index").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static File file(File directory, int cluster) {
+        return new File(directory, String.format("%05d.mesh", cluster));
+    }
+
+    public int size() {
+        return cluster_faces.length;
+    }
+
+    public int getVerts(int cluster) {
+        return cluster_verts[cluster];
+    }
+
+    public int getFaces(int cluster) {
+        return cluster_faces[cluster];
+    }
+
+    /* the bytes a cluster takes once loaded */
+    public long getBytes(int cluster) {
+        return MeshCache.HEADER_SIZE + cluster_verts[cluster] * 24L + cluster_faces[cluster] * 12L;
+    }
+
+    public boolean getBounds(int cluster, float[] min, float[] max) {
+        System.arraycopy(bounds, cluster * 6, min, 0, 3);
+        System.arraycopy(bounds, cluster * 6 + 3, max, 0, 3);
+        return true;
+    }
+
+    /* the key of a cluster in a MeshManager */
+    public String key(int cluster) {
+        return file(directory, cluster).getPath();
+    }
+
+    /* maps the mesh of a cluster */
+    public Mesh read(int cluster) throws IOException {
+        Mesh mesh = MeshCache.read(file(directory, cluster));
+        if (mesh == null || mesh.num_faces != cluster_faces[cluster]) {
+            throw new IOException("Cluster " + cluster + " of " + name + " is damaged, delete " + directory + " to rebuild it.");
+        }
+        return mesh;
+    }
+}
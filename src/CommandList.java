@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL2;
+
+/* This defines the CommandList class, the draw commands of one frame:
+ * for every node to draw, its drawable and material, its modelview
+ * matrix and its projected size for the level of detail.
+ *
+ * SceneNode.record() writes the command of each node at the node's
+ * depth-first index in the scene, so subtrees can be recorded by
+ * different threads without sharing anything, and the commands come out
+ * in the same order whichever thread recorded which. sort() then puts
+ * them in material order, keeping the scene order within a material,
+ * and replay() submits them. Only replay() touches GL, and set() takes
+ * the drawable and material of a node as they are when it is recorded,
+ * so the next frames can be built, and the scene changed, while this
+ * one is replayed.
+ * The arrays keep their size from frame to frame.
+ */
+class CommandList {
+
+    /* set by whoever builds the list, before recording */
+    public final float[] view = new float[16];
+    public final float[] projection = new float[16];
+    public final Frustum frustum = new Frustum();
+    /* the projected size in pixels of a unit length at unit distance from
+     * the eye, (viewport height / 2) / tan(fovy / 2); 0 to leave the
+     * levels of detail alone
+     */
+    public float pixelScale;
+    public boolean wireframe, flatshade, cullface;
+    public long frame;			// the number of the frame, counted by the builder
+    public long scene_version;		// the readings of the scene file applied, counted by the builder
+
+    public final RenderStats stats = new RenderStats();	// drawn and culled
+    public long update_nanos, record_nanos;		// CPU time spent building the list
+
+    /* a world box drawn in lines after the commands, if outline is set;
+     * the builder sets or clears it every frame
+     */
+    public boolean outline;
+    public final float[] outline_min = new float[3], outline_max = new float[3];
+
+    private SceneNode.Drawable[] drawables = new SceneNode.Drawable[0];	// by depth-first index, null where nothing is drawn
+    private Material[] materials = new Material[0];
+    private String[] names = new String[0];
+    private float[] matrices = new float[0];		// modelview, 16 floats per index
+    private float[] pixels = new float[0];			// projected radius, -1 for none
+    private int[] order = new int[0];				// the indices to draw, in material order
+    private int[] first = new int[0];				// counting sort buckets, by material id
+    private int size, count;
+
+    /* empties the list for a scene of size nodes */
+    public void reset(int size) {
+        if (drawables.length < size) {
+            drawables = new SceneNode.Drawable[size];
+            materials = new Material[size];
+            names = new String[size];
+            matrices = new float[size * 16];
+            pixels = new float[size];
+            order = new int[size];
+        } else {
+            Arrays.fill(drawables, 0, this.size, null);
+            Arrays.fill(materials, 0, this.size, null);
+        }
+        this.size = size;
+        count = 0;
+        stats.reset();
+    }
+
+    /* records the command of node, the one at depth-first index i, which
+     * has a drawable
+     */
+    public void set(int i, SceneNode node) {
+        drawables[i] = node.drawable;
+        materials[i] = node.material;
+        names[i] = node.name;
+        Mat4.multiply(matrices, i * 16, view, node.getWorld());
+        pixels[i] = pixelScale > 0 ? node.getProjectedRadius(view, pixelScale) : -1;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /* the drawable of command i */
+    public SceneNode.Drawable getDrawable(int i) {
+        return drawables[order[i]];
+    }
+
+    /* the material of command i, or null for none */
+    public Material getMaterial(int i) {
+        return materials[order[i]];
+    }
+
+    /* the modelview matrix of command i */
+    public float[] getModelview(int i, float[] out) {
+        System.arraycopy(matrices, order[i] * 16, out, 0, 16);
+        return out;
+    }
+
+    /* the projected radius of command i in pixels, or -1 for none */
+    public float getPixels(int i) {
+        return pixels[order[i]];
+    }
+
+    /* orders the recorded commands by material id with a counting sort,
+     * which is stable, so equal materials keep their scene order
+     */
+    public void sort() {
+        int ids = 0;
+        for (int i = 0; i < size; i++) {
+            if (drawables[i] != null) {
+                ids = Math.max(ids, key(materials[i]) + 2);
+            }
+        }
+        if (first.length < ids + 1) {
+            first = new int[ids + 1];
+        }
+        Arrays.fill(first, 0, ids + 1, 0);
+        for (int i = 0; i < size; i++) {
+            if (drawables[i] != null) {
+                first[key(materials[i]) + 2]++;
+            }
+        }
+        for (int k = 1; k <= ids; k++) {
+            first[k] += first[k - 1];
+        }
+        count = first[ids];
+        for (int i = 0; i < size; i++) {
+            if (drawables[i] != null) {
+                order[first[key(materials[i]) + 1]++] = i;
+            }
+        }
+    }
+
+    private static int key(Material material) {
+        return material == null ? -1 : material.id;
+    }
+
+    /* submits the commands, each timed as a section of its node's name */
+    public void replay(GL2 gl, GLStateCache state, FrameProfiler profiler) {
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            int section = profiler.begin(names[i]);
+            if (pixels[i] >= 0) {
+                drawables[i].setDetail(pixels[i]);
+            }
+            gl.glLoadMatrixf(matrices, i * 16);
+            state.material(gl, materials[i]);
+            drawables[i].draw(gl);
+            profiler.end(section);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLEventListener;
+
+/* This defines the FrameCapture class, which saves every frame of a
+ * drawable as a numbered PNG file (frame00000.png, frame00001.png, ...).
+ *
+ * Add it to the drawable after the renderer so its display() runs last.
+ * Where the context has pixel buffer objects, glReadPixels only starts a
+ * copy into one of PBO_COUNT buffers, and the frame is mapped a few
+ * frames later when the copy has finished, so the GPU never waits for
+ * the CPU. Images are encoded and written on a thread of their own.
+ */
+class FrameCapture implements GLEventListener {
+
+    static final int PBO_COUNT = 3;
+    static final int MAX_PENDING_IMAGES = 8;	// images waiting to be written
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "frame-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Semaphore pending = new Semaphore(MAX_PENDING_IMAGES);
+
+    private int width, height;
+    private int[] pbos;				// null when reading back synchronously
+    private final int[] pboFrame = new int[PBO_COUNT];	// frame number in each PBO, -1 for none
+    private ByteBuffer pixels;		// for synchronous reads
+    private int frame = 0;
+    private int written = 0;
+
+    public FrameCapture(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    public void init(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        width = drawable.getSurfaceWidth();
+        height = drawable.getSurfaceHeight();
+        if (gl.isFunctionAvailable("glGenBuffers") && gl.isExtensionAvailable("GL_ARB_pixel_buffer_object")) {
+            pbos = new int[PBO_COUNT];
+            gl.glGenBuffers(PBO_COUNT, pbos, 0);
+            for (int i = 0; i < PBO_COUNT; i++) {
+                gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[i]);
+                gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, (long) width * height * 4, null, GL2.GL_STREAM_READ);
+                pboFrame[i] = -1;
+            }
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            pbos = null;
+            pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public void display(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        gl.glPixelStorei(GL2.GL_PACK_ALIGNMENT, 4);
+        if (pbos == null) {
+            pixels.clear();
+            gl.glReadPixels(0, 0, width, height, GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, pixels);
+            save(pixels, frame++);
+            return;
+        }
+        int slot = frame % PBO_COUNT;
+        if (pboFrame[slot] >= 0) {
+            collect(gl, slot);		// the oldest copy, started PBO_COUNT frames ago
+        }
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+        gl.glReadPixels(0, 0, width, height, GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, 0L);
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        pboFrame[slot] = frame++;
+    }
+
+    /* maps a PBO and queues its frame for writing */
+    private void collect(GL2 gl, int slot) {
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+        ByteBuffer mapped = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+        if (mapped != null) {
+            save(mapped.order(ByteOrder.nativeOrder()), pboFrame[slot]);
+            gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
+        } else {
+            System.out.println("Could not map the pixels of frame " + pboFrame[slot]);
+        }
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        pboFrame[slot] = -1;
+    }
+
+    /* copies bottom-up BGRA pixels into an image and queues it for writing */
+    private void save(ByteBuffer source, final int number) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        IntBuffer argb = source.asIntBuffer();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            argb.position((height - 1 - y) * width);
+            argb.get(row);
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        write(image, number);
+    }
+
+    /* queues the next frame when it was not drawn by GL, e.g. by a SoftwareRenderer */
+    public void save(BufferedImage image) {
+        write(image, frame++);
+    }
+
+    private void write(final BufferedImage image, final int number) {
+        pending.acquireUninterruptibly();
+        writer.execute(() -> {
+            File file = new File(directory, String.format("frame%05d.png", number));
+            try {
+                ImageIO.write(image, "png", file);
+                synchronized (this) {
+                    written++;
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing " + file + ": " + e.getMessage());
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    /* collects the frames still in flight; call with the context current */
+    public void flush(GLAutoDrawable drawable) {
+        if (pbos != null) {
+            GL2 gl = drawable.getGL().getGL2();
+            for (int i = 0; i < PBO_COUNT; i++) {
+                int slot = (frame + i) % PBO_COUNT;	// oldest first
+                if (pboFrame[slot] >= 0) {
+                    collect(gl, slot);
+                }
+            }
+        }
+    }
+
+    /* waits until every queued image has been written */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized int getWritten() {
+        return written;
+    }
+
+    public void dispose(GLAutoDrawable drawable) {
+        if (pbos != null) {
+            drawable.getGL().glDeleteBuffers(PBO_COUNT, pbos, 0);
+            pbos = null;
+        }
+    }
+
+    public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+    }
+}
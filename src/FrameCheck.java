@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLAutoDrawable;
+
+/* This defines the FrameCheck class, a check that the frames of the
+ * viewer allocate nothing and make no redundant GL state calls:
+ *
+ *     java FrameCheck [--scene scene.json] [--frames 200]
+ *
+ * It draws the scene through display(), the way the window does, into a
+ * GL2 that only counts its calls. After WARMUP frames, when every mesh
+ * has been uploaded, it prints the GL calls per frame by name, the state
+ * calls the GLStateCache made and skipped, and the bytes allocated per
+ * frame by the thread that draws and by the pipeline's builders, which
+ * update, cull, record and sort the frames.
+ *
+ * GL2 has too many methods for a java.lang.reflect.Proxy, so the counting
+ * GL2 is written out as source and compiled with the JDK's compiler when
+ * the check starts; it needs a JDK rather than a JRE.
+ * FramePipeline.next() makes a few futures per frame; what they cost is
+ * measured on a pipeline with an empty scene and not counted against
+ * the drawing thread. The check exits with status 1 if the builders or
+ * the drawing thread allocate anything else, or if the cache skips
+ * nothing.
+ */
+class FrameCheck {
+
+    static final int WARMUP = 50;
+    static final int DEFAULT_FRAMES = 200;
+    static final int WIDTH = 1280, HEIGHT = 720;
+    static final double SMALLEST_OBJECT = 16;		// bytes; less per frame is rounding
+
+    /* the calls of the generated GL2 by method index, and the names of the methods */
+    private static long[] counts;
+    private static String[] names;
+
+    public static void main(String[] args) throws Exception {
+        String sceneFile = "scene.json";
+        int frames = DEFAULT_FRAMES;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--scene")) {
+                sceneFile = args[i + 1];
+            } else if (args[i].equals("--frames")) {
+                frames = Integer.parseInt(args[i + 1]);
+            }
+        }
+        final GL2 gl = countingGL();
+        GLAutoDrawable drawable = (GLAutoDrawable) Proxy.newProxyInstance(FrameCheck.class.getClassLoader(),
+                new Class<?>[]{GLAutoDrawable.class}, (proxy, method, margs) -> {
+                    switch (method.getName()) {
+                        case "getGL":
+                            return gl;
+                        case "getSurfaceWidth":
+                            return WIDTH;
+                        case "getSurfaceHeight":
+                            return HEIGHT;
+                        default:
+                            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+
+        Hierarchical scene = new Hierarchical(WIDTH, HEIGHT, AnimationEngine.TICK);
+        scene.openScene(sceneFile);
+        scene.awaitModels();
+        scene.init(drawable);
+        GLStateCache state = field(scene, "state");
+        for (int i = 0; i < WARMUP; i++) {
+            scene.display(drawable);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        Arrays.fill(counts, 0);
+        long[] builders = builderThreads();
+        long builderBytes = sum(threads.getThreadAllocatedBytes(builders));
+        long selfBytes = threads.getThreadAllocatedBytes(self);
+        long stateCalls = 0, stateSkipped = 0;
+        for (int i = 0; i < frames; i++) {
+            scene.display(drawable);
+            stateCalls += state.calls;
+            stateSkipped += state.skipped;
+        }
+        selfBytes = threads.getThreadAllocatedBytes(self) - selfBytes;
+        builderBytes = sum(threads.getThreadAllocatedBytes(builders)) - builderBytes;
+        double pipeline = pipelineBytes(frames);
+
+        System.out.println(String.format("%d frames of %s, %.1f GL calls per frame:", frames, sceneFile, (double) sum(counts) / frames));
+        for (int i = 0; i < names.length; i++) {
+            if (counts[i] > 0) {
+                System.out.println(String.format("  %-28s %8.1f", names[i], (double) counts[i] / frames));
+            }
+        }
+        System.out.println(String.format("State calls per frame: %.1f made, %.1f skipped by the cache.",
+                (double) stateCalls / frames, (double) stateSkipped / frames));
+        double drawing = (double) selfBytes / frames, building = (double) builderBytes / frames;
+        System.out.println(String.format("Allocated per frame: %.1f bytes drawing, of which %.1f by the pipeline's futures, %.1f bytes building.",
+                drawing, pipeline, building));
+
+        int failures = 0;
+        if (!Arrays.equals(builders, builderThreads())) {
+            System.out.println("FAILED: the frame builders changed during the check.");
+            failures++;
+        }
+        if (building >= SMALLEST_OBJECT) {
+            System.out.println("FAILED: the builders allocate every frame.");
+            failures++;
+        }
+        if (drawing - pipeline >= SMALLEST_OBJECT) {
+            System.out.println("FAILED: drawing allocates every frame.");
+            failures++;
+        }
+        if (stateSkipped == 0) {
+            System.out.println("FAILED: the state cache skips nothing.");
+            failures++;
+        }
+        System.out.println(failures == 0 ? "OK" : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /* the bytes FramePipeline.next() allocates per call on its caller, with an empty scene */
+    private static double pipelineBytes(int frames) {
+        final SceneNode root = new SceneNode("root");
+        root.update();
+        FramePipeline pipeline = new FramePipeline(list -> root, 1);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            pipeline.next();
+        }
+        long bytes = threads.getThreadAllocatedBytes(self);
+        for (int i = 0; i < frames; i++) {
+            pipeline.next();
+        }
+        bytes = threads.getThreadAllocatedBytes(self) - bytes;
+        pipeline.shutdown();
+        return (double) bytes / frames;
+    }
+
+    private static long[] builderThreads() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("frame-builder-")) {
+                ids.add(t.getId());
+            }
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T field(Object owner, String name) throws ReflectiveOperationException {
+        java.lang.reflect.Field f = owner.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        return (T) f.get(owner);
+    }
+
+    /* writes, compiles and loads a GL2 that counts its calls in counts and
+     * returns zero, false, null or itself
+     */
+    private static GL2 countingGL() throws IOException, ReflectiveOperationException {
+        /* one method per signature, with the narrowest of the return types the interfaces declare */
+        LinkedHashMap<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Method m : GL2.class.getMethods()) {
+            if (m.isDefault() || java.lang.reflect.Modifier.isStatic(m.getModifiers())) {
+                continue;
+            }
+            String key = m.getName() + Arrays.toString(m.getParameterTypes());
+            Method known = methods.get(key);
+            if (known == null || known.getReturnType().isAssignableFrom(m.getReturnType())) {
+                methods.put(key, m);
+            }
+        }
+        names = new String[methods.size()];
+        StringBuilder src = new StringBuilder();
+        src.append("public class CountingGL2 implements com.jogamp.opengl.GL2 {\n");
+        src.append("public static final long[] counts = new long[").append(names.length).append("];\n");
+        int index = 0;
+        for (Method m : methods.values()) {
+            names[index] = m.getName();
+            Class<?> ret = m.getReturnType();
+            src.append("public ").append(ret.getCanonicalName()).append(' ').append(m.getName()).append('(');
+            Class<?>[] params = m.getParameterTypes();
+            for (int p = 0; p < params.length; p++) {
+                src.append(p > 0 ? ", " : "").append(params[p].getCanonicalName()).append(" a").append(p);
+            }
+            src.append(") { counts[").append(index++).append("]++;");
+            if (ret == void.class) {
+                src.append(" }\n");
+            } else if (ret == boolean.class) {
+                src.append(" return false; }\n");
+            } else if (ret.isPrimitive()) {
+                src.append(" return (").append(ret.getName()).append(") 0; }\n");
+            } else if (ret != Object.class && ret.isAssignableFrom(GL2.class)) {
+                src.append(" return this; }\n");
+            } else {
+                src.append(" return null; }\n");
+            }
+        }
+        src.append("}\n");
+
+        File dir = Files.createTempDirectory("framecheck").toFile();
+        File source = new File(dir, "CountingGL2.java");
+        try (PrintWriter out = new PrintWriter(source, "UTF-8")) {
+            out.print(src);
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IOException("no Java compiler; run the check with a JDK");
+        }
+        if (javac.run(null, null, null, "-nowarn", "-cp", System.getProperty("java.class.path"),
+                "-d", dir.getPath(), source.getPath()) != 0) {
+            throw new IOException("could not compile the counting GL2");
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()}, FrameCheck.class.getClassLoader());
+        Class<?> counting = loader.loadClass("CountingGL2");
+        counts = (long[]) counting.getField("counts").get(null);
+        return (GL2) counting.newInstance();
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/* This defines the FramePipeline class, which builds the CommandLists of
+ * coming frames on worker threads while the GL thread replays the
+ * current one.
+ *
+ * There are FRAMES lists in a ring. next() hands the GL thread the oldest
+ * finished list and queues builds for every other list, so up to
+ * FRAMES - 1 frames are being built while one is drawn. The builds run
+ * one after another, since each frame's update follows the one before,
+ * but the recording of a large scene within a build is spread over all
+ * the workers by SceneNode.record().
+ *
+ * A build first calls the Stage, which updates the scene for its frame
+ * and sets up the list; the scene graph belongs to the builds from then
+ * on, so the GL thread must leave it alone and draw only from the lists.
+ *
+ * Building ahead makes what is drawn FRAMES - 1 frames older than the
+ * input, which an animation hides but a paused viewer, that only draws
+ * on input, does not. next(false) therefore throws the lists built ahead
+ * away and builds the frame it returns.
+ */
+class FramePipeline {
+
+    static final int FRAMES = 3;		// lists in the ring: one drawn, the rest built ahead
+
+    /* brings the scene up to date for the next frame and returns its
+     * root; sets view, frustum and pixelScale of the list, and outline
+     * if it wants one
+     */
+    interface Stage {
+        SceneNode update(CommandList list);
+    }
+
+    private final Stage stage;
+    private final ForkJoinPool pool;
+    private final CommandList[] lists = new CommandList[FRAMES];
+    private final CompletableFuture<?>[] built = new CompletableFuture<?>[FRAMES];
+    private CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+    private long queued = 0, taken = 0;
+
+    public FramePipeline(Stage stage) {
+        this(stage, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FramePipeline(Stage stage, int threads) {
+        this.stage = stage;
+        pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("frame-builder-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        for (int i = 0; i < FRAMES; i++) {
+            lists[i] = new CommandList();
+        }
+    }
+
+    /* the list of the next frame, waiting for it if it is not built yet;
+     * it stays the caller's until the following call
+     */
+    public CommandList next() {
+        return next(true);
+    }
+
+    /* the same, but unless ahead is set the list is built now, from the
+     * current state, and nothing is built ahead
+     */
+    public CommandList next(boolean ahead) {
+        if (!ahead) {
+            /* what was built ahead is out of date */
+            last.handle((result, error) -> null).join();
+            taken = queued;
+        }
+        /* the list drawn last is free again */
+        while (queued - taken < (ahead ? FRAMES : 1)) {
+            final CommandList list = lists[(int) (queued % FRAMES)];
+            last = last.handle((result, error) -> null).thenRunAsync(() -> build(list), pool);
+            built[(int) (queued % FRAMES)] = last;
+            queued++;
+        }
+        int i = (int) (taken++ % FRAMES);
+        try {
+            built[i].join();
+        } catch (CompletionException e) {
+            System.out.println("Error building frame: " + e.getCause());
+            lists[i].reset(0);		// draw nothing rather than half a frame
+            lists[i].outline = false;
+        }
+        return lists[i];
+    }
+
+    private void build(CommandList list) {
+        long start = System.nanoTime();
+        SceneNode root = stage.update(list);
+        long updated = System.nanoTime();
+        list.reset(root.getSubtreeSize());
+        list.stats.culled = root.record(list.frustum, list, 0);
+        list.sort();
+        list.stats.drawn = list.size();
+        long end = System.nanoTime();
+        list.update_nanos = updated - start;
+        list.record_nanos = end - updated;
+    }
+
+    /* waits for the queued builds and stops the workers */
+    public void shutdown() {
+        last.handle((result, error) -> null).join();
+        pool.shutdown();
+    }
+}
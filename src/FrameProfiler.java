@@ -0,0 +1,359 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.util.gl2.GLUT;
+
+/* This defines the FrameProfiler class, which records where the time of
+ * each frame goes: the time between frames, the CPU time of display() and
+ * of each named section in it, the GPU time of each section where the
+ * context has timer queries, and the draw calls and triangles of the
+ * frame's RenderStats. The last HISTORY frames are kept for the overlay,
+ * for percentiles and for export as CSV or JSON.
+ *
+ * Sections are timed between begin(name) and end(section). Past
+ * MAX_SECTIONS - 1 names the rest are timed together as OTHER, and
+ * restart() forgets them, e.g. when the scene changes. GPU timer
+ * queries cannot nest, so a section begun inside another one is only
+ * timed on the CPU. Query results are read QUERY_FRAMES frames later,
+ * when the GPU has finished with them, so reading them never stalls.
+ *
+ * While disabled every call returns at its first test, and nothing is
+ * allocated while enabled except when the overlay text is refreshed.
+ */
+class FrameProfiler {
+
+    static final int HISTORY = 1024;		// frames kept
+    static final int MAX_SECTIONS = 32;
+    static final String OTHER = "other";	// the section of the names past MAX_SECTIONS - 1
+    static final int QUERY_FRAMES = 4;		// frames before a query result is read
+    static final long OVERLAY_REFRESH = 500000000L;	// nanoseconds between overlay updates
+
+    private boolean enabled = false;
+
+    private final String[] names = new String[MAX_SECTIONS];
+    private final HashMap<String, Integer> sections = new HashMap<String, Integer>();
+    private int num_sections = 0;
+
+    /* per frame, indexed by frame % HISTORY */
+    private final long[] interval = new long[HISTORY];		// since the previous frame began
+    private final long[] cpu = new long[HISTORY];			// of the whole frame
+    private final int[] draw_calls = new int[HISTORY];
+    private final long[] triangles = new long[HISTORY];
+    private final long[] section_cpu = new long[HISTORY * MAX_SECTIONS];
+    private final long[] section_gpu = new long[HISTORY * MAX_SECTIONS];	// -1 when not measured
+    private long frame = 0;		// frames recorded since enabled
+    private long frame_start = 0;
+    private long last_start = 0;
+    private final long[] started = new long[MAX_SECTIONS];
+
+    /* timer queries, QUERY_FRAMES frames of one per section */
+    private GL2 gl;
+    private int[] queries;			// null without timer queries
+    private final boolean[] issued = new boolean[QUERY_FRAMES * MAX_SECTIONS];
+    private int gpu_section = -1;		// the section with a query running
+    private final int[] available = new int[1];
+    private final long[] result = new long[1];
+
+    /* the overlay, rebuilt every OVERLAY_REFRESH */
+    private String[] overlay = new String[0];
+    private long overlay_time = 0;
+    private final long[] sorted = new long[HISTORY];
+
+    /* call with a new context; timer queries are used where it has them */
+    public void init(GL2 gl) {
+        this.gl = gl;
+        queries = null;
+        gpu_section = -1;
+        Arrays.fill(issued, false);
+        if (gl.isFunctionAvailable("glGenQueries") && gl.isFunctionAvailable("glGetQueryObjecti64v")
+                && (gl.isExtensionAvailable("GL_ARB_timer_query") || gl.isExtensionAvailable("GL_EXT_timer_query"))) {
+            queries = new int[QUERY_FRAMES * MAX_SECTIONS];
+            gl.glGenQueries(queries.length, queries, 0);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean hasGpuTimes() {
+        return queries != null;
+    }
+
+    /* starts recording afresh, or stops */
+    public void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            restart();
+        }
+        this.enabled = enabled;
+    }
+
+    /* forgets the sections and the frames recorded so far; between frames */
+    public void restart() {
+        frame = 0;
+        last_start = 0;
+        overlay_time = 0;
+        overlay = new String[0];
+        Arrays.fill(issued, false);		// their results would go to the new sections
+        Arrays.fill(names, null);
+        sections.clear();
+        num_sections = 0;
+    }
+
+    public void beginFrame() {
+        if (!enabled) {
+            return;
+        }
+        frame_start = System.nanoTime();
+        int f = (int) (frame % HISTORY);
+        interval[f] = last_start == 0 ? 0 : frame_start - last_start;
+        last_start = frame_start;
+        Arrays.fill(section_cpu, f * MAX_SECTIONS, (f + 1) * MAX_SECTIONS, 0);
+        Arrays.fill(section_gpu, f * MAX_SECTIONS, (f + 1) * MAX_SECTIONS, -1);
+        if (queries != null && frame >= QUERY_FRAMES) {
+            collect(frame - QUERY_FRAMES);
+        }
+    }
+
+    /* reads the query results of an earlier frame, whose queries this frame reuses */
+    private void collect(long earlier) {
+        int slot = (int) (earlier % QUERY_FRAMES) * MAX_SECTIONS;
+        int f = (int) (earlier % HISTORY) * MAX_SECTIONS;
+        for (int s = 0; s < num_sections; s++) {
+            if (!issued[slot + s]) {
+                continue;
+            }
+            issued[slot + s] = false;
+            gl.glGetQueryObjectiv(queries[slot + s], GL2.GL_QUERY_RESULT_AVAILABLE, available, 0);
+            if (available[0] != 0) {	// otherwise leave it unmeasured rather than wait
+                gl.glGetQueryObjecti64v(queries[slot + s], GL2.GL_QUERY_RESULT, result, 0);
+                section_gpu[f + s] = result[0];
+            }
+        }
+    }
+
+    public void endFrame(RenderStats stats) {
+        if (!enabled) {
+            return;
+        }
+        int f = (int) (frame % HISTORY);
+        cpu[f] = System.nanoTime() - frame_start;
+        draw_calls[f] = stats.drawCalls;
+        triangles[f] = stats.triangles;
+        frame++;
+    }
+
+    /* starts timing a section and returns it for end(), or -1 while disabled */
+    public int begin(String name) {
+        if (!enabled) {
+            return -1;
+        }
+        int s = section(name);
+        if (queries != null && gpu_section < 0) {
+            int q = (int) (frame % QUERY_FRAMES) * MAX_SECTIONS + s;
+            if (!issued[q]) {		// a section begun twice in a frame is timed the first time
+                gl.glBeginQuery(GL2.GL_TIME_ELAPSED, queries[q]);
+                issued[q] = true;
+                gpu_section = s;
+            }
+        }
+        started[s] = System.nanoTime();
+        return s;
+    }
+
+    /* the index of a section; the last one is OTHER, made when needed */
+    private int section(String name) {
+        Integer known = sections.get(name);
+        if (known != null) {
+            return known;
+        }
+        if (num_sections == MAX_SECTIONS) {
+            return MAX_SECTIONS - 1;
+        }
+        if (num_sections == MAX_SECTIONS - 1) {
+            name = OTHER;
+        }
+        names[num_sections] = name;
+        sections.put(name, num_sections);
+        return num_sections++;
+    }
+
+    /* adds CPU time spent on a section elsewhere, e.g. on another thread,
+     * to this frame
+     */
+    public void record(String name, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        section_cpu[(int) (frame % HISTORY) * MAX_SECTIONS + section(name)] += nanos;
+    }
+
+    public void end(int s) {
+        if (s < 0) {
+            return;
+        }
+        section_cpu[(int) (frame % HISTORY) * MAX_SECTIONS + s] += System.nanoTime() - started[s];
+        if (gpu_section == s) {
+            gl.glEndQuery(GL2.GL_TIME_ELAPSED);
+            gpu_section = -1;
+        }
+    }
+
+    /* frames recorded, up to HISTORY */
+    public int size() {
+        return (int) Math.min(frame, HISTORY);
+    }
+
+    /* the p-th percentile (0 to 100) of the time between frames, in milliseconds */
+    public double percentile(double p) {
+        int n = 0;
+        for (int i = 0; i < size(); i++) {
+            if (interval[i] > 0) {
+                sorted[n++] = interval[i];
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted, 0, n);
+        int k = (int) Math.ceil(p / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, k))] / 1e6;
+    }
+
+    /* the mean of a section over the recorded frames, in milliseconds, or
+     * -1 if it was never measured
+     */
+    private double mean(long[] times, int s) {
+        long sum = 0;
+        int n = 0;
+        for (int i = 0; i < size(); i++) {
+            long t = times[i * MAX_SECTIONS + s];
+            if (t >= 0) {
+                sum += t;
+                n++;
+            }
+        }
+        return n == 0 ? -1 : sum / 1e6 / n;
+    }
+
+    /* draws the latest figures in the top left corner of a width by height window */
+    public void drawOverlay(GL2 gl, GLUT glut, int width, int height) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - overlay_time > OVERLAY_REFRESH && frame > 0) {
+            overlay_time = now;
+            overlay = overlayLines();
+        }
+        gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_CURRENT_BIT);
+        gl.glDisable(GL2.GL_LIGHTING);
+        gl.glDisable(GL2.GL_DEPTH_TEST);
+        gl.glColor3f(1f, 1f, 0.6f);
+        for (int i = 0; i < overlay.length; i++) {
+            gl.glWindowPos2i(8, height - 18 - 14 * i);
+            glut.glutBitmapString(GLUT.BITMAP_8_BY_13, overlay[i]);
+        }
+        gl.glPopAttrib();
+    }
+
+    private String[] overlayLines() {
+        int last = (int) ((frame - 1) % HISTORY);
+        String[] lines = new String[3 + num_sections];
+        lines[0] = String.format("frame %.2f ms  p50 %.2f  p95 %.2f  p99 %.2f  (%d frames)",
+                interval[last] / 1e6, percentile(50), percentile(95), percentile(99), size());
+        lines[1] = String.format("cpu %.2f ms  %d draw calls  %d triangles",
+                cpu[last] / 1e6, draw_calls[last], triangles[last]);
+        lines[2] = queries == null ? "section      cpu ms   (no GPU timer queries)" : "section      cpu ms   gpu ms";
+        for (int s = 0; s < num_sections; s++) {
+            double g = mean(section_gpu, s);
+            lines[3 + s] = String.format("%-12s %6.3f   %s", names[s], mean(section_cpu, s),
+                    g < 0 ? "-" : String.format("%6.3f", g));
+        }
+        return lines;
+    }
+
+    /* writes one row per recorded frame, oldest first, times in milliseconds */
+    public void exportCsv(String filename) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+            out.print("frame,frame_ms,cpu_ms,draw_calls,triangles");
+            for (int s = 0; s < num_sections; s++) {
+                out.print("," + csv(names[s] + "_cpu_ms") + "," + csv(names[s] + "_gpu_ms"));
+            }
+            out.println();
+            long first = frame - size();
+            for (long n = first; n < frame; n++) {
+                int f = (int) (n % HISTORY);
+                out.print(n + "," + interval[f] / 1e6 + "," + cpu[f] / 1e6 + "," + draw_calls[f] + "," + triangles[f]);
+                for (int s = 0; s < num_sections; s++) {
+                    long g = section_gpu[f * MAX_SECTIONS + s];
+                    out.print("," + section_cpu[f * MAX_SECTIONS + s] / 1e6 + "," + (g < 0 ? "" : String.valueOf(g / 1e6)));
+                }
+                out.println();
+            }
+        }
+    }
+
+    /* writes the percentiles and the mean of every section, in milliseconds */
+    public void exportJson(String filename) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+            out.println("{");
+            out.println("  \"frames\": " + size() + ",");
+            out.println("  \"gpu_timer_queries\": " + (queries != null) + ",");
+            out.println("  \"frame_ms\": {\"p50\": " + percentile(50) + ", \"p95\": " + percentile(95)
+                    + ", \"p99\": " + percentile(99) + "},");
+            long calls = 0, tris = 0;
+            for (int i = 0; i < size(); i++) {
+                calls += draw_calls[i];
+                tris += triangles[i];
+            }
+            int n = Math.max(1, size());
+            out.println("  \"draw_calls\": " + (double) calls / n + ",");
+            out.println("  \"triangles\": " + (double) tris / n + ",");
+            out.println("  \"sections\": {");
+            for (int s = 0; s < num_sections; s++) {
+                double g = mean(section_gpu, s);
+                out.println("    " + json(names[s]) + ": {\"cpu_ms\": " + mean(section_cpu, s)
+                        + ", \"gpu_ms\": " + (g < 0 ? "null" : String.valueOf(g)) + "}"
+                        + (s + 1 < num_sections ? "," : ""));
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    /* s as a CSV field, quoted if it holds a comma, quote or line break */
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    /* s as a JSON string */
+    private static String json(String s) {
+        StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    public void dispose() {
+        if (queries != null) {
+            gl.glDeleteQueries(queries.length, queries, 0);
+            queries = null;
+        }
+    }
+}
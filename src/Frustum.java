@@ -0,0 +1,68 @@
+/* This defines the Frustum class, the six planes of a view volume
+ * extracted from a combined projection * modelview matrix, with
+ * conservative visibility tests for bounding spheres and boxes.
+ * Planes are stored as (a, b, c, d) with unit normals pointing into
+ * the volume, so a point p is inside a plane when a*x + b*y + c*z + d >= 0.
+ */
+class Frustum {
+
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECT = 1;
+    public static final int INSIDE = 2;
+
+    /* left, right, bottom, top, near, far */
+    private final float[] planes = new float[24];
+
+    /* extracts the planes of m = projection * modelview, in the space m maps from */
+    public Frustum set(float[] m) {
+        for (int p = 0; p < 6; p++) {
+            int row = p / 2;
+            float sign = (p % 2 == 0) ? 1 : -1;
+            float a = m[3] + sign * m[row];
+            float b = m[7] + sign * m[4 + row];
+            float c = m[11] + sign * m[8 + row];
+            float d = m[15] + sign * m[12 + row];
+            float len = (float) Math.sqrt(a * a + b * b + c * c);
+            planes[p * 4] = a / len;
+            planes[p * 4 + 1] = b / len;
+            planes[p * 4 + 2] = c / len;
+            planes[p * 4 + 3] = d / len;
+        }
+        return this;
+    }
+
+    /* s = (x, y, z, radius); an infinite radius is never culled */
+    public int testSphere(float[] s) {
+        if (s[3] == Float.POSITIVE_INFINITY) {
+            return INTERSECT;
+        }
+        int result = INSIDE;
+        for (int p = 0; p < 24; p += 4) {
+            float d = planes[p] * s[0] + planes[p + 1] * s[1] + planes[p + 2] * s[2] + planes[p + 3];
+            if (d < -s[3]) {
+                return OUTSIDE;
+            }
+            if (d < s[3]) {
+                result = INTERSECT;
+            }
+        }
+        return result;
+    }
+
+    public int testBox(float[] min, float[] max) {
+        int result = INSIDE;
+        for (int p = 0; p < 24; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+            /* the corners farthest along and against the plane normal */
+            float far = a * (a >= 0 ? max[0] : min[0]) + b * (b >= 0 ? max[1] : min[1]) + c * (c >= 0 ? max[2] : min[2]) + d;
+            if (far < 0) {
+                return OUTSIDE;
+            }
+            float near = a * (a >= 0 ? min[0] : max[0]) + b * (b >= 0 ? min[1] : max[1]) + c * (c >= 0 ? min[2] : max[2]) + d;
+            if (near < 0) {
+                result = INTERSECT;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+import com.jogamp.opengl.GL2;
+
+/* This defines the GLRenderer class, the Renderer that replays command
+ * lists through a GL2 context. Material and polygon state go through a
+ * GLStateCache, and every command is timed by the FrameProfiler.
+ */
+class GLRenderer implements Renderer {
+
+    private final GL2 gl;
+    private final GLStateCache state;
+    private final FrameProfiler profiler;
+    private final float[] corner = new float[3];	// of the outline
+
+    public GLRenderer(GL2 gl, GLStateCache state, FrameProfiler profiler) {
+        this.gl = gl;
+        this.state = state;
+        this.profiler = profiler;
+    }
+
+    public void render(CommandList frame) {
+        int section = profiler.begin("clear");
+        gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+
+        state.resetCounters();
+        state.polygonMode(gl, frame.wireframe ? GL2.GL_LINE : GL2.GL_FILL);
+        state.shadeModel(gl, frame.flatshade ? GL2.GL_FLAT : GL2.GL_SMOOTH);
+        state.cullFace(gl, frame.cullface);
+        profiler.end(section);
+
+        frame.replay(gl, state, profiler);
+        if (frame.outline) {
+            outline(frame.view, frame.outline_min, frame.outline_max);
+        }
+    }
+
+    /* draws a world box in lines */
+    private void outline(float[] view, float[] min, float[] max) {
+        gl.glLoadMatrixf(view, 0);
+        gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_CURRENT_BIT);
+        gl.glDisable(GL2.GL_LIGHTING);
+        gl.glColor3f(1f, 1f, 0f);
+        gl.glBegin(GL2.GL_LINES);
+        for (int a = 0; a < 3; a++) {
+            /* the four edges along axis a */
+            int b = (a + 1) % 3, c = (a + 2) % 3;
+            for (int k = 0; k < 4; k++) {
+                float[] p = corner;
+                p[b] = (k & 1) == 0 ? min[b] : max[b];
+                p[c] = (k & 2) == 0 ? min[c] : max[c];
+                p[a] = min[a];
+                gl.glVertex3fv(p, 0);
+                p[a] = max[a];
+                gl.glVertex3fv(p, 0);
+            }
+        }
+        gl.glEnd();
+        gl.glPopAttrib();
+    }
+}
@@ -0,0 +1,78 @@
+import com.jogamp.opengl.GL2;
+
+/* This defines the GLStateCache class, which remembers the GL state the
+ * renderer last set (material, polygon mode, shade model, face culling)
+ * and skips calls that would set it to what it already is.
+ * GL state outlives a frame, so the cache is only invalidated when the
+ * context is new or something set state behind its back.
+ * calls and skipped count the state calls made and avoided since
+ * resetCounters().
+ */
+class GLStateCache {
+
+    private Material material;		// null when unknown
+    private int polygonMode = -1;
+    private int shadeModel = -1;
+    private int cullFace = -1;			// 0 disabled, 1 enabled, -1 unknown
+
+    public int calls;
+    public int skipped;
+
+    /* forgets everything, e.g. for a new context */
+    public void invalidate() {
+        material = null;
+        polygonMode = shadeModel = cullFace = -1;
+    }
+
+    public void resetCounters() {
+        calls = skipped = 0;
+    }
+
+    public void material(GL2 gl, Material m) {
+        if (m == null) {
+            return;
+        }
+        int n = m.apply(gl, material);
+        calls += n;
+        skipped += 3 - n;
+        material = m;
+    }
+
+    public void polygonMode(GL2 gl, int mode) {
+        if (mode == polygonMode) {
+            skipped++;
+            return;
+        }
+        gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, mode);
+        polygonMode = mode;
+        calls++;
+    }
+
+    public void shadeModel(GL2 gl, int model) {
+        if (model == shadeModel) {
+            skipped++;
+            return;
+        }
+        gl.glShadeModel(model);
+        shadeModel = model;
+        calls++;
+    }
+
+    public void cullFace(GL2 gl, boolean enable) {
+        if (cullFace == (enable ? 1 : 0)) {
+            skipped++;
+            return;
+        }
+        if (enable) {
+            gl.glEnable(GL2.GL_CULL_FACE);
+        } else {
+            gl.glDisable(GL2.GL_CULL_FACE);
+        }
+        cullFace = enable ? 1 : 0;
+        calls++;
+    }
+
+    public String toString() {
+        return calls + " state calls, " + skipped + " skipped";
+    }
+}
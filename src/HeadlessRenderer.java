@@ -0,0 +1,155 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
+import com.jogamp.opengl.GLProfile;
+
+/* This defines the HeadlessRenderer class, which renders the scene
+ * without a window and saves the frames as images:
+ *
+ *     java Hierarchical --headless 1920x1080 --frames 120 --out frames
+ *
+ * The scene is drawn into an offscreen drawable (a framebuffer object, or
+ * a pbuffer where those are missing) and read back by a FrameCapture.
+ * With --software [THREADS] it is drawn by a SoftwareRenderer instead,
+ * which needs no GL driver, and the run reports the rasterizer's times.
+ * --scene FILE reads the scene from FILE instead of scene.json (see
+ * SceneFile). --stream FILE adds the model of an .obj file of any size, loaded in
+ * clusters as they come into view (see ClusterStore); the run reports
+ * how many were loaded.
+ * Every model is loaded before the first frame, and the animation advances
+ * one tick per frame, so a run always writes the same images.
+ */
+class HeadlessRenderer {
+
+    static final int DEFAULT_WIDTH = 1280, DEFAULT_HEIGHT = 720;
+    static final int DEFAULT_FRAMES = 60;
+
+    public static void main(String[] args) {
+        int width = DEFAULT_WIDTH, height = DEFAULT_HEIGHT;
+        int frames = DEFAULT_FRAMES;
+        File out = new File("frames");
+        int software = 0;		// threads of the SoftwareRenderer, 0 for GL
+        String sceneFile = "scene.json";
+        List<String> streams = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--headless") && i + 1 < args.length && args[i + 1].indexOf('x') > 0) {
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else if (args[i].equals("--frames") && i + 1 < args.length) {
+                    frames = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--out") && i + 1 < args.length) {
+                    out = new File(args[++i]);
+                } else if (args[i].equals("--software")) {
+                    software = Runtime.getRuntime().availableProcessors();
+                    if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        software = Integer.parseInt(args[++i]);
+                    }
+                } else if (args[i].equals("--scene") && i + 1 < args.length) {
+                    sceneFile = args[++i];
+                } else if (args[i].equals("--stream") && i + 1 < args.length) {
+                    streams.add(args[++i]);
+                } else if (!args[i].equals("--headless")) {
+                    System.out.println("Unknown option " + args[i]);
+                    usage();
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Bad number: " + e.getMessage());
+            usage();
+            return;
+        }
+        if (width <= 0 || height <= 0 || frames <= 0 || software < 0) {
+            usage();
+            return;
+        }
+        if (software > 0) {
+            renderSoftware(width, height, frames, out, software, sceneFile, streams);
+        } else {
+            render(width, height, frames, out, sceneFile, streams);
+        }
+        System.exit(0);		// JOGL and AWT may leave threads that are not daemons; ours all are
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java Hierarchical --headless [WIDTHxHEIGHT] [--frames N] [--out DIRECTORY] [--software [THREADS]] [--scene FILE] [--stream FILE]...");
+    }
+
+    public static void render(int width, int height, int frames, File out, String sceneFile, List<String> streams) {
+        GLProfile profile = GLProfile.getMaxFixedFunc(true);
+        GLCapabilities caps = new GLCapabilities(profile);
+        caps.setOnscreen(false);
+        caps.setDoubleBuffered(false);
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, caps, null, width, height);
+
+        Hierarchical scene = new Hierarchical(drawable, AnimationEngine.TICK);
+        scene.openScene(sceneFile);		// starts loading the models
+        for (String filename : streams) {
+            scene.stream(filename);
+        }
+        scene.awaitModels();
+        final FrameCapture capture = new FrameCapture(out);
+        drawable.addGLEventListener(capture);	// after the scene, so it reads the finished frame
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            drawable.display();
+        }
+        drawable.invoke(true, (GLAutoDrawable d) -> {
+            capture.flush(d);
+            return true;
+        });
+        capture.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        drawable.destroy();
+        System.out.println(String.format("Wrote %d of %d frames (%dx%d) to %s in %.2f s, %.1f frames per second.",
+                capture.getWritten(), frames, width, height, out, seconds, frames / seconds));
+        if (!streams.isEmpty()) {
+            scene.printMeshes();
+        }
+    }
+
+    /* renders on the CPU with threads threads */
+    public static void renderSoftware(int width, int height, int frames, File out, int threads,
+                                      String sceneFile, List<String> streams) {
+        Hierarchical scene = new Hierarchical(width, height, AnimationEngine.TICK);
+        scene.openScene(sceneFile);
+        for (String filename : streams) {
+            scene.stream(filename);
+        }
+        scene.awaitModels();
+        SoftwareRenderer renderer = new SoftwareRenderer(width, height, threads);
+        FrameCapture capture = new FrameCapture(out);
+
+        long start = System.nanoTime();
+        long vertex = 0, setup = 0, raster = 0, triangles = 0, drawn = 0;
+        for (int i = 0; i < frames; i++) {
+            scene.render(renderer);
+            vertex += renderer.vertex_nanos;
+            setup += renderer.setup_nanos;
+            raster += renderer.raster_nanos;
+            triangles += renderer.triangles;
+            drawn += renderer.drawn;
+            capture.save(renderer.toImage());
+        }
+        capture.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Wrote %d of %d frames (%dx%d) to %s in %.2f s, %.1f frames per second.",
+                capture.getWritten(), frames, width, height, out, seconds, frames / seconds));
+        System.out.println(String.format("Software rendering on %d threads: %.2f ms vertices, %.2f ms setup, "
+                        + "%.2f ms raster per frame; %.1f M triangles per second submitted, %.1f M drawn.",
+                threads, vertex / 1e6 / frames, setup / 1e6 / frames, raster / 1e6 / frames,
+                triangles / ((vertex + setup + raster) / 1e9) / 1e6, drawn / ((vertex + setup + raster) / 1e9) / 1e6));
+        if (!streams.isEmpty()) {
+            scene.printMeshes();
+        }
+    }
+}
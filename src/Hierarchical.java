@@ -5,32 +5,44 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.glu.GLU;
 import com.jogamp.opengl.util.gl2.GLUT;
 import com.jogamp.opengl.util.FPSAnimator;
-import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.nativewindow.ScalableSurface;
 
 import javax.swing.JFrame;
 import javax.vecmath.Point3f;
-import javax.vecmath.Vector3f;
-
-import java.util.ArrayList;
 
-class Hierarchical extends JFrame implements GLEventListener, KeyListener, MouseListener, MouseMotionListener, ActionListener {
+class Hierarchical implements GLEventListener, KeyListener, MouseListener, MouseMotionListener, ActionListener {
 
     /* This defines the objModel class, which takes care
      * of loading a triangular mesh from an obj file,
      * estimating per vertex average normal,
-     * and displaying the mesh.
+     * and displaying the mesh, or one of its simplified
+     * levels of detail when it is small on screen.
      */
-    class objModel {
+    class objModel implements SceneNode.Drawable {
 
         public FloatBuffer vertexBuffer;
         public IntBuffer faceBuffer;
@@ -38,156 +50,361 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
         public Point3f center;
         public int num_verts;		// number of vertices
         public int num_faces;		// number of triangle faces
+        public final float[] bounds_min = new float[3];
+        public final float[] bounds_max = new float[3];
+
+        public CompletableFuture<Mesh> loading;	// completes when the mesh has been read
+        private final MeshManager.Handle resource;	// the shared mesh, held until close()
+        private final Runnable evict = this::release;	// registered with the resource until close()
+        private volatile boolean loaded = false;
+
+        /* simplified versions, each with about half the faces of the one before */
+        public CompletableFuture<Mesh[]> levels = CompletableFuture.completedFuture(new Mesh[0]);
+        private volatile objModel[] lods = new objModel[0];
+        private CompletableFuture<?> done;		// completes after the callbacks below have run
+        private final LodSelector lod = new LodSelector();
+
+        /* the triangles of the full-detail mesh for picking, built in the background */
+        private CompletableFuture<MeshBVH> bvh;
+
+        /* the mesh in the quantized layout, or null for floats */
+        private Mesh mesh;
+        private volatile QuantizedMesh packed;
+        private Buffer packed_normals;		// normals expanded for GL
+        private final String name;
+        private final boolean announce;		// see the constructor
+
+        /* GPU copies of the mesh, created on the first draw after loading */
+        private int[] buffers;		// vertex, normal and index buffer objects, null for client arrays
+        private int vao;			// vertex array object, 0 if not available
+        private boolean uploaded = false;
+        private long gpu_bytes;		// reported to the MeshManager
 
         public void Draw() {
-            vertexBuffer.rewind();
-            normalBuffer.rewind();
-            faceBuffer.rewind();
-            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
-            gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+            if (!loaded) {
+                /* draw the unit box the mesh will fill until it has been loaded */
+                if (!loading.isCompletedExceptionally()) {
+                    glut.glutWireCube(1.f);
+                }
+                return;
+            }
+            objModel model = detail();
+            model.resource.touch();
+            model.Draw(0, model.num_faces);
+        }
 
-            gl.glVertexPointer(3, GL2.GL_FLOAT, 0, vertexBuffer);
-            gl.glNormalPointer(GL2.GL_FLOAT, 0, normalBuffer);
+        public void draw(GL2 gl) {
+            Draw();
+        }
 
-            gl.glDrawElements(GL2.GL_TRIANGLES, num_faces * 3, GL2.GL_UNSIGNED_INT, faceBuffer);
+        public void draw(Renderer.MeshSink out, Material material) {
+            if (loaded) {
+                objModel model = detail();
+                model.resource.touch();
+                out.mesh(model.mesh, 0, model.num_faces, material);
+            }
+        }
 
-            gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
-            gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+        public void setDetail(float pixels) {
+            lod.select(pixels, lods.length);
         }
 
-        public objModel(String filename) {
-            /* load a triangular mesh model from a .obj file */
-            BufferedReader in = null;
-            try {
-                in = new BufferedReader(new FileReader(filename));
-            } catch (IOException e) {
-                System.out.println("Error reading from file " + filename);
-                System.exit(0);
-            }
+        /* the selected level of detail, or 0 while that level is not ready */
+        public int getDetailLevel() {
+            objModel[] l = lods;
+            int level = Math.min(lod.getLevel(), l.length);
+            return level > 0 && l[level - 1].loaded ? level : 0;
+        }
 
-            center = new Point3f();
-            float x, y, z;
-            int v1, v2, v3;
-            float minx, miny, minz;
-            float maxx, maxy, maxz;
-            float bbx, bby, bbz;
-            minx = miny = minz = 10000.f;
-            maxx = maxy = maxz = -10000.f;
-
-            String line;
-            String[] tokens;
-            ArrayList<Point3f> input_verts = new ArrayList<Point3f>();
-            ArrayList<Integer> input_faces = new ArrayList<Integer>();
-            ArrayList<Vector3f> input_norms = new ArrayList<Vector3f>();
-            try {
-                while ((line = in.readLine()) != null) {
-                    if (line.length() == 0) {
-                        continue;
-                    }
-                    switch (line.charAt(0)) {
-                        case 'v':
-                            tokens = line.split("[ ]+");
-                            x = Float.valueOf(tokens[1]);
-                            y = Float.valueOf(tokens[2]);
-                            z = Float.valueOf(tokens[3]);
-                            minx = Math.min(minx, x);
-                            miny = Math.min(miny, y);
-                            minz = Math.min(minz, z);
-                            maxx = Math.max(maxx, x);
-                            maxy = Math.max(maxy, y);
-                            maxz = Math.max(maxz, z);
-                            input_verts.add(new Point3f(x, y, z));
-                            center.add(new Point3f(x, y, z));
-                            break;
-                        case 'f':
-                            tokens = line.split("[ ]+");
-                            v1 = Integer.valueOf(tokens[1]) - 1;
-                            v2 = Integer.valueOf(tokens[2]) - 1;
-                            v3 = Integer.valueOf(tokens[3]) - 1;
-                            input_faces.add(v1);
-                            input_faces.add(v2);
-                            input_faces.add(v3);
-                            break;
-                        default:
-                            continue;
-                    }
-                }
-                in.close();
-            } catch (IOException e) {
-                System.out.println("Unhandled error while reading input file.");
+        /* the model of getDetailLevel() */
+        public objModel detail() {
+            int level = getDetailLevel();
+            return level == 0 ? this : lods[level - 1];
+        }
+
+        public MeshBVH getBVH() {
+            return bvh != null && bvh.isDone() && !bvh.isCompletedExceptionally() ? bvh.join() : null;
+        }
+
+        public boolean getBounds(float[] min, float[] max) {
+            if (loading.isCompletedExceptionally()) {
+                return false;
+            }
+            for (int i = 0; i < 3; i++) {
+                /* until it is loaded the model is a unit box */
+                min[i] = loaded ? bounds_min[i] : -0.5f;
+                max[i] = loaded ? bounds_max[i] : 0.5f;
             }
+            return true;
+        }
 
-            System.out.println("Read " + input_verts.size()
-                    + " vertices and " + input_faces.size() + " faces.");
+        /* draws count faces starting at face first */
+        public void Draw(int first, int count) {
+            if (!loaded) {
+                return;
+            }
+            if (!uploaded) {
+                upload();
+            }
+            QuantizedMesh q = packed;
+            if (q != null) {
+                /* the positions are integers in a box around the origin */
+                gl.glPushMatrix();
+                gl.glTranslatef(q.offset[0], q.offset[1], q.offset[2]);
+                gl.glScalef(q.scale, q.scale, q.scale);
+            }
+            stats.drawCalls++;
+            stats.triangles += count;
+            int indexType = q == null ? GL2.GL_UNSIGNED_INT : q.glIndexType();
+            long offset = first * 3L * (q == null ? 4 : q.indexBytes());
+            if (vao != 0) {
+                gl.glBindVertexArray(vao);
+                gl.glDrawElements(GL2.GL_TRIANGLES, count * 3, indexType, offset);
+                gl.glBindVertexArray(0);
+            } else if (buffers != null) {
+                bindBuffers();
+                gl.glDrawElements(GL2.GL_TRIANGLES, count * 3, indexType, offset);
+                gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+                gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+                gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+                gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+            } else {
+                /* fixed-function contexts without buffer objects draw from client memory */
+                Buffer vertices = q == null ? vertexBuffer : q.positions;
+                Buffer normals = q == null ? normalBuffer : packed_normals;
+                Buffer faces = q == null ? faceBuffer : q.indices;
+                vertices.rewind();
+                normals.rewind();
+                faces.position(first * 3);
+                gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+                gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+
+                gl.glVertexPointer(3, q == null ? GL2.GL_FLOAT : GL2.GL_SHORT, 0, vertices);
+                gl.glNormalPointer(q == null ? GL2.GL_FLOAT : q.glNormalType(), 0, normals);
+
+                gl.glDrawElements(GL2.GL_TRIANGLES, count * 3, indexType, faces);
+
+                gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+                gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+            }
+            if (q != null) {
+                gl.glPopMatrix();
+            }
+        }
 
-            center.scale(1.f / (float) input_verts.size());
+        /* copies the mesh into buffer objects, and records their bindings
+         * in a vertex array object where the context has them
+         */
+        private void upload() {
+            uploaded = true;
+            if (!gl.isFunctionAvailable("glGenBuffers")) {
+                return;
+            }
+            QuantizedMesh q = packed;
+            Buffer vertices = q == null ? vertexBuffer : q.positions;
+            Buffer normals = q == null ? normalBuffer : packed_normals;
+            Buffer faces = q == null ? faceBuffer : q.indices;
+            long vertexBytes = num_verts * 3L * (q == null ? 4 : 2);
+            long normalBytes = num_verts * 3L * (q == null ? 4 : q.normalBits.bytes);
+            long faceBytes = num_faces * 3L * (q == null ? 4 : q.indexBytes());
+            buffers = new int[3];
+            gl.glGenBuffers(3, buffers, 0);
+            vertices.rewind();
+            normals.rewind();
+            faces.rewind();
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, vertexBytes, vertices, GL2.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[1]);
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, normalBytes, normals, GL2.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+            gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, faceBytes, faces, GL2.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+            if (gl.isFunctionAvailable("glGenVertexArrays")) {
+                int[] names = new int[1];
+                gl.glGenVertexArrays(1, names, 0);
+                vao = names[0];
+                gl.glBindVertexArray(vao);
+                bindBuffers();
+                gl.glBindVertexArray(0);
+                gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+                gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+            }
+            gpu_bytes = vertexBytes + normalBytes + faceBytes;
+            resource.addGpuBytes(gpu_bytes);
+        }
 
-            bbx = maxx - minx;
-            bby = maxy - miny;
-            bbz = maxz - minz;
-            float bbmax = Math.max(bbx, Math.max(bby, bbz));
+        private void bindBuffers() {
+            QuantizedMesh q = packed;
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+            gl.glVertexPointer(3, q == null ? GL2.GL_FLOAT : GL2.GL_SHORT, 0, 0);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[1]);
+            gl.glNormalPointer(q == null ? GL2.GL_FLOAT : q.glNormalType(), 0, 0);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+        }
 
-            for (Point3f p : input_verts) {
+        /* switches between the float layout (null) and a quantized one;
+         * release() the GPU copies first, they are made again on the next draw
+         */
+        public void setLayout(QuantizedMesh.NormalBits normalBits) {
+            Mesh m = mesh;
+            if (m == null) {
+                return;		// setMesh() will pick the layout up
+            }
+            if (normalBits == null) {
+                packed = null;
+                packed_normals = null;
+            } else if (packed == null || packed.normalBits != normalBits) {
+                QuantizedMesh q = QuantizedMesh.encode(m, normalBits);
+                packed_normals = q.glNormals();
+                packed = q;
+                System.out.println("Packed " + name + " (" + normalBits + "): " + q.report(m) + ".");
+            }
+        }
 
-                p.x = (p.x - center.x) / bbmax;
-                p.y = (p.y - center.y) / bbmax;
-                p.z = (p.z - center.z) / bbmax;
+        /* deletes the GPU copies; the mesh is uploaded again when next drawn */
+        public void release() {
+            if (buffers != null) {
+                gl.glDeleteBuffers(3, buffers, 0);
+            }
+            if (vao != 0) {
+                gl.glDeleteVertexArrays(1, new int[]{vao}, 0);
             }
-            center.x = center.y = center.z = 0.f;
+            forget();
+        }
+
+        /* drops the names of objects that died with their context */
+        public void forget() {
+            buffers = null;
+            vao = 0;
+            uploaded = false;
+            resource.addGpuBytes(-gpu_bytes);
+            gpu_bytes = 0;
+        }
 
-            /* estimate per vertex average normal */
-            int i;
-            for (i = 0; i < input_verts.size(); i++) {
-                input_norms.add(new Vector3f());
+        /* gives the mesh and its levels back to the MeshManager, which may
+         * free them; call release() first and do not draw the model again
+         */
+        public void close() {
+            models.remove(this);
+            loaded = false;
+            vertexBuffer = normalBuffer = null;
+            faceBuffer = null;
+            mesh = null;
+            packed = null;
+            packed_normals = null;
+            for (objModel level : lods) {
+                level.close();
             }
+            lods = new objModel[0];
+            resource.removeGpuEvict(evict);
+            resource.release();
+        }
 
-            Vector3f e1 = new Vector3f();
-            Vector3f e2 = new Vector3f();
-            Vector3f tn = new Vector3f();
-            for (i = 0; i < input_faces.size(); i += 3) {
-                v1 = input_faces.get(i + 0);
-                v2 = input_faces.get(i + 1);
-                v3 = input_faces.get(i + 2);
+        public objModel(String filename) {
+            this(filename, filename);
+        }
 
-                e1.sub(input_verts.get(v2), input_verts.get(v1));
-                e2.sub(input_verts.get(v3), input_verts.get(v1));
-                tn.cross(e1, e2);
-                input_norms.get(v1).add(tn);
+        /* a model of a file that shares its mesh with other models under key */
+        public objModel(String filename, String key) {
+            /* load a triangular mesh model from a .obj file in the background, once for all its users */
+            this(meshes.acquire(key, () -> loader.load(filename)), filename);
+            setLevels(loader.loadLevels(filename, loading), filename);
+            bvh = loading.thenApplyAsync(MeshBVH::new);
+        }
 
-                e1.sub(input_verts.get(v3), input_verts.get(v2));
-                e2.sub(input_verts.get(v1), input_verts.get(v2));
-                tn.cross(e1, e2);
-                input_norms.get(v2).add(tn);
+        /* a model of a generated shape, made once for all models with the same key */
+        public objModel(String key, Supplier<Mesh> generator) {
+            this(meshes.acquire(key, () -> loader.generate(generator)), key, false);
+            bvh = loading.thenApplyAsync(MeshBVH::new);
+        }
 
-                e1.sub(input_verts.get(v1), input_verts.get(v3));
-                e2.sub(input_verts.get(v2), input_verts.get(v3));
-                tn.cross(e1, e2);
-                input_norms.get(v3).add(tn);
-            }
+        /* a model for a mesh and its simplified levels that other tasks are building */
+        public objModel(CompletableFuture<Mesh> source, CompletableFuture<Mesh[]> levels, String name) {
+            this(source, name);
+            setLevels(levels, name);
+            bvh = loading.thenApplyAsync(MeshBVH::new);
+        }
 
-            /* convert to buffers to improve display speed */
-            for (i = 0; i < input_verts.size(); i++) {
-                input_norms.get(i).normalize();
-            }
+        /* a model for a mesh that some other task is building */
+        public objModel(CompletableFuture<Mesh> source, String name) {
+            this(meshes.adopt(name, source), name);
+        }
 
-            vertexBuffer = Buffers.newDirectFloatBuffer(input_verts.size() * 3);
-            normalBuffer = Buffers.newDirectFloatBuffer(input_verts.size() * 3);
-            faceBuffer = Buffers.newDirectIntBuffer(input_faces.size());
+        private objModel(MeshManager.Handle resource, final String name) {
+            this(resource, name, true);
+        }
 
-            for (i = 0; i < input_verts.size(); i++) {
-                vertexBuffer.put(input_verts.get(i).x);
-                vertexBuffer.put(input_verts.get(i).y);
-                vertexBuffer.put(input_verts.get(i).z);
-                normalBuffer.put(input_norms.get(i).x);
-                normalBuffer.put(input_norms.get(i).y);
-                normalBuffer.put(input_norms.get(i).z);
-            }
+        /* a model for a mesh the handle is loading; unless announce is set,
+         * as for the many clusters of a streamed model, which know their
+         * bounds already, it loads quietly and leaves the scene bounds alone
+         */
+        private objModel(MeshManager.Handle resource, final String name, boolean announce) {
+            this.name = name;
+            this.announce = announce;
+            this.resource = resource;
+            resource.onGpuEvict(evict);
+            center = new Point3f();
+            models.add(this);
+            loading = resource.mesh;
+            done = loading.whenComplete((mesh, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    System.out.println("Error reading from file " + name + ": " + cause.getMessage());
+                } else {
+                    if (announce) {
+                        System.out.println("Read " + mesh.num_verts + " vertices and " + mesh.num_faces
+                                + " faces from " + name + " (" + mesh.bytesPerVertex() + " bytes per vertex).");
+                    }
+                    setMesh(mesh);
+                    if (canvas != null) {
+                        canvas.repaint();
+                    }
+                }
+                if (error != null && announce) {
+                    bounds_changed = true;
+                }
+            });
+        }
 
-            for (i = 0; i < input_faces.size(); i++) {
-                faceBuffer.put(input_faces.get(i));
+        /* the buffers improve display speed */
+        private void setMesh(Mesh mesh) {
+            /* the mesh is already centered at the origin */
+            vertexBuffer = mesh.vertexBuffer;
+            normalBuffer = mesh.normalBuffer;
+            faceBuffer = mesh.faceBuffer;
+            num_verts = mesh.num_verts;
+            num_faces = mesh.num_faces;
+            System.arraycopy(mesh.min, 0, bounds_min, 0, 3);
+            System.arraycopy(mesh.max, 0, bounds_max, 0, 3);
+            this.mesh = mesh;
+            setLayout(vertex_layout);
+            loaded = true;
+            if (announce) {
+                bounds_changed = true;
             }
-            num_verts = input_verts.size();
-            num_faces = input_faces.size() / 3;
+        }
+
+        private void setLevels(CompletableFuture<Mesh[]> source, final String name) {
+            levels = source;
+            done = CompletableFuture.allOf(done, levels.whenComplete((meshes, error) -> {
+                if (error != null) {
+                    /* a mesh that failed to load has already said so */
+                    if (!loading.isCompletedExceptionally()) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        System.out.println("Error simplifying " + name + ": " + cause.getMessage());
+                    }
+                    return;
+                }
+                objModel[] level_models = new objModel[meshes.length];
+                for (int k = 0; k < meshes.length; k++) {
+                    level_models[k] = new objModel(CompletableFuture.completedFuture(meshes[k]), name + " (LOD " + (k + 1) + ")");
+                }
+                lods = level_models;
+            }));
         }
     }
 
@@ -213,6 +430,17 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
             case 'F':
                 flatshade = !flatshade;
                 break;
+            case 'c':
+            case 'C':
+                /* floats, then 16-bit normals, then 8-bit normals */
+                if (vertex_layout == null) {
+                    vertex_layout = QuantizedMesh.NormalBits.OCT16;
+                } else if (vertex_layout == QuantizedMesh.NormalBits.OCT16) {
+                    vertex_layout = QuantizedMesh.NormalBits.OCT8;
+                } else {
+                    vertex_layout = null;
+                }
+                break;
             case 'a':
             case 'A':
                 if (animator.isAnimating()) {
@@ -220,14 +448,40 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
                 } else {
                     animator.start();
                 }
+                animation.setPaused(!animator.isAnimating());
+                last_frame = 0;
+                break;
+            case 't':
+            case 'T':
+                /* simulate on a thread of its own, or else in display() */
+                if (animation.isThreaded()) {
+                    animation.stop();
+                } else {
+                    animation.start();
+                }
+                break;
+            case 'p':
+            case 'P':
+                /* time every frame and show the figures on screen */
+                profiler.setEnabled(!profiler.isEnabled());
+                break;
+            case 'x':
+            case 'X':
+                exportProfile();
+                break;
+            case 'm':
+            case 'M':
+                printMeshes();
                 break;
             case '+':
             case '=':
                 animation_speed *= 1.2f;
+                setAnimationSpeed();
                 break;
             case '-':
             case '_':
                 animation_speed /= 1.2;
+                setAnimationSpeed();
                 break;
             default:
                 break;
@@ -236,8 +490,10 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     }
 
     /* GL, display, model transformation, and mouse control variables */
-    private final GLCanvas canvas;
+    private final JFrame frame;			// null when rendering offscreen
+    private final GLCanvas canvas;		// null when rendering offscreen
     private GL2 gl;
+    private GLRenderer renderer;		// of the current context
     private final GLU glu = new GLU();
     private final GLUT glut = new GLUT();
     private FPSAnimator animator;
@@ -246,42 +502,223 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     private boolean wireframe = false;
     private boolean cullface = true;
     private boolean flatshade = false;
+    private volatile QuantizedMesh.NormalBits vertex_layout = null;	// null for float vertices
+    private QuantizedMesh.NormalBits drawn_layout = null;
 
     private float xpos = 0, ypos = 0, zpos = 0;
     private float centerx, centery, centerz;
     private float roth = 0, rotv = 0;
     private float znear, zfar;
     private int mouseX, mouseY, mouseButton;
+    private volatile boolean pick_requested = false;	// a click waiting for the next frame to be built
+    private volatile int pickX, pickY;
+    private SceneNode picked;			// outlined until the next pick
     private float motionSpeed, rotateSpeed;
     private float animation_speed = .3f;
 
-    /* === YOUR WORK HERE === */
-    /* Define more models you need for constructing your scene */
-    private objModel statue_model = new objModel("statue.obj");
-    private objModel axe_model = new objModel("axe.obj");
-    private objModel male_model = new objModel("male.obj");
-    private objModel female_model = new objModel("female.obj");
-    private objModel dragon_model = new objModel("dragon.obj");
-    private objModel bird_model = new objModel("bird.obj");
-    private objModel bunny_model = new objModel("bunny.obj");
-    private objModel tree_conical_model = new objModel("tree_conical.obj");
-
-    private float axe_rotateT = 0.f;
-    private float sun_rotateT = 0.f;
-    private float dragon_rotateT = 0.f;
-    private float statue_rotateT = 0.f;
-    private float bird_rotateT = 0.f;
-    private float bunny_Xlimit = 0;
-    private float sun_Xlimit = 0;
-    private float axe_Ylimit = 0;
-    private float bird_Ylimit = 0;
-    private float female_Zlimit = 0;
-
-    private boolean axe_down = true;
-    private boolean bird_down = true;
-    private boolean female_far = true;
-    private boolean bunny_left = true;
-    private boolean sun_left = true;
+    /* models are read in parallel, each one is drawn as soon as it is ready */
+    private final ModelLoader loader = new ModelLoader();
+
+    /* meshes shared by path; the least recently drawn lose their GPU copies over the budget */
+    private final MeshManager meshes = new MeshManager(loader);
+    private final CopyOnWriteArrayList<objModel> models = new CopyOnWriteArrayList<objModel>();	// levels of detail are added by loader threads
+
+    /* the scene is read from a SceneFile, see openScene(). The models are
+     * made on the thread that reads the file, and load in the background;
+     * the next prepareFrame() puts them into the scene graph, and the
+     * models that were dropped are closed once no frame in flight draws them
+     */
+    private File scene_file;
+    private SceneWatcher scene_watcher;
+    private final ConcurrentLinkedQueue<SceneChange> scene_changes = new ConcurrentLinkedQueue<SceneChange>();
+    private final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<Retired>();
+    private long built_frames;		// counted by prepareFrame()
+    private long scene_version;		// changes applied, counted by prepareFrame()
+    private long drawn_scene, profiled_scene;	// the scene_version drawn last, and the one the profiler's sections are of
+
+    /* what the last reading of the file made, for prepareScene() */
+    private final Object scene_lock = new Object();
+    private SceneFile scene_read;
+    private HashMap<String, SceneModel> scene_models = new HashMap<String, SceneModel>();
+    private HashMap<String, Material> scene_materials = new HashMap<String, Material>();
+    private HashMap<String, AnimationTrack> scene_tracks = new HashMap<String, AnimationTrack>();
+    private final HashMap<String, Integer> file_versions = new HashMap<String, Integer>();	// writes of each model file
+    private int batches_made;
+
+    /* what the scene graph was last given, for prepareFrame() */
+    private volatile SceneChange scene_applied;
+    private final HashMap<String, SceneNode> scene_nodes = new HashMap<String, SceneNode>();
+    private final HashMap<String, SceneFile.NodeSpec> scene_node_specs = new HashMap<String, SceneFile.NodeSpec>();
+    private ArrayList<PlacedNode> scene_placed = new ArrayList<PlacedNode>();
+
+    /* a model of the scene file: what nodes draw, and what to close when it is dropped */
+    private static final class SceneModel {
+        final SceneNode.Drawable drawable;
+        final objModel model;
+
+        SceneModel(SceneNode.Drawable drawable, objModel model) {
+            this.drawable = drawable;
+            this.model = model;
+        }
+    }
+
+    /* a reading of the scene file, made and waiting for prepareFrame() */
+    private static final class SceneChange {
+        final SceneFile file;
+        final HashMap<String, SceneNode.Drawable> drawables = new HashMap<String, SceneNode.Drawable>();
+        final HashMap<String, Material> materials;
+        final HashMap<String, AnimationTrack> tracks;
+        final ArrayList<AnimationTrack> added = new ArrayList<AnimationTrack>(), removed = new ArrayList<AnimationTrack>();
+        final ArrayList<objModel> dropped = new ArrayList<objModel>();
+        int models_changed, materials_changed, tracks_changed;
+
+        SceneChange(SceneFile file, HashMap<String, Material> materials, HashMap<String, AnimationTrack> tracks) {
+            this.file = file;
+            this.materials = materials;
+            this.tracks = tracks;
+        }
+    }
+
+    /* a node of the scene file and the steps of its local transform */
+    private static final class PlacedNode {
+        final SceneNode node;
+        final SceneFile.Step[] transform;
+
+        PlacedNode(SceneNode node, SceneFile.Step[] transform) {
+            this.node = node;
+            this.transform = transform;
+        }
+    }
+
+    /* a model dropped by the scene file in the frame built as number frame */
+    private static final class Retired {
+        final objModel model;
+        final long frame;
+
+        Retired(objModel model, long frame) {
+            this.model = model;
+            this.frame = frame;
+        }
+    }
+
+    /* copies of a model drawn as one MeshBatch, one submission per
+     * material, with one more batch for every simplified level of the model
+     */
+    private class BatchModel implements SceneNode.Drawable {
+        private final CompletableFuture<MeshBatch> batch;
+        private final CompletableFuture<MeshBatch[]> level_batches;
+        final objModel model;
+
+        BatchModel(String name, objModel source, float[][] transforms, Material material) {
+            final Material[] materials = new Material[transforms.length];
+            Arrays.fill(materials, material);
+            batch = source.loading.thenApplyAsync(mesh -> MeshBatch.build(mesh, transforms, materials));
+            level_batches = source.levels.thenApplyAsync(levels -> {
+                MeshBatch[] batches = new MeshBatch[levels.length];
+                for (int k = 0; k < levels.length; k++) {
+                    batches[k] = MeshBatch.build(levels[k], transforms, materials);
+                }
+                return batches;
+            });
+            model = new objModel(batch.thenApply(b -> b.mesh), level_batches.thenApply(batches -> {
+                Mesh[] meshes = new Mesh[batches.length];
+                for (int k = 0; k < batches.length; k++) {
+                    meshes[k] = batches[k].mesh;
+                }
+                return meshes;
+            }), name);
+        }
+
+        /* the batch of the level the model draws, or null while it is not built */
+        private MeshBatch current() {
+            int level = model.getDetailLevel();
+            return level == 0 ? batch.getNow(null) : level_batches.getNow(null)[level - 1];
+        }
+
+        public void draw(GL2 gl) {
+            MeshBatch b = current();
+            objModel m = model.detail();
+            if (b != null) {
+                for (int g = 0; g < b.groups(); g++) {
+                    state.material(gl, b.groupMaterial[g]);
+                    m.Draw(b.groupFirst[g], b.groupCount[g]);
+                }
+            }
+        }
+
+        public void draw(Renderer.MeshSink out, Material material) {
+            MeshBatch b = current();
+            objModel m = model.detail();
+            if (b != null) {
+                for (int g = 0; g < b.groups(); g++) {
+                    out.mesh(m.mesh, b.groupFirst[g], b.groupCount[g], b.groupMaterial[g]);
+                }
+            }
+        }
+
+        public boolean getBounds(float[] min, float[] max) {
+            return model.getBounds(min, max) && model.loaded;
+        }
+
+        public void setDetail(float pixels) {
+            model.setDetail(pixels);
+        }
+
+        public MeshBVH getBVH() {
+            return model.getBVH();
+        }
+    }
+
+    /* models too large for memory, see stream(); their clusters are loaded
+     * as they come into view, within STREAM_BUDGET bytes for each model
+     */
+    static final long STREAM_BUDGET = 256L << 20;
+    private final CopyOnWriteArrayList<CompletableFuture<ClusterStore>> stream_queue = new CopyOnWriteArrayList<CompletableFuture<ClusterStore>>();
+    private final CopyOnWriteArrayList<ClusterPager<objModel>> pagers = new CopyOnWriteArrayList<ClusterPager<objModel>>();
+    private final Material stream_material = new Material(64.f, new float[]{0.6f, 0.55f, 0.5f, 1f}, new float[]{0.3f, 0.3f, 0.3f, 1f});
+
+    /* one cluster of a streamed model, drawn once its pager has it loaded */
+    private class ClusterDrawable implements SceneNode.Drawable {
+        private final ClusterPager<objModel> pager;
+        private final int cluster;
+        private float pixels = -1;
+
+        ClusterDrawable(ClusterPager<objModel> pager, int cluster) {
+            this.pager = pager;
+            this.cluster = cluster;
+        }
+
+        public void draw(GL2 gl) {
+            objModel model = pager.use(cluster, pixels);
+            if (model != null && model.loaded) {
+                model.Draw();
+            }
+        }
+
+        public void draw(Renderer.MeshSink out, Material material) {
+            objModel model = pager.use(cluster, pixels);
+            if (model != null) {
+                model.draw(out, material);
+            }
+        }
+
+        public boolean getBounds(float[] min, float[] max) {
+            return pager.store.getBounds(cluster, min, max);
+        }
+
+        public void setDetail(float pixels) {
+            this.pixels = pixels;
+        }
+    }
+
+    /* the animation advances in fixed steps of AnimationEngine.TICK; rates
+     * are per step, so the scene moves as fast as it did when every frame
+     * at 60 fps stepped it, however often display() is called
+     */
+    private final AnimationEngine animation = new AnimationEngine();
+    private long last_frame = 0;		// System.nanoTime() of the last display(), 0 for none
+    private final double frame_time;	// seconds per frame, or 0 to follow the clock
+
     /* Here you should give a conservative estimate of the scene's bounding box
      * so that the initViewParameters function can calculate proper
      * transformation parameters to display the initial scene.
@@ -290,216 +727,495 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     private float xmin = -1f, ymin = -1f, zmin = -1f;
     private float xmax = 1f, ymax = 1f, zmax = 1f;
 
-    public void display(GLAutoDrawable drawable) {
-        gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+    /* the camera is moved by the mouse on the event thread and resized by
+     * reshape() on the GL thread; both hold camera_lock and publish the
+     * result as a Camera, the only part of it prepareFrame() reads
+     */
+    private final Object camera_lock = new Object();
+    private final float[] projection = Mat4.identity();
+    private volatile Camera camera = new Camera(Mat4.identity(), projection, winW, winH);
+
+    /* the view and projection of the camera at one moment, never changed */
+    private static final class Camera {
+        final float[] view = new float[16];
+        final float[] projection = new float[16];
+        final int width, height;		// of the window
+
+        Camera(float[] view, float[] projection, int width, int height) {
+            System.arraycopy(view, 0, this.view, 0, 16);
+            System.arraycopy(projection, 0, this.projection, 0, 16);
+            this.width = width;
+            this.height = height;
+        }
+    }
 
-        gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, wireframe ? GL2.GL_LINE : GL2.GL_FILL);
-        gl.glShadeModel(flatshade ? GL2.GL_FLAT : GL2.GL_SMOOTH);
-        if (cullface) {
-            gl.glEnable(GL2.GL_CULL_FACE);
-        } else {
-            gl.glDisable(GL2.GL_CULL_FACE);
+    /* the scene graph; the transforms of the scene file's nodes follow the animation tracks */
+    private final float[] scratch = new float[16];
+    private final RenderStats stats = new RenderStats();
+    private final FrameProfiler profiler = new FrameProfiler();	// off until 'p'
+    private final FramePipeline pipeline = new FramePipeline(this::prepareFrame);
+    private final GLStateCache state = new GLStateCache();
+    private volatile boolean bounds_changed;	// set when a model finishes loading
+    private final SceneNode scene = new SceneNode("scene");
+
+    /* sets the local transforms of the nodes of the scene file from the
+     * animation tracks; nodes whose transform did not change stay clean
+     */
+    private void updateScene() {
+        SceneChange applied = scene_applied;
+        if (applied == null) {
+            return;
         }
+        float[] m = scratch;
+        for (int i = 0; i < scene_placed.size(); i++) {
+            PlacedNode placed = scene_placed.get(i);
+            Mat4.setIdentity(m);
+            for (SceneFile.Step step : placed.transform) {
+                step.apply(m, applied.tracks);
+            }
+            placed.node.setLocal(m);
+        }
+    }
 
-        gl.glLoadIdentity();
+    /* reads the scene from a SceneFile, which the next frame shows; see watchScene() */
+    public void openScene(String filename) {
+        scene_file = new File(filename);
+        try {
+            prepareScene(SceneFile.read(scene_file), Collections.<Path>emptySet());
+        } catch (IOException e) {
+            System.out.println("Error reading the scene: " + e.getMessage());
+        }
+    }
 
-        /* this is the transformation of the entire scene */
-        gl.glTranslatef(-xpos, -ypos, -zpos);
-        gl.glTranslatef(centerx, centery, centerz);
-        gl.glRotatef(360.f - roth, 0, 1.0f, 0);
-        gl.glRotatef(rotv, 1.0f, 0, 0);
-        gl.glTranslatef(-centerx, -centery, -centerz);
-
-        /* === YOUR WORK HERE === */
-        /* Below is an example of a rotating bunny
-         * It rotates the bunny with bunny_rotateT degrees around the bunny's gravity center
-         */
-        //Male
-
-        gl.glPushMatrix();
-            //Matrix for the sun on top
-            gl.glPushMatrix();
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{30.f},0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{1f, 0.7f, 0.0f, 1f}, 0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{0.7f, 0.2f, 0.0f, 1f}, 0);
-                gl.glTranslatef((float) (0.1* sun_Xlimit ),1.3f, 0);
-                gl.glScalef(0.3f,0.3f,0.3f);
-                gl.glRotatef(sun_rotateT, 0, 1, 0);
-                glut.glutSolidSphere(0.3f, 50, 50);
-            gl.glPopMatrix();
-
-            //Matrix for the statue in the middle
-            gl.glPushMatrix();
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f},0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.2f, 0.2f, 0.2f, 1f}, 0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{0.5f, 0.5f, 0.5f, 1f}, 0);
-                gl.glTranslatef(0, -0.6f, 0);
-                gl.glScalef(0.3f,0.3f,0.3f);
-                gl.glRotatef(statue_rotateT, 0, -1, 0);
-                statue_model.Draw();
-            gl.glPopMatrix();
-
-            //Matrix for the Axe in the middle
-            gl.glPushMatrix();
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f},0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{1f, 1f, 0f, 1f}, 0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{1f, 1f, 1f, 1f}, 0);
-                gl.glTranslatef(0,(float) (0.1*axe_Ylimit),0);
-                gl.glScalef(0.3f,0.3f,0.3f);
-                gl.glRotatef(axe_rotateT, 0, 1, 0);
-                axe_model.Draw();
-            gl.glPopMatrix();
-
-            //matrix for dragon
-            gl.glPushMatrix();
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{90.f},0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.5f, 0f, 0f, 1f}, 0);
-                gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{0.5f, 0.5f, 0.5f, 1f}, 0);
-                gl.glTranslatef(-centerx, -centery, -centerz);
-                gl.glScalef(1f, 1f, 1f);
-                gl.glRotatef(dragon_rotateT, 0, 1, 0);
-                gl.glTranslatef(-1.f, -0.5f, 0);
-                dragon_model.Draw();
-                //Matrix for the Forest
-                for(double i=-5;i<5;i+=0.5) {
-                    gl.glPushMatrix();
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f}, 0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{1f, 0.5f, 0f, 1f}, 0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{0.5f, 1f, 0f, 1f}, 0);
-                        gl.glTranslatef((float) i+3, 0.2f, (float) i-1);
-                        tree_conical_model.Draw();
-                    gl.glPopMatrix();
-                }
-                //Matrix for the man
-                gl.glPushMatrix();
-                    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{100.f},0);
-                    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.5f, 0.7f, 0.7f, 1f}, 0);
-                    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{1.f,0.2f,0.1f,0}, 0);
-                    gl.glTranslatef(2.f, 0.2f, 0);
-                    gl.glScalef(0.5f, 0.5f, 0.5f);
-                    gl.glRotatef(-90, 0, 1, 0);
-                    male_model.Draw();
-                    //Matrix for female
-                    gl.glPushMatrix();
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f},0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.5f, 0.4f, 0.4f, 1f}, 0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{1.f,0.2f,0.1f,0}, 0);
-                        gl.glTranslatef(-0.5f,-0.05f, (float) (0.1* female_Zlimit ));
-                        if(female_far)
-                            gl.glRotatef(180.f, 0, 1, 0);
-                        female_model.Draw();
-                        //Matrix for bunny, this is also the 4th level of hierarchy
-                        gl.glPushMatrix();
-                            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f},0);
-                            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.5f, 0.4f, 0.4f, 1f}, 0);
-                            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{1.f,0.2f,0.1f,0}, 0);
-                            gl.glTranslatef((float) (0.1* bunny_Xlimit ),-0.5f, 0);
-                            gl.glScalef(0.2f,0.2f,0.2f);
-                            if(bunny_left)
-                                gl.glRotatef(-180.f, 0, 1, 0);
-                            bunny_model.Draw();
-                        gl.glPopMatrix();
-                    gl.glPopMatrix();
-                    //Matrix for the bird
-                    gl.glPushMatrix();
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, new float[]{128.f},0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, new float[]{0.0f, 0.7f, 0.0f, 1f}, 0);
-                        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, new float[]{0.8f, 0.3f, 0.2f, 1f}, 0);
-                        gl.glTranslatef(0.3f,(float) (0.1* bird_Ylimit ),0);
-                        gl.glScalef(0.2f,0.2f,0.2f);
-                        gl.glRotatef(bird_rotateT, 0, 1, 0);
-                        bird_model.Draw();
-                    gl.glPopMatrix();
-                gl.glPopMatrix();
-            gl.glPopMatrix();
-        gl.glPopMatrix();
-
-        /* increment bunny_rotateT */
-        if (animator.isAnimating()) {
-            dragon_rotateT += 1.0f * animation_speed;
-            statue_rotateT += 1.0f * animation_speed;
-            axe_rotateT += 1.0f * animation_speed;
-            bird_rotateT += 1.0f * animation_speed;
-            if (axe_down) {
-                if (axe_Ylimit < -1) {
-                    axe_Ylimit += 0.1;
-                    axe_down = false;
-                } else {
-                    axe_Ylimit  -= 0.1;
+    /* reads the scene file of openScene() again whenever it, or a model
+     * file it names, is written; what did not change is kept
+     */
+    public void watchScene() {
+        try {
+            synchronized (scene_lock) {
+                scene_watcher = new SceneWatcher(scene_file, scene_read, this::prepareScene);
+            }
+            scene_watcher.start();
+        } catch (IOException e) {
+            System.out.println("Error watching the scene: " + e.getMessage());
+        }
+    }
+
+    /* makes the models, materials and animations of next that differ from
+     * the last reading, or whose .obj files are among written, keeps the
+     * others and queues the change for prepareFrame()
+     */
+    private void prepareScene(SceneFile next, Set<Path> written) {
+        synchronized (scene_lock) {
+            SceneFile last = scene_read;
+            SceneChange change = new SceneChange(next, new HashMap<String, Material>(), new HashMap<String, AnimationTrack>());
+
+            for (Map.Entry<String, SceneFile.MaterialSpec> e : next.materials.entrySet()) {
+                Material m = scene_materials.get(e.getKey());
+                if (m == null || !e.getValue().json.equals(last.materials.get(e.getKey()).json)) {
+                    m = e.getValue().create();
+                    change.materials_changed++;
                 }
-            } else {
-                if (axe_Ylimit > 1) {
-                    axe_Ylimit  -= 0.1;
-                    axe_down = true;
-                } else {
-                    axe_Ylimit += 0.1;
+                change.materials.put(e.getKey(), m);
+            }
+            change.materials_changed += removed(scene_materials, change.materials);
+
+            /* a written file gets a new version once, however many models use it */
+            HashSet<String> bumped = new HashSet<String>();
+            for (SceneFile.ModelSpec spec : next.models.values()) {
+                if (spec.file != null && bumped.add(spec.file) && written.contains(SceneWatcher.path(new File(spec.file)))) {
+                    file_versions.merge(spec.file, 1, Integer::sum);
                 }
             }
-            if (bird_down) {
-                if (bird_Ylimit < 1) {
-                    bird_Ylimit += 0.05;
-                    bird_down = false;
-                } else {
-                    bird_Ylimit -= 0.05;
+
+            /* batches after the models they copy */
+            HashMap<String, SceneModel> made = new HashMap<String, SceneModel>();
+            for (int pass = 0; pass < 2; pass++) {
+                for (Map.Entry<String, SceneFile.ModelSpec> e : next.models.entrySet()) {
+                    SceneFile.ModelSpec spec = e.getValue();
+                    if ((spec.batch != null) != (pass == 1)) {
+                        continue;
+                    }
+                    SceneModel old = scene_models.get(e.getKey());
+                    boolean same = old != null && spec.json.equals(last.models.get(e.getKey()).json);
+                    if (spec.file != null) {
+                        same &= !written.contains(SceneWatcher.path(new File(spec.file)));
+                    } else if (spec.batch != null) {
+                        same &= made.get(spec.batch) == scene_models.get(spec.batch)
+                                && change.materials.get(spec.material) == scene_materials.get(spec.material);
+                    }
+                    if (!same) {
+                        change.models_changed++;
+                    }
+                    made.put(e.getKey(), same ? old : makeModel(e.getKey(), spec, made, change.materials));
                 }
-            } else {
-                if (bird_Ylimit > 2) {
-                    bird_Ylimit  -= 0.05;
-                    bird_down = true;
-                } else {
-                    bird_Ylimit += 0.05;
+            }
+            for (Map.Entry<String, SceneModel> e : scene_models.entrySet()) {
+                if (made.get(e.getKey()) != e.getValue()) {
+                    change.dropped.add(e.getValue().model);
                 }
             }
-            if (female_far) {
-                if (female_Zlimit < -20) {
-                    female_Zlimit += 0.1;
-                    female_far = false;
-                } else {
-                    female_Zlimit -= 0.1;
+            change.models_changed += removed(scene_models, made);
+            for (Map.Entry<String, SceneModel> e : made.entrySet()) {
+                change.drawables.put(e.getKey(), e.getValue().drawable);
+            }
+
+            for (Map.Entry<String, SceneFile.TrackSpec> e : next.tracks.entrySet()) {
+                AnimationTrack t = scene_tracks.get(e.getKey());
+                if (t == null || !e.getValue().json.equals(last.tracks.get(e.getKey()).json)) {
+                    t = e.getValue().create(e.getKey(), animation_speed);
+                    change.added.add(t);
+                    change.tracks_changed++;
                 }
-            } else {
-                if (female_Zlimit > 0) {
-                    female_Zlimit -= 0.1;
-                    female_far = true;
-                } else {
-                    female_Zlimit += 0.1;
+                change.tracks.put(e.getKey(), t);
+            }
+            for (Map.Entry<String, AnimationTrack> e : scene_tracks.entrySet()) {
+                if (change.tracks.get(e.getKey()) != e.getValue()) {
+                    change.removed.add(e.getValue());
                 }
             }
-            if (bunny_left) {
-                if (bunny_Xlimit < -5) {
-                    bunny_Xlimit += 0.1;
-                    bunny_left = false;
-                } else {
-                    bunny_Xlimit -= 0.1;
+            change.tracks_changed += removed(scene_tracks, change.tracks);
+
+            scene_read = next;
+            scene_models = made;
+            scene_materials = change.materials;
+            scene_tracks = change.tracks;
+            scene_changes.add(change);
+        }
+        if (canvas != null) {
+            canvas.repaint();
+        }
+    }
+
+    /* the number of keys of before that after does not have */
+    private static int removed(Map<String, ?> before, Map<String, ?> after) {
+        int n = 0;
+        for (String key : before.keySet()) {
+            n += after.containsKey(key) ? 0 : 1;
+        }
+        return n;
+    }
+
+    private SceneModel makeModel(String name, SceneFile.ModelSpec spec, Map<String, SceneModel> made, Map<String, Material> materials) {
+        if (spec.file != null) {
+            /* a file that was written gets a key of its own, so the meshes read before are not shared */
+            Integer version = file_versions.get(spec.file);
+            objModel model = new objModel(spec.file, version == null ? spec.file : spec.file + " (version " + (version + 1) + ")");
+            return new SceneModel(model, model);
+        }
+        if (spec.shape != null) {
+            objModel model = new objModel(spec.key(), spec.generator());
+            return new SceneModel(model, model);
+        }
+        /* the meshes of batches are shared by name, so a batch made again needs a new one */
+        BatchModel batch = new BatchModel(batches_made++ == 0 ? name : name + " (" + batches_made + ")",
+                made.get(spec.batch).model, spec.transforms, materials.get(spec.material));
+        return new SceneModel(batch, batch.model);
+    }
+
+    /* puts a reading of the scene file into the scene graph for the frame
+     * built as number frame; runs in prepareFrame(), which owns the graph
+     */
+    private void applyScene(SceneChange change, long frame) {
+        for (AnimationTrack t : change.removed) {
+            animation.remove(t);
+        }
+        for (AnimationTrack t : change.added) {
+            animation.add(t);
+        }
+        for (objModel model : change.dropped) {
+            retired.add(new Retired(model, frame));
+        }
+
+        int nodes_changed = 0;
+        HashMap<String, SceneNode> kept = new HashMap<String, SceneNode>();
+        ArrayList<PlacedNode> placed = new ArrayList<PlacedNode>();
+        for (SceneFile.NodeSpec spec : change.file.nodes) {
+            SceneNode node = scene_nodes.get(spec.name);
+            SceneNode parent = spec.parent == null ? scene : kept.get(spec.parent);
+            if (node == null) {
+                node = parent.add(new SceneNode(spec.name));
+                nodes_changed++;
+            } else if (node.getParent() != parent) {
+                parent.add(node);
+                nodes_changed++;
+            } else if (!spec.json.equals(scene_node_specs.get(spec.name).json)) {
+                nodes_changed++;
+            }
+            node.drawable = spec.model == null ? null : change.drawables.get(spec.model);
+            node.material = spec.material == null ? null : change.materials.get(spec.material);
+            node.visible = spec.visible;
+            kept.put(spec.name, node);
+            scene_node_specs.put(spec.name, spec);
+            placed.add(new PlacedNode(node, spec.transform));
+        }
+        for (Map.Entry<String, SceneNode> e : scene_nodes.entrySet()) {
+            SceneNode node = e.getValue();
+            if (!kept.containsKey(e.getKey())) {
+                if (node.getParent() != null) {
+                    node.getParent().remove(node);
                 }
-            } else {
-                if (bunny_Xlimit > 5) {
-                    bunny_Xlimit -= 0.1;
-                    bunny_left = true;
-                } else {
-                    bunny_Xlimit += 0.1;
+                scene_node_specs.remove(e.getKey());
+                nodes_changed++;
+                if (node == picked) {
+                    picked = null;
                 }
             }
-            if (sun_left) {
-                if (sun_Xlimit < -10) {
-                    sun_Xlimit += 0.01;
-                    sun_left = false;
-                } else {
-                    sun_Xlimit -= 0.01;
+        }
+        scene_nodes.clear();
+        scene_nodes.putAll(kept);
+        scene_placed = placed;
+        bounds_changed = true;		// the nodes may have other drawables
+
+        boolean first = scene_applied == null;
+        scene_applied = change;
+        if (first) {
+            System.out.println(String.format("Read the scene from %s: %d models, %d materials, %d animations, %d nodes.",
+                    change.file.file, change.file.models.size(), change.file.materials.size(),
+                    change.file.tracks.size(), change.file.nodes.size()));
+        } else {
+            System.out.println(String.format("Reloaded %s: %d models, %d materials, %d animations and %d nodes changed.",
+                    change.file.file, change.models_changed, change.materials_changed, change.tracks_changed, nodes_changed));
+        }
+    }
+
+    /* closes the models the scene file dropped before frame was built,
+     * since no list left to draw can hold them; on the thread that draws,
+     * after taking frame from the pipeline
+     */
+    private void closeRetired(long frame) {
+        for (Retired r = retired.peek(); r != null && r.frame <= frame; r = retired.peek()) {
+            retired.poll();
+            r.model.release();
+            r.model.close();
+        }
+    }
+
+    /* casts a ray from the eye of camera through window pixel (x, y) and
+     * remembers the nearest node it hits
+     */
+    private void pick(Camera camera, int x, int y) {
+        long start = System.nanoTime();
+        SceneBVH bvh = new SceneBVH(scene);
+        float[] inv = new float[16];
+        if (!Mat4.invert(inv, Mat4.multiply(scratch, camera.projection, camera.view))) {
+            return;
+        }
+        float ndcX = 2.f * x / camera.width - 1, ndcY = 1 - 2.f * y / camera.height;
+        float[] near = unproject(inv, ndcX, ndcY, -1), far = unproject(inv, ndcX, ndcY, 1);
+        float[] dir = {far[0] - near[0], far[1] - near[1], far[2] - near[2]};
+        SceneBVH.Hit hit = new SceneBVH.Hit();
+        boolean found = bvh.raycast(near, dir, 1, hit);
+        long micros = (System.nanoTime() - start) / 1000;
+        picked = found ? hit.node : null;
+        if (found) {
+            System.out.println(String.format("Picked %s (%s) at (%.3f, %.3f, %.3f) in %d us.", hit.node.name,
+                    hit.face < 0 ? "bounding box" : "face " + hit.face, hit.point[0], hit.point[1], hit.point[2], micros));
+        } else {
+            System.out.println("Nothing picked (" + micros + " us).");
+        }
+    }
+
+    /* the world point at normalized device coordinates (x, y, z) */
+    private static float[] unproject(float[] inv, float x, float y, float z) {
+        float[] p = new float[3];
+        Mat4.transformPoint(inv, x, y, z, p, 0);
+        float w = inv[3] * x + inv[7] * y + inv[11] * z + inv[15];
+        p[0] /= w;
+        p[1] /= w;
+        p[2] /= w;
+        return p;
+    }
+
+    /* writes what the profiler recorded to profile.csv and profile.json */
+    private void exportProfile() {
+        if (profiler.size() == 0) {
+            System.out.println("Nothing to export, press p to start profiling.");
+            return;
+        }
+        try {
+            profiler.exportCsv("profile.csv");
+            profiler.exportJson("profile.json");
+            System.out.println("Wrote " + profiler.size() + " frames to profile.csv and profile.json.");
+        } catch (IOException e) {
+            System.out.println("Error writing the profile: " + e.getMessage());
+        }
+    }
+
+    private void setAnimationSpeed() {
+        SceneChange applied = scene_applied;
+        if (applied == null) {
+            return;
+        }
+        for (Map.Entry<String, SceneFile.TrackSpec> e : applied.file.tracks.entrySet()) {
+            applied.tracks.get(e.getKey()).setRate(e.getValue().getRate(animation_speed));
+        }
+    }
+
+    /* streams the model of an .obj file of any size into the scene, behind
+     * the other models; its clusters are built on disk first if needed,
+     * which can take minutes for a large file
+     */
+    public void stream(final String filename) {
+        stream_queue.add(loader.openClusters(filename).whenComplete((store, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                System.out.println("Error streaming " + filename + ": " + cause.getMessage());
+            }
+        }));
+    }
+
+    /* adds the streamed models whose stores are open to the scene; runs in prepareFrame() */
+    private void addStreams() {
+        if (stream_queue.isEmpty()) {
+            return;		// without making an iterator every frame
+        }
+        for (CompletableFuture<ClusterStore> opened : stream_queue) {
+            if (!opened.isDone()) {
+                continue;
+            }
+            stream_queue.remove(opened);
+            if (opened.isCompletedExceptionally()) {
+                continue;
+            }
+            final ClusterStore store = opened.join();
+            ClusterPager<objModel> pager = new ClusterPager<objModel>(store, meshes, loader, new ClusterPager.Owner<objModel>() {
+                public objModel open(MeshManager.Handle handle, int cluster) {
+                    return new objModel(handle, store.name + " (cluster " + cluster + ")", false);
                 }
-            } else {
-                if (sun_Xlimit > 10) {
-                    sun_Xlimit -= 0.01;
-                    sun_left = true;
-                } else {
-                    sun_Xlimit += 0.01;
+
+                public void close(objModel model) {
+                    model.release();
+                    model.close();
                 }
+
+                public void await(objModel model) {
+                    model.done.handle((result, error) -> null).join();
+                }
+            }, STREAM_BUDGET);
+            pager.setBlocking(frame_time > 0);
+
+            SceneNode root = scene.add(new SceneNode(store.name));
+            float[] m = Mat4.translate(Mat4.identity(), 0, 0, -2.5f);
+            root.setLocal(Mat4.scale(m, 3, 3, 3));
+            for (int c = 0; c < store.size(); c++) {
+                root.add(new SceneNode(store.name + " " + c, new ClusterDrawable(pager, c), stream_material));
+            }
+            pagers.add(pager);
+            System.out.println("Streaming " + store.name + ": " + store.num_faces + " faces in "
+                    + store.size() + " clusters.");
+        }
+    }
+
+    /* starts the loads the last frame asked for; on the thread that draws */
+    private void updateStreams() {
+        if (pagers.isEmpty()) {
+            return;
+        }
+        for (ClusterPager<objModel> pager : pagers) {
+            pager.update();
+        }
+    }
+
+    public void printMeshes() {
+        System.out.println("Meshes: " + meshes + ".");
+        for (ClusterPager<objModel> pager : pagers) {
+            System.out.println("Streaming " + pager + ".");
+        }
+    }
+
+    public void display(GLAutoDrawable drawable) {
+        if (profiled_scene != drawn_scene) {
+            profiled_scene = drawn_scene;
+            profiler.restart();		// the sections of the nodes that are gone would stay
+        }
+        profiler.beginFrame();
+        stats.reset();
+        meshes.trimGpu();
+        updateStreams();
+
+        /* the scene was updated and culled for this frame on the pipeline's
+         * threads, which are on to the next frames while this one is drawn
+         */
+        int section = profiler.begin("wait");
+        CommandList frame = pipeline.next(animator == null || animator.isAnimating());
+        profiler.end(section);
+        drawn_scene = frame.scene_version;
+        closeRetired(frame.frame);
+        profiler.record("update", frame.update_nanos);
+        profiler.record("record", frame.record_nanos);
+        stats.drawn = frame.stats.drawn;
+        stats.culled = frame.stats.culled;
+
+        if (drawn_layout != vertex_layout) {
+            drawn_layout = vertex_layout;
+            for (objModel model : models) {
+                model.release();
+                model.setLayout(drawn_layout);
+            }
+        }
+
+        renderer.render(frame);
+
+        profiler.endFrame(stats);
+        profiler.drawOverlay(gl, glut, winW, winH);
+    }
+
+    /* the CPU side of a frame, run by the pipeline ahead of display():
+     * steps the animation, moves the scene graph, answers a pick and sets
+     * up the view of the frame's command list
+     */
+    private SceneNode prepareFrame(CommandList list) {
+        long frame = built_frames++;
+        for (SceneChange change = scene_changes.poll(); change != null; change = scene_changes.poll()) {
+            applyScene(change, frame);
+            scene_version++;
+        }
+        list.scene_version = scene_version;
+        Camera camera = this.camera;
+
+        /* step the animation by the time since the last frame, unless it
+         * runs on its own thread, and interpolate it for this frame
+         */
+        if (frame_time > 0) {
+            animation.advance(frame_time);
+        } else {
+            long now = System.nanoTime();
+            if (!animation.isThreaded()) {
+                animation.advance(last_frame == 0 ? 0 : (now - last_frame) / 1e9);
             }
+            last_frame = now;
+        }
+        animation.sample();
+
+        updateScene();
+        addStreams();
+        if (bounds_changed) {
+            bounds_changed = false;
+            scene.invalidate();
         }
+        scene.update();
+        if (pick_requested) {
+            pick_requested = false;
+            pick(camera, pickX, pickY);
+        }
+        list.outline = picked != null && picked.getWorldBounds(list.outline_min, list.outline_max);
+        list.frame = frame;
+
+        /* skip everything outside the view volume and draw small things coarser */
+        System.arraycopy(camera.view, 0, list.view, 0, 16);
+        System.arraycopy(camera.projection, 0, list.projection, 0, 16);
+        list.wireframe = wireframe;
+        list.flatshade = flatshade;
+        list.cullface = cullface;
+        list.frustum.set(Mat4.multiply(scratch, camera.projection, camera.view));
+        list.pixelScale = camera.height / 2.f * camera.projection[5];
+        return scene;
     }
 
     public Hierarchical() {
-        super("Assignment 2 -- Hierarchical Modeling");
+        frame = new JFrame("Assignment 2 -- Hierarchical Modeling");
+        frame_time = 0;
         final GLProfile glprofile = GLProfile.getMaxFixedFunc(true);
         GLCapabilities glcapabilities = new GLCapabilities(glprofile);
         canvas = new GLCanvas(glcapabilities);
@@ -509,23 +1225,103 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
         canvas.addMouseListener(this);
         canvas.addMouseMotionListener(this);
         animator = new FPSAnimator(canvas, 60);	// create a 30 fps animator
-        getContentPane().add(canvas);
-        setSize(winW, winH);
-        setLocationRelativeTo(null);
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setVisible(true);
+        frame.getContentPane().add(canvas);
+        frame.setSize(winW, winH);
+        frame.setLocationRelativeTo(null);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setVisible(true);
         animator.start();
         canvas.requestFocus();
     }
 
-    public static void main(String[] args) {
+    /* renders into an offscreen drawable that the caller displays; the
+     * animation advances frameTime seconds per frame, so a run always
+     * produces the same frames
+     */
+    public Hierarchical(GLAutoDrawable offscreen, double frameTime) {
+        frame = null;
+        canvas = null;
+        frame_time = frameTime;
+        winW = offscreen.getSurfaceWidth();
+        winH = offscreen.getSurfaceHeight();
+        offscreen.addGLEventListener(this);
+    }
+
+    /* renders with a Renderer other than GL, such as a SoftwareRenderer of
+     * width by height pixels; the animation advances frameTime seconds
+     * per frame
+     */
+    public Hierarchical(int width, int height, double frameTime) {
+        frame = null;
+        canvas = null;
+        frame_time = frameTime;
+        synchronized (camera_lock) {
+            winW = width;
+            winH = height;
+            initViewParameters();
+            Mat4.perspective(projection, 45.f, (float) width / (float) height, znear, zfar);
+            publishCamera();
+        }
+    }
 
-        new Hierarchical();
+    /* draws the next frame with renderer; the GL renderer is used by display() */
+    public void render(Renderer renderer) {
+        meshes.trimGpu();
+        updateStreams();
+        CommandList frame = pipeline.next();
+        closeRetired(frame.frame);
+        renderer.render(frame);
+    }
+
+    /* blocks until every model, and its levels of detail, has finished
+     * loading or failed to, and the clusters of every streamed model are
+     * ready to be loaded
+     */
+    public void awaitModels() {
+        for (CompletableFuture<ClusterStore> opened : stream_queue) {
+            opened.handle((result, error) -> null).join();
+        }
+        int n;
+        do {
+            n = models.size();
+            for (objModel model : models) {
+                model.done.handle((result, error) -> null).join();
+            }
+        } while (models.size() != n);	// levels of detail add models as they finish
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessRenderer.main(args);
+            return;
+        }
+        Hierarchical app = new Hierarchical();
+        String scene = "scene.json";
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--scene")) {
+                scene = args[++i];
+            }
+        }
+        app.openScene(scene);
+        app.watchScene();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--stream")) {
+                app.stream(args[++i]);
+            }
+        }
     }
 
     public void init(GLAutoDrawable drawable) {
         gl = drawable.getGL().getGL2();
 
+        /* a new context has none of the buffer objects or state of an old one */
+        for (objModel model : models) {
+            model.forget();
+        }
+        state.invalidate();
+        profiler.init(gl);
+        renderer = new GLRenderer(gl, state, profiler);
+
         initViewParameters();
         gl.glClearColor(.1f, .1f, .1f, 1f);
         gl.glClearDepth(1.0f);
@@ -574,14 +1370,18 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     }
 
     public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
-        winW = width;
-        winH = height;
-
-        gl.glViewport(0, 0, width, height);
-        gl.glMatrixMode(GL2.GL_PROJECTION);
-        gl.glLoadIdentity();
-        glu.gluPerspective(45.f, (float) width / (float) height, znear, zfar);
-        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        synchronized (camera_lock) {
+            winW = width;
+            winH = height;
+
+            gl.glViewport(0, 0, width, height);
+            gl.glMatrixMode(GL2.GL_PROJECTION);
+            gl.glLoadIdentity();
+            glu.gluPerspective(45.f, (float) width / (float) height, znear, zfar);
+            gl.glMatrixMode(GL2.GL_MODELVIEW);
+            Mat4.perspective(projection, 45.f, (float) width / (float) height, znear, zfar);
+            publishCamera();
+        }
     }
 
     public void mousePressed(MouseEvent e) {
@@ -599,55 +1399,80 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     public void mouseDragged(MouseEvent e) {
         int x = e.getX();
         int y = e.getY();
-        if (mouseButton == MouseEvent.BUTTON3) {
-            zpos -= (y - mouseY) * motionSpeed;
-            mouseX = x;
-            mouseY = y;
-            canvas.display();
-        } else if (mouseButton == MouseEvent.BUTTON2) {
-            xpos -= (x - mouseX) * motionSpeed;
-            ypos += (y - mouseY) * motionSpeed;
-            mouseX = x;
-            mouseY = y;
-            canvas.display();
-        } else if (mouseButton == MouseEvent.BUTTON1) {
-            roth -= (x - mouseX) * rotateSpeed;
-            rotv += (y - mouseY) * rotateSpeed;
-            mouseX = x;
-            mouseY = y;
-            canvas.display();
+        if (mouseButton != MouseEvent.BUTTON1 && mouseButton != MouseEvent.BUTTON2 && mouseButton != MouseEvent.BUTTON3) {
+            return;
         }
+        synchronized (camera_lock) {
+            if (mouseButton == MouseEvent.BUTTON3) {
+                zpos -= (y - mouseY) * motionSpeed;
+            } else if (mouseButton == MouseEvent.BUTTON2) {
+                xpos -= (x - mouseX) * motionSpeed;
+                ypos += (y - mouseY) * motionSpeed;
+            } else {
+                roth -= (x - mouseX) * rotateSpeed;
+                rotv += (y - mouseY) * rotateSpeed;
+            }
+            publishCamera();
+        }
+        mouseX = x;
+        mouseY = y;
+        canvas.display();
+    }
+
+    /* publishes the camera fields as the Camera of the next frames; the
+     * caller holds camera_lock
+     */
+    private void publishCamera() {
+        /* this is the transformation of the entire scene */
+        float[] view = Mat4.identity();
+        Mat4.translate(view, -xpos, -ypos, -zpos);
+        Mat4.translate(view, centerx, centery, centerz);
+        Mat4.rotate(view, 360.f - roth, 0, 1.0f, 0);
+        Mat4.rotate(view, rotv, 1.0f, 0, 0);
+        Mat4.translate(view, -centerx, -centery, -centerz);
+        camera = new Camera(view, projection, winW, winH);
     }
 
     /* computes optimal transformation parameters for OpenGL rendering.
      * this is based on an estimate of the scene's bounding box
      */
     void initViewParameters() {
-        roth = rotv = 0;
-
-        float ball_r = (float) Math.sqrt((xmax - xmin) * (xmax - xmin)
-                + (ymax - ymin) * (ymax - ymin)
-                + (zmax - zmin) * (zmax - zmin)) * 0.707f;
-
-        centerx = (xmax + xmin) / 2.f;
-        centery = (ymax + ymin) / 2.f;
-        centerz = (zmax + zmin) / 2.f;
-        xpos = centerx;
-        ypos = centery;
-        zpos = ball_r / (float) Math.sin(45.f * Math.PI / 180.f) + centerz;
-
-        znear = 0.01f;
-        zfar = 1000.f;
-
-        motionSpeed = 0.002f * ball_r;
-        rotateSpeed = 0.1f;
-
+        synchronized (camera_lock) {
+            roth = rotv = 0;
+
+            float ball_r = (float) Math.sqrt((xmax - xmin) * (xmax - xmin)
+                    + (ymax - ymin) * (ymax - ymin)
+                    + (zmax - zmin) * (zmax - zmin)) * 0.707f;
+
+            centerx = (xmax + xmin) / 2.f;
+            centery = (ymax + ymin) / 2.f;
+            centerz = (zmax + zmin) / 2.f;
+            xpos = centerx;
+            ypos = centery;
+            zpos = ball_r / (float) Math.sin(45.f * Math.PI / 180.f) + centerz;
+
+            znear = 0.01f;
+            zfar = 1000.f;
+
+            motionSpeed = 0.002f * ball_r;
+            rotateSpeed = 0.1f;
+            publishCamera();
+        }
     }
 
-    // these event functions are not used for this assignment
     public void dispose(GLAutoDrawable glautodrawable) {
+        animation.stop();
+        if (scene_watcher != null) {
+            scene_watcher.stop();
+        }
+        for (objModel model : models) {
+            model.release();
+        }
+        profiler.dispose();
     }
 
+    // these event functions are not used for this assignment
+
     public void displayChanged(GLAutoDrawable drawable, boolean modeChanged, boolean deviceChanged) {
     }
 
@@ -663,7 +1488,14 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
     public void actionPerformed(ActionEvent e) {
     }
 
+    /* picks the object under the cursor on the next frame */
     public void mouseClicked(MouseEvent e) {
+        if (e.getButton() == MouseEvent.BUTTON1) {
+            pickX = e.getX();
+            pickY = e.getY();
+            pick_requested = true;
+            canvas.display();
+        }
     }
 
     public void mouseEntered(MouseEvent e) {
@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/* This defines the Json class, a small reader for JSON text.
+ * Objects become LinkedHashMaps in the order of their keys, arrays
+ * ArrayLists, numbers Doubles, and true, false and null Booleans and
+ * null, so that two documents with the same content are equal() part by
+ * part. Mistakes are reported with their line and column.
+ */
+final class Json {
+
+    private final String text;
+    private final String source;		// for error messages
+    private int pos;
+
+    private Json(String text, String source) {
+        this.text = text;
+        this.source = source;
+    }
+
+    public static Object parse(String text, String source) throws IOException {
+        Json json = new Json(text, source);
+        Object value = json.value();
+        json.space();
+        if (json.pos < text.length()) {
+            throw json.error("text after the end of the document");
+        }
+        return value;
+    }
+
+    private Object value() throws IOException {
+        space();
+        if (pos >= text.length()) {
+            throw error("unexpected end of the document");
+        }
+        char c = text.charAt(pos);
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return word("true", Boolean.TRUE);
+            case 'f':
+                return word("false", Boolean.FALSE);
+            case 'n':
+                return word("null", null);
+            default:
+                if (c == '-' || c >= '0' && c <= '9') {
+                    return number();
+                }
+                throw error("unexpected '" + c + "'");
+        }
+    }
+
+    private LinkedHashMap<String, Object> object() throws IOException {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        pos++;
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+        while (true) {
+            if (peek() != '"') {
+                throw error("expected a key in quotes");
+            }
+            int at = pos;
+            String key = string();
+            expect(':');
+            if (map.put(key, value()) != null) {
+                pos = at;
+                throw error("\"" + key + "\" given twice");
+            }
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect('}');
+            return map;
+        }
+    }
+
+    private ArrayList<Object> array() throws IOException {
+        ArrayList<Object> list = new ArrayList<Object>();
+        pos++;
+        if (peek() == ']') {
+            pos++;
+            return list;
+        }
+        while (true) {
+            list.add(value());
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect(']');
+            return list;
+        }
+    }
+
+    private String string() throws IOException {
+        StringBuilder b = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("unterminated string");
+            }
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return b.toString();
+            }
+            if (c != '\\') {
+                b.append(c);
+                continue;
+            }
+            if (pos >= text.length()) {
+                throw error("unterminated string");
+            }
+            c = text.charAt(pos++);
+            switch (c) {
+                case 'b':
+                    b.append('\b');
+                    break;
+                case 'f':
+                    b.append('\f');
+                    break;
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw error("short \\u escape");
+                    }
+                    try {
+                        b.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("bad \\u escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    b.append(c);	// \" \\ \/
+            }
+        }
+    }
+
+    private Double number() throws IOException {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        try {
+            return Double.valueOf(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("bad number");
+        }
+    }
+
+    private Object word(String word, Object value) throws IOException {
+        if (!text.startsWith(word, pos)) {
+            throw error("unexpected '" + text.charAt(pos) + "'");
+        }
+        pos += word.length();
+        return value;
+    }
+
+    /* skips white space and returns the next character, or 0 at the end */
+    private char peek() {
+        space();
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void space() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IOException error(String message) {
+        int line = 1, column = 1;
+        for (int i = 0; i < pos && i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+        }
+        return new IOException(source + ":" + line + ":" + column + ": " + message);
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/* This defines the LodCheck class, a check of the levels of detail
+ * MeshSimplifier builds, without a window:
+ *
+ *     java LodCheck [file.obj ...]
+ *
+ * For every file (by default buddha.obj and bird.obj) it builds the
+ * levels the viewer builds, with ModelLoader.LOD_LEVELS and
+ * LOD_MIN_FACES, and prints for each level its faces, how far its
+ * vertices lie from the original surface as a fraction of the longest
+ * side of the bounding box, and how many of its faces are flipped:
+ * turned against every face of the original within their own size of
+ * them. Where the original folds, as at creases and thin parts, the
+ * nearest face alone may point either way. The check exits with status 1
+ * if a level has more faces than asked for or fewer than MIN_FILL of
+ * them, if a vertex lies further than MAX_DEVIATION from the original,
+ * or if any face is flipped.
+ */
+class LodCheck {
+
+    static final String[] DEFAULT_FILES = {"buddha.obj", "bird.obj"};
+    static final float MIN_FILL = 0.95f;		// of the faces asked for
+    static final float MAX_DEVIATION = 0.005f;	// of the longest side of the bounding box
+    static final int CELL_FACES = 4;			// original triangles per grid cell, on average
+
+    public static void main(String[] args) {
+        String[] files = args.length > 0 ? args : DEFAULT_FILES;
+        int failures = 0;
+        for (String file : files) {
+            Mesh mesh;
+            try {
+                mesh = Mesh.load(file);
+            } catch (IOException e) {
+                System.out.println("Error reading from file " + file + ": " + e.getMessage());
+                failures++;
+                continue;
+            }
+            long start = System.nanoTime();
+            Mesh[] levels = MeshSimplifier.buildLevels(mesh, ModelLoader.LOD_LEVELS, ModelLoader.LOD_MIN_FACES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%s: %d faces, %d levels built in %.2f s.", file, mesh.num_faces, levels.length, seconds));
+            if (levels.length != MeshSimplifier.levelCount(mesh.num_faces, ModelLoader.LOD_LEVELS, ModelLoader.LOD_MIN_FACES)) {
+                System.out.println("FAILED: the wrong number of levels.");
+                failures++;
+            }
+
+            SurfaceGrid surface = new SurfaceGrid(mesh);
+            int target = mesh.num_faces;
+            for (int n = 0; n < levels.length; n++) {
+                target /= 2;
+                Mesh level = levels[n];
+                level.toArrays();
+                float deviation = 0;
+                for (int v = 0; v < level.num_verts; v++) {
+                    surface.nearest(level.verts, v * 3);
+                    deviation = Math.max(deviation, surface.distance);
+                }
+                deviation /= surface.extent;
+                int flipped = 0;
+                float[] centroid = new float[3];
+                double[] normal = new double[3];
+                for (int f = 0; f < level.num_faces; f++) {
+                    for (int k = 0; k < 3; k++) {
+                        centroid[k] = (level.verts[level.faces[f * 3] * 3 + k] + level.verts[level.faces[f * 3 + 1] * 3 + k]
+                                + level.verts[level.faces[f * 3 + 2] * 3 + k]) / 3;
+                    }
+                    faceNormal(level.verts, level.faces, f, normal);
+                    double size = Math.sqrt(Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]));
+                    surface.nearest(centroid, 0);
+                    if (!surface.faces(centroid, surface.distance + size, normal)) {
+                        flipped++;
+                    }
+                }
+                System.out.println(String.format("  LOD %d: %d of %d faces, max deviation %.2f%%, %d flipped.",
+                        n + 1, level.num_faces, target, deviation * 100, flipped));
+                if (level.num_faces > target || level.num_faces < target * MIN_FILL) {
+                    System.out.println("FAILED: the level does not have the faces asked for.");
+                    failures++;
+                }
+                if (deviation > MAX_DEVIATION) {
+                    System.out.println("FAILED: the level strays from the original surface.");
+                    failures++;
+                }
+                if (flipped > 0) {
+                    System.out.println("FAILED: the level has flipped faces.");
+                    failures++;
+                }
+            }
+        }
+        System.out.println(failures == 0 ? "OK" : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void faceNormal(float[] verts, int[] faces, int f, double[] out) {
+        int a = faces[f * 3] * 3, b = faces[f * 3 + 1] * 3, c = faces[f * 3 + 2] * 3;
+        double e1x = verts[b] - verts[a], e1y = verts[b + 1] - verts[a + 1], e1z = verts[b + 2] - verts[a + 2];
+        double e2x = verts[c] - verts[a], e2y = verts[c + 1] - verts[a + 1], e2z = verts[c + 2] - verts[a + 2];
+        out[0] = e1y * e2z - e1z * e2y;
+        out[1] = e1z * e2x - e1x * e2z;
+        out[2] = e1x * e2y - e1y * e2x;
+    }
+
+    /* the triangles of a mesh bucketed by a uniform grid over its bounding
+     * box, each in every cell its bounding box touches, for finding the
+     * point of the surface nearest to another
+     */
+    private static final class SurfaceGrid {
+        final Mesh mesh;
+        final float extent;		// the longest side of the bounding box
+        final float cell;
+        final int nx, ny, nz;
+        final int[] start, faces;	// the faces of cell i are faces[start[i] .. start[i + 1])
+        final int[] mark;			// the query in which each face was last measured
+        int query = 0;
+
+        float distance;	// the result of the last nearest()
+        int face;
+
+        SurfaceGrid(Mesh mesh) {
+            this.mesh = mesh;
+            extent = Math.max(mesh.max[0] - mesh.min[0], Math.max(mesh.max[1] - mesh.min[1], mesh.max[2] - mesh.min[2]));
+            float volume = (mesh.max[0] - mesh.min[0]) * (mesh.max[1] - mesh.min[1]) * (mesh.max[2] - mesh.min[2]);
+            cell = Math.max((float) Math.cbrt(volume * CELL_FACES / mesh.num_faces), extent / 1024);
+            nx = cells(0);
+            ny = cells(1);
+            nz = cells(2);
+            mark = new int[mesh.num_faces];
+
+            /* a counting sort of the faces by cell, in two passes */
+            start = new int[nx * ny * nz + 1];
+            int[] lo = new int[3], hi = new int[3];
+            for (int pass = 0; pass < 2; pass++) {
+                int[] fill = pass == 0 ? null : Arrays.copyOf(start, start.length - 1);
+                int[] out = pass == 0 ? null : new int[start[start.length - 1]];
+                for (int f = 0; f < mesh.num_faces; f++) {
+                    faceCells(f, lo, hi);
+                    for (int z = lo[2]; z <= hi[2]; z++) {
+                        for (int y = lo[1]; y <= hi[1]; y++) {
+                            for (int x = lo[0]; x <= hi[0]; x++) {
+                                int i = (z * ny + y) * nx + x;
+                                if (pass == 0) {
+                                    start[i + 1]++;
+                                } else {
+                                    out[fill[i]++] = f;
+                                }
+                            }
+                        }
+                    }
+                }
+                if (pass == 0) {
+                    for (int i = 0; i + 1 < start.length; i++) {
+                        start[i + 1] += start[i];
+                    }
+                } else {
+                    faces = out;
+                    return;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private int cells(int axis) {
+            return Math.max(1, (int) Math.ceil((mesh.max[axis] - mesh.min[axis]) / cell));
+        }
+
+        private int cellOf(float p, int axis, int n) {
+            return Math.max(0, Math.min(n - 1, (int) ((p - mesh.min[axis]) / cell)));
+        }
+
+        private void faceCells(int f, int[] lo, int[] hi) {
+            int[] n = {nx, ny, nz};
+            for (int k = 0; k < 3; k++) {
+                float a = mesh.verts[mesh.faces[f * 3] * 3 + k], b = mesh.verts[mesh.faces[f * 3 + 1] * 3 + k],
+                        c = mesh.verts[mesh.faces[f * 3 + 2] * 3 + k];
+                lo[k] = cellOf(Math.min(a, Math.min(b, c)), k, n[k]);
+                hi[k] = cellOf(Math.max(a, Math.max(b, c)), k, n[k]);
+            }
+        }
+
+        /* sets distance and face to the nearest point of the surface to
+         * p[o .. o + 2], searching rings of cells outwards until no closer
+         * face can be further out
+         */
+        void nearest(float[] p, int o) {
+            query++;
+            double best = Double.POSITIVE_INFINITY;
+            face = -1;
+            int cx = cellOf(p[o], 0, nx), cy = cellOf(p[o + 1], 1, ny), cz = cellOf(p[o + 2], 2, nz);
+            int rings = Math.max(nx, Math.max(ny, nz));
+            for (int r = 0; r <= rings; r++) {
+                for (int z = Math.max(0, cz - r); z <= Math.min(nz - 1, cz + r); z++) {
+                    for (int y = Math.max(0, cy - r); y <= Math.min(ny - 1, cy + r); y++) {
+                        for (int x = Math.max(0, cx - r); x <= Math.min(nx - 1, cx + r); x++) {
+                            if (Math.abs(x - cx) != r && Math.abs(y - cy) != r && Math.abs(z - cz) != r) {
+                                continue;	// searched in an earlier ring
+                            }
+                            int i = (z * ny + y) * nx + x;
+                            for (int j = start[i]; j < start[i + 1]; j++) {
+                                int f = faces[j];
+                                if (mark[f] == query) {
+                                    continue;
+                                }
+                                mark[f] = query;
+                                double d = distanceSquared(p[o], p[o + 1], p[o + 2], f);
+                                if (d < best) {
+                                    best = d;
+                                    face = f;
+                                }
+                            }
+                        }
+                    }
+                }
+                /* every face not yet seen is at least r cells away */
+                if (face >= 0 && Math.sqrt(best) <= r * cell) {
+                    break;
+                }
+            }
+            distance = (float) Math.sqrt(best);
+        }
+
+        /* whether any face within radius of p points the same way as normal */
+        boolean faces(float[] p, double radius, double[] normal) {
+            query++;
+            int x0 = cellOf((float) (p[0] - radius), 0, nx), x1 = cellOf((float) (p[0] + radius), 0, nx);
+            int y0 = cellOf((float) (p[1] - radius), 1, ny), y1 = cellOf((float) (p[1] + radius), 1, ny);
+            int z0 = cellOf((float) (p[2] - radius), 2, nz), z1 = cellOf((float) (p[2] + radius), 2, nz);
+            double[] m = new double[3];
+            for (int z = z0; z <= z1; z++) {
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        int i = (z * ny + y) * nx + x;
+                        for (int j = start[i]; j < start[i + 1]; j++) {
+                            int f = faces[j];
+                            if (mark[f] == query) {
+                                continue;
+                            }
+                            mark[f] = query;
+                            if (distanceSquared(p[0], p[1], p[2], f) > radius * radius) {
+                                continue;
+                            }
+                            faceNormal(mesh.verts, mesh.faces, f, m);
+                            if (m[0] * normal[0] + m[1] * normal[1] + m[2] * normal[2] > 0) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /* the squared distance from (px, py, pz) to face f, from the
+         * closest point on a triangle in Ericson's Real-Time Collision Detection
+         */
+        private double distanceSquared(double px, double py, double pz, int f) {
+            float[] v = mesh.verts;
+            int a = mesh.faces[f * 3] * 3, b = mesh.faces[f * 3 + 1] * 3, c = mesh.faces[f * 3 + 2] * 3;
+            double abx = v[b] - v[a], aby = v[b + 1] - v[a + 1], abz = v[b + 2] - v[a + 2];
+            double acx = v[c] - v[a], acy = v[c + 1] - v[a + 1], acz = v[c + 2] - v[a + 2];
+            double apx = px - v[a], apy = py - v[a + 1], apz = pz - v[a + 2];
+            double d1 = abx * apx + aby * apy + abz * apz, d2 = acx * apx + acy * apy + acz * apz;
+            if (d1 <= 0 && d2 <= 0) {
+                return square(apx, apy, apz);
+            }
+            double bpx = px - v[b], bpy = py - v[b + 1], bpz = pz - v[b + 2];
+            double d3 = abx * bpx + aby * bpy + abz * bpz, d4 = acx * bpx + acy * bpy + acz * bpz;
+            if (d3 >= 0 && d4 <= d3) {
+                return square(bpx, bpy, bpz);
+            }
+            double vc = d1 * d4 - d3 * d2;
+            if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+                double t = d1 / (d1 - d3);
+                return square(apx - t * abx, apy - t * aby, apz - t * abz);
+            }
+            double cpx = px - v[c], cpy = py - v[c + 1], cpz = pz - v[c + 2];
+            double d5 = abx * cpx + aby * cpy + abz * cpz, d6 = acx * cpx + acy * cpy + acz * cpz;
+            if (d6 >= 0 && d5 <= d6) {
+                return square(cpx, cpy, cpz);
+            }
+            double vb = d5 * d2 - d1 * d6;
+            if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+                double t = d2 / (d2 - d6);
+                return square(apx - t * acx, apy - t * acy, apz - t * acz);
+            }
+            double va = d3 * d6 - d5 * d4;
+            if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+                double t = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+                return square(bpx - t * (v[c] - v[b]), bpy - t * (v[c + 1] - v[b + 1]), bpz - t * (v[c + 2] - v[b + 2]));
+            }
+            double denom = 1 / (va + vb + vc);
+            double s = vb * denom, t = vc * denom;
+            return square(apx - s * abx - t * acx, apy - s * aby - t * acy, apz - s * abz - t * acz);
+        }
+
+        private static double square(double x, double y, double z) {
+            return x * x + y * y + z * z;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/* This defines the LodSelector class, which picks the level of detail
+ * of one object from its projected size on screen.
+ * Level 0 is the full mesh and every further level has about half the
+ * faces of the one before, so level L is used while the projected radius
+ * is below FULL_DETAIL_PIXELS / 2^L. A level only changes once the size
+ * is HYSTERESIS past the threshold, so an object hovering around a
+ * threshold does not flicker between two levels.
+ */
+class LodSelector {
+
+    static final float FULL_DETAIL_PIXELS = 256.f;	// projected radius that needs the full mesh
+    static final float HYSTERESIS = 0.15f;
+
+    private int level = 0;
+
+    /* returns the level for a projected radius of pixels, given the
+     * number of simplified levels available
+     */
+    public int select(float pixels, int levels) {
+        if (level > levels) {
+            level = levels;
+        }
+        while (level < levels && pixels < threshold(level) * (1 - HYSTERESIS)) {
+            level++;
+        }
+        while (level > 0 && pixels > threshold(level - 1) * (1 + HYSTERESIS)) {
+            level--;
+        }
+        return level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /* the radius between level and level + 1 */
+    private static float threshold(int level) {
+        return FULL_DETAIL_PIXELS / (1 << level);
+    }
+}
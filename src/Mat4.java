@@ -0,0 +1,181 @@
+/* This defines the Mat4 class, a set of static helpers for 4x4 matrices
+ * stored as float[16] in the column-major order OpenGL uses, so that a
+ * matrix can be handed to glLoadMatrixf / glMultMatrixf unchanged.
+ * The transform functions post-multiply like their GL counterparts:
+ * translate(m, ...) has the same effect as glTranslatef on m.
+ */
+final class Mat4 {
+
+    private Mat4() {
+    }
+
+    public static float[] identity() {
+        return setIdentity(new float[16]);
+    }
+
+    public static float[] setIdentity(float[] m) {
+        for (int i = 0; i < 16; i++) {
+            m[i] = (i % 5 == 0) ? 1.f : 0.f;
+        }
+        return m;
+    }
+
+    public static float[] translation(float x, float y, float z) {
+        return translate(identity(), x, y, z);
+    }
+
+    /* out = a * b; out may be a or b */
+    public static float[] multiply(float[] out, float[] a, float[] b) {
+        return multiply(out, 0, a, b);
+    }
+
+    /* writes a * b to the 16 floats of out starting at o */
+    public static float[] multiply(float[] out, int o, float[] a, float[] b) {
+        float a00 = a[0], a01 = a[4], a02 = a[8], a03 = a[12];
+        float a10 = a[1], a11 = a[5], a12 = a[9], a13 = a[13];
+        float a20 = a[2], a21 = a[6], a22 = a[10], a23 = a[14];
+        float a30 = a[3], a31 = a[7], a32 = a[11], a33 = a[15];
+        for (int c = 0; c < 4; c++) {
+            float b0 = b[c * 4], b1 = b[c * 4 + 1], b2 = b[c * 4 + 2], b3 = b[c * 4 + 3];
+            out[o + c * 4] = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+            out[o + c * 4 + 1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+            out[o + c * 4 + 2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+            out[o + c * 4 + 3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+        }
+        return out;
+    }
+
+    public static float[] translate(float[] m, float x, float y, float z) {
+        for (int r = 0; r < 4; r++) {
+            m[12 + r] += m[r] * x + m[4 + r] * y + m[8 + r] * z;
+        }
+        return m;
+    }
+
+    public static float[] scale(float[] m, float x, float y, float z) {
+        for (int r = 0; r < 4; r++) {
+            m[r] *= x;
+            m[4 + r] *= y;
+            m[8 + r] *= z;
+        }
+        return m;
+    }
+
+    /* rotates by angle degrees around the axis (x, y, z), like glRotatef */
+    public static float[] rotate(float[] m, float angle, float x, float y, float z) {
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        if (len == 0) {
+            return m;
+        }
+        x /= len;
+        y /= len;
+        z /= len;
+        double rad = Math.toRadians(angle);
+        float c = (float) Math.cos(rad), s = (float) Math.sin(rad), t = 1 - c;
+        /* the columns of the rotation; the last row and column are those of the identity */
+        float r00 = t * x * x + c, r01 = t * x * y + s * z, r02 = t * x * z - s * y;
+        float r10 = t * x * y - s * z, r11 = t * y * y + c, r12 = t * y * z + s * x;
+        float r20 = t * x * z + s * y, r21 = t * y * z - s * x, r22 = t * z * z + c;
+        /* m * r in place, row by row; the translation column stays */
+        for (int i = 0; i < 4; i++) {
+            float m0 = m[i], m1 = m[4 + i], m2 = m[8 + i];
+            m[i] = m0 * r00 + m1 * r01 + m2 * r02;
+            m[4 + i] = m0 * r10 + m1 * r11 + m2 * r12;
+            m[8 + i] = m0 * r20 + m1 * r21 + m2 * r22;
+        }
+        return m;
+    }
+
+    /* sets m to the projection gluPerspective builds */
+    public static float[] perspective(float[] m, float fovy, float aspect, float znear, float zfar) {
+        float f = (float) (1.0 / Math.tan(Math.toRadians(fovy) / 2));
+        setIdentity(m);
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (zfar + znear) / (znear - zfar);
+        m[11] = -1;
+        m[14] = 2 * zfar * znear / (znear - zfar);
+        m[15] = 0;
+        return m;
+    }
+
+    /* the largest factor by which m scales a length */
+    public static float maxScale(float[] m) {
+        float sx = m[0] * m[0] + m[1] * m[1] + m[2] * m[2];
+        float sy = m[4] * m[4] + m[5] * m[5] + m[6] * m[6];
+        float sz = m[8] * m[8] + m[9] * m[9] + m[10] * m[10];
+        return (float) Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+    }
+
+    /* writes the axis-aligned box around m applied to the box [min, max] */
+    public static void transformBox(float[] m, float[] min, float[] max, float[] outMin, float[] outMax) {
+        for (int r = 0; r < 3; r++) {
+            float lo = m[12 + r], hi = m[12 + r];
+            for (int c = 0; c < 3; c++) {
+                float a = m[c * 4 + r] * min[c], b = m[c * 4 + r] * max[c];
+                lo += Math.min(a, b);
+                hi += Math.max(a, b);
+            }
+            outMin[r] = lo;
+            outMax[r] = hi;
+        }
+    }
+
+    /* out = the inverse of m, or false (out unchanged) if m is singular; out may be m */
+    public static boolean invert(float[] out, float[] m) {
+        float[] inv = new float[16];
+        inv[0] = m[5] * m[10] * m[15] - m[5] * m[11] * m[14] - m[9] * m[6] * m[15] + m[9] * m[7] * m[14] + m[13] * m[6] * m[11] - m[13] * m[7] * m[10];
+        inv[4] = -m[4] * m[10] * m[15] + m[4] * m[11] * m[14] + m[8] * m[6] * m[15] - m[8] * m[7] * m[14] - m[12] * m[6] * m[11] + m[12] * m[7] * m[10];
+        inv[8] = m[4] * m[9] * m[15] - m[4] * m[11] * m[13] - m[8] * m[5] * m[15] + m[8] * m[7] * m[13] + m[12] * m[5] * m[11] - m[12] * m[7] * m[9];
+        inv[12] = -m[4] * m[9] * m[14] + m[4] * m[10] * m[13] + m[8] * m[5] * m[14] - m[8] * m[6] * m[13] - m[12] * m[5] * m[10] + m[12] * m[6] * m[9];
+        inv[1] = -m[1] * m[10] * m[15] + m[1] * m[11] * m[14] + m[9] * m[2] * m[15] - m[9] * m[3] * m[14] - m[13] * m[2] * m[11] + m[13] * m[3] * m[10];
+        inv[5] = m[0] * m[10] * m[15] - m[0] * m[11] * m[14] - m[8] * m[2] * m[15] + m[8] * m[3] * m[14] + m[12] * m[2] * m[11] - m[12] * m[3] * m[10];
+        inv[9] = -m[0] * m[9] * m[15] + m[0] * m[11] * m[13] + m[8] * m[1] * m[15] - m[8] * m[3] * m[13] - m[12] * m[1] * m[11] + m[12] * m[3] * m[9];
+        inv[13] = m[0] * m[9] * m[14] - m[0] * m[10] * m[13] - m[8] * m[1] * m[14] + m[8] * m[2] * m[13] + m[12] * m[1] * m[10] - m[12] * m[2] * m[9];
+        inv[2] = m[1] * m[6] * m[15] - m[1] * m[7] * m[14] - m[5] * m[2] * m[15] + m[5] * m[3] * m[14] + m[13] * m[2] * m[7] - m[13] * m[3] * m[6];
+        inv[6] = -m[0] * m[6] * m[15] + m[0] * m[7] * m[14] + m[4] * m[2] * m[15] - m[4] * m[3] * m[14] - m[12] * m[2] * m[7] + m[12] * m[3] * m[6];
+        inv[10] = m[0] * m[5] * m[15] - m[0] * m[7] * m[13] - m[4] * m[1] * m[15] + m[4] * m[3] * m[13] + m[12] * m[1] * m[7] - m[12] * m[3] * m[5];
+        inv[14] = -m[0] * m[5] * m[14] + m[0] * m[6] * m[13] + m[4] * m[1] * m[14] - m[4] * m[2] * m[13] - m[12] * m[1] * m[6] + m[12] * m[2] * m[5];
+        inv[3] = -m[1] * m[6] * m[11] + m[1] * m[7] * m[10] + m[5] * m[2] * m[11] - m[5] * m[3] * m[10] - m[9] * m[2] * m[7] + m[9] * m[3] * m[6];
+        inv[7] = m[0] * m[6] * m[11] - m[0] * m[7] * m[10] - m[4] * m[2] * m[11] + m[4] * m[3] * m[10] + m[8] * m[2] * m[7] - m[8] * m[3] * m[6];
+        inv[11] = -m[0] * m[5] * m[11] + m[0] * m[7] * m[9] + m[4] * m[1] * m[11] - m[4] * m[3] * m[9] - m[8] * m[1] * m[7] + m[8] * m[3] * m[5];
+        inv[15] = m[0] * m[5] * m[10] - m[0] * m[6] * m[9] - m[4] * m[1] * m[10] + m[4] * m[2] * m[9] + m[8] * m[1] * m[6] - m[8] * m[2] * m[5];
+        float det = m[0] * inv[0] + m[1] * inv[4] + m[2] * inv[8] + m[3] * inv[12];
+        if (det == 0) {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            out[i] = inv[i] / det;
+        }
+        return true;
+    }
+
+    /* writes m * (x, y, z, 1) to out[o .. o + 2] */
+    public static void transformPoint(float[] m, float x, float y, float z, float[] out, int o) {
+        out[o] = m[0] * x + m[4] * y + m[8] * z + m[12];
+        out[o + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+        out[o + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    }
+
+    /* writes the inverse transpose of the upper 3x3 of m, which carries
+     * normals through m, to a float[9] in column-major order
+     */
+    public static float[] normalMatrix(float[] m, float[] out) {
+        float a = m[0], b = m[4], c = m[8];
+        float d = m[1], e = m[5], f = m[9];
+        float g = m[2], h = m[6], i = m[10];
+        float A = e * i - f * h, B = f * g - d * i, C = d * h - e * g;
+        float det = a * A + b * B + c * C;
+        float s = det == 0 ? 0 : 1 / det;
+        out[0] = A * s;
+        out[1] = (c * h - b * i) * s;
+        out[2] = (b * f - c * e) * s;
+        out[3] = B * s;
+        out[4] = (a * i - c * g) * s;
+        out[5] = (c * d - a * f) * s;
+        out[6] = C * s;
+        out[7] = (b * g - a * h) * s;
+        out[8] = (a * e - b * d) * s;
+        return out;
+    }
+}
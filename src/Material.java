@@ -0,0 +1,66 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jogamp.opengl.GL2;
+
+/* This defines the Material class, an immutable set of the
+ * glMaterial parameters the scene uses: shininess, diffuse and
+ * specular color, applied to both faces.
+ * Materials are built once, so drawing does not allocate arrays.
+ * Every material gets an id in order of creation, which draw lists
+ * sort by to keep equal materials together.
+ */
+final class Material {
+
+    private static final AtomicInteger next_id = new AtomicInteger();
+
+    public final int id = next_id.getAndIncrement();
+    private final float[] shininess;
+    private final float[] diffuse;
+    private final float[] specular;
+
+    public Material(float shininess, float[] diffuse, float[] specular) {
+        this.shininess = new float[]{shininess};
+        this.diffuse = diffuse.clone();
+        this.specular = specular.clone();
+    }
+
+    public void apply(GL2 gl) {
+        apply(gl, null);
+    }
+
+    /* sets only the parameters that differ from current, the material
+     * GL has now (null if unknown), and returns how many calls that took
+     */
+    public int apply(GL2 gl, Material current) {
+        if (current == this) {
+            return 0;
+        }
+        int calls = 0;
+        if (current == null || !Arrays.equals(shininess, current.shininess)) {
+            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, shininess, 0);
+            calls++;
+        }
+        if (current == null || !Arrays.equals(diffuse, current.diffuse)) {
+            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, diffuse, 0);
+            calls++;
+        }
+        if (current == null || !Arrays.equals(specular, current.specular)) {
+            gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, specular, 0);
+            calls++;
+        }
+        return calls;
+    }
+
+    public float getShininess() {
+        return shininess[0];
+    }
+
+    public float[] getDiffuse() {
+        return diffuse.clone();
+    }
+
+    public float[] getSpecular() {
+        return specular.clone();
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* This defines the Mesh class, the compact form of a triangle mesh:
+ * flat float[] and int[] arrays with no per-vertex objects while it is
+ * being built, and direct, native-order buffers once it is ready to be
+ * drawn. A mesh read from the binary cache only has the buffers;
+ * toArrays() copies them back when the data is needed on the CPU.
+ * The arrays may be longer than needed; only the first num_verts
+ * vertices and num_faces triangles are valid.
+ */
+class Mesh {
+
+    public float[] verts;		// x, y, z of every vertex
+    public float[] norms;		// x, y, z of every vertex normal
+    public int[] faces;		// three zero-based vertex indices per triangle
+    public int num_verts;		// number of vertices
+    public int num_faces;		// number of triangle faces
+
+    public FloatBuffer vertexBuffer;
+    public FloatBuffer normalBuffer;
+    public IntBuffer faceBuffer;
+
+    public final float[] min = new float[3];	// bounding box
+    public final float[] max = new float[3];
+
+    public Mesh(float[] verts, int num_verts, int[] faces, int num_faces) {
+        this.verts = verts;
+        this.faces = faces;
+        this.num_verts = num_verts;
+        this.num_faces = num_faces;
+    }
+
+    /* loads a mesh from a .obj file, welds its vertices and drops its
+     * degenerate faces, centers it, scales it into a unit box, estimates
+     * per vertex average normals and reorders it for the vertex cache
+     */
+    public static Mesh load(String filename) throws IOException {
+        ObjParser obj = ObjParser.parse(filename);
+        Mesh mesh = new Mesh(obj.verts, obj.num_verts, obj.faces, obj.num_faces);
+        MeshTopology.Cleanup cleanup = MeshTopology.clean(mesh);
+        mesh.normalize();
+        MeshTopology topology = new MeshTopology(mesh);
+        System.out.println(String.format("Cleaned %s: %s; %d edges, %d open, %d non-manifold.",
+                filename, cleanup, topology.edges, topology.open_edges, topology.nonmanifold_edges));
+        if (mesh.num_faces >= PARALLEL_FACES && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            mesh.computeNormals(topology, Weighting.AREA);
+        } else {
+            mesh.computeNormals(Weighting.AREA, false);
+        }
+        mesh.computeBounds();
+        float before = MeshOptimizer.acmr(mesh);
+        MeshOptimizer.optimize(mesh);
+        System.out.println(String.format("Reordered %s for the vertex cache: ACMR %.3f -> %.3f.",
+                filename, before, MeshOptimizer.acmr(mesh)));
+        return mesh;
+    }
+
+    public void computeBounds() {
+        min[0] = min[1] = min[2] = Float.POSITIVE_INFINITY;
+        max[0] = max[1] = max[2] = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < num_verts * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], verts[i]);
+            max[i % 3] = Math.max(max[i % 3], verts[i]);
+        }
+    }
+
+    /* writes the sphere (x, y, z, radius) around the bounding box */
+    public float[] getBoundingSphere(float[] out) {
+        float dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+        out[0] = (min[0] + max[0]) / 2;
+        out[1] = (min[1] + max[1]) / 2;
+        out[2] = (min[2] + max[2]) / 2;
+        out[3] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
+        return out;
+    }
+
+    /* copies the arrays into the direct buffers used for drawing */
+    public void toBuffers() {
+        vertexBuffer = ByteBuffer.allocateDirect(num_verts * 3 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        normalBuffer = ByteBuffer.allocateDirect(num_verts * 3 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        faceBuffer = ByteBuffer.allocateDirect(num_faces * 3 * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        vertexBuffer.put(verts, 0, num_verts * 3).rewind();
+        normalBuffer.put(norms, 0, num_verts * 3).rewind();
+        faceBuffer.put(faces, 0, num_faces * 3).rewind();
+    }
+
+    /* copies the buffers back into arrays, if the mesh came without them */
+    public synchronized void toArrays() {
+        if (verts != null) {
+            return;
+        }
+        verts = new float[num_verts * 3];
+        norms = new float[num_verts * 3];
+        faces = new int[num_faces * 3];
+        FloatBuffer v = vertexBuffer.duplicate(), n = normalBuffer.duplicate();
+        IntBuffer f = faceBuffer.duplicate();
+        v.rewind();
+        n.rewind();
+        f.rewind();
+        v.get(verts);
+        n.get(norms);
+        f.get(faces);
+    }
+
+    /* moves the center of gravity to the origin and divides by the
+     * longest side of the bounding box
+     */
+    public void normalize() {
+        float minx, miny, minz;
+        float maxx, maxy, maxz;
+        float cx = 0, cy = 0, cz = 0;
+        minx = miny = minz = 10000.f;
+        maxx = maxy = maxz = -10000.f;
+
+        int i;
+        for (i = 0; i < num_verts * 3; i += 3) {
+            float x = verts[i], y = verts[i + 1], z = verts[i + 2];
+            minx = Math.min(minx, x);
+            miny = Math.min(miny, y);
+            minz = Math.min(minz, z);
+            maxx = Math.max(maxx, x);
+            maxy = Math.max(maxy, y);
+            maxz = Math.max(maxz, z);
+            cx += x;
+            cy += y;
+            cz += z;
+        }
+        float s = 1.f / (float) num_verts;
+        cx *= s;
+        cy *= s;
+        cz *= s;
+
+        float bbmax = Math.max(maxx - minx, Math.max(maxy - miny, maxz - minz));
+        for (i = 0; i < num_verts * 3; i += 3) {
+            verts[i] = (verts[i] - cx) / bbmax;
+            verts[i + 1] = (verts[i + 1] - cy) / bbmax;
+            verts[i + 2] = (verts[i + 2] - cz) / bbmax;
+        }
+    }
+
+    /* how the triangles around a vertex are weighted when averaging normals */
+    public enum Weighting {
+        AREA,	// unnormalized cross products, i.e. proportional to triangle area
+        ANGLE	// unit face normals scaled by the angle of the corner at the vertex
+    }
+
+    /* meshes with fewer faces than this are not worth splitting across threads */
+    static final int PARALLEL_FACES = 1 << 16;
+    static final int VERTS_PER_TASK = 1 << 13;
+
+    public void computeNormals() {
+        computeNormals(Weighting.AREA, num_faces >= PARALLEL_FACES
+                && ForkJoinPool.getCommonPoolParallelism() > 1);
+    }
+
+    /* estimates per vertex average normals by summing the normals of the
+     * triangle corners at every vertex.
+     * The parallel path gathers, for each vertex, the corners that touch it
+     * in face order, so every vertex is written by one thread only and the
+     * sums are added in the same order as the serial loop; both paths give
+     * bit-identical results.
+     */
+    public void computeNormals(Weighting weighting, boolean parallel) {
+        if (parallel) {
+            computeNormals(new MeshTopology(this, false), weighting);
+            return;
+        }
+        if (norms == null || norms.length < num_verts * 3) {
+            norms = new float[num_verts * 3];
+        }
+        Arrays.fill(norms, 0, num_verts * 3, 0.f);
+        for (int c = 0; c < num_faces * 3; c++) {
+            addCornerNormal(verts, faces, c, weighting, norms, faces[c] * 3);
+        }
+        normalizeNormals(norms, 0, num_verts);
+    }
+
+    /* the parallel path, with the corners around every vertex taken from
+     * the topology of this mesh
+     */
+    public void computeNormals(MeshTopology topology, Weighting weighting) {
+        if (norms == null || norms.length < num_verts * 3) {
+            norms = new float[num_verts * 3];
+        }
+        ForkJoinPool.commonPool().invoke(new NormalTask(verts, faces, norms, 0, num_verts,
+                topology.vertex_start, topology.vertex_corners, weighting));
+    }
+
+    /* sums and normalizes the normals of the vertices in [lo, hi) */
+    private static final class NormalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final float[] verts, norms;
+        final int[] faces;
+        final int lo, hi;
+        final int[] start, corners;
+        final Weighting weighting;
+
+        NormalTask(float[] verts, int[] faces, float[] norms, int lo, int hi,
+                   int[] start, int[] corners, Weighting weighting) {
+            this.verts = verts;
+            this.faces = faces;
+            this.norms = norms;
+            this.lo = lo;
+            this.hi = hi;
+            this.start = start;
+            this.corners = corners;
+            this.weighting = weighting;
+        }
+
+        protected void compute() {
+            if (hi - lo > VERTS_PER_TASK) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new NormalTask(verts, faces, norms, lo, mid, start, corners, weighting),
+                        new NormalTask(verts, faces, norms, mid, hi, start, corners, weighting));
+                return;
+            }
+            for (int v = lo; v < hi; v++) {
+                norms[v * 3] = norms[v * 3 + 1] = norms[v * 3 + 2] = 0.f;
+                for (int i = start[v]; i < start[v + 1]; i++) {
+                    addCornerNormal(verts, faces, corners[i], weighting, norms, v * 3);
+                }
+            }
+            normalizeNormals(norms, lo, hi);
+        }
+    }
+
+    private static void normalizeNormals(float[] norms, int lo, int hi) {
+        for (int i = lo * 3; i < hi * 3; i += 3) {
+            float x = norms[i], y = norms[i + 1], z = norms[i + 2];
+            float norm = (float) (1.0 / Math.sqrt(x * x + y * y + z * z));
+            norms[i] = x * norm;
+            norms[i + 1] = y * norm;
+            norms[i + 2] = z * norm;
+        }
+    }
+
+    /* adds the normal of triangle corner c to out[o .. o + 2].
+     * For the corner at vertex a of triangle (a, b, c) this is (b - a) x (c - a),
+     * scaled to the corner angle for ANGLE weighting.
+     */
+    private static void addCornerNormal(float[] verts, int[] faces, int c, Weighting weighting, float[] out, int o) {
+        int k = c % 3, f = c - k;
+        int a = faces[c] * 3;
+        int b = faces[f + (k + 1) % 3] * 3;
+        int d = faces[f + (k + 2) % 3] * 3;
+        float e1x = verts[b] - verts[a], e1y = verts[b + 1] - verts[a + 1], e1z = verts[b + 2] - verts[a + 2];
+        float e2x = verts[d] - verts[a], e2y = verts[d + 1] - verts[a + 1], e2z = verts[d + 2] - verts[a + 2];
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e2x * e1z - e2z * e1x;
+        float nz = e1x * e2y - e1y * e2x;
+        if (weighting == Weighting.ANGLE) {
+            double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            double l1 = Math.sqrt(e1x * e1x + e1y * e1y + e1z * e1z);
+            double l2 = Math.sqrt(e2x * e2x + e2y * e2y + e2z * e2z);
+            if (len == 0 || l1 == 0 || l2 == 0) {
+                return;
+            }
+            double cos = (e1x * e2x + e1y * e2y + e1z * e2z) / (l1 * l2);
+            float s = (float) (Math.acos(Math.max(-1, Math.min(1, cos))) / len);
+            nx *= s;
+            ny *= s;
+            nz *= s;
+        }
+        out[o] += nx;
+        out[o + 1] += ny;
+        out[o + 2] += nz;
+    }
+
+    /* bytes of vertex, normal and index data per vertex */
+    public float bytesPerVertex() {
+        return (float) sizeInBytes() / num_verts;
+    }
+
+    public long sizeInBytes() {
+        return (long) num_verts * 6 * 4 + (long) num_faces * 3 * 4;
+    }
+}
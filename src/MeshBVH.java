@@ -0,0 +1,187 @@
+/* This defines the MeshBVH class, a BVH over the triangles of a mesh for
+ * ray casts, nearest-point queries and box queries in the mesh's own
+ * coordinates.
+ * The corners of every triangle are copied into one array in leaf order,
+ * so a leaf's triangles are read from consecutive memory and the mesh
+ * itself is not needed after the build.
+ */
+class MeshBVH {
+
+    /* what a query found */
+    public static class Hit {
+        public float t;			// distance along the ray, in units of its direction
+        public int face;		// index of the triangle in the mesh
+        public float u, v;		// barycentric coordinates of the point in the triangle
+        public final float[] point = new float[3];
+    }
+
+    public final BVH bvh;
+    private final float[] corners;		// nine floats per leaf entry
+    private final int[] face;			// mesh face of every leaf entry
+
+    public MeshBVH(Mesh mesh) {
+        mesh.toArrays();
+        int nf = mesh.num_faces;
+        float[] boxes = new float[nf * 6];
+        for (int f = 0; f < nf; f++) {
+            for (int a = 0; a < 3; a++) {
+                float p = mesh.verts[mesh.faces[f * 3] * 3 + a];
+                float q = mesh.verts[mesh.faces[f * 3 + 1] * 3 + a];
+                float r = mesh.verts[mesh.faces[f * 3 + 2] * 3 + a];
+                boxes[f * 6 + a] = Math.min(p, Math.min(q, r));
+                boxes[f * 6 + 3 + a] = Math.max(p, Math.max(q, r));
+            }
+        }
+        bvh = new BVH(boxes, nf);
+        corners = new float[nf * 9];
+        face = bvh.order;
+        for (int i = 0; i < nf; i++) {
+            for (int c = 0; c < 3; c++) {
+                System.arraycopy(mesh.verts, mesh.faces[face[i] * 3 + c] * 3, corners, i * 9 + c * 3, 3);
+            }
+        }
+    }
+
+    public int size() {
+        return face.length;
+    }
+
+    /* finds the nearest triangle, from either side, that the ray
+     * origin + t * dir meets for t in [0, tMax]
+     */
+    public boolean raycast(float[] origin, final float[] dir, float tMax, final Hit hit) {
+        final float ox = origin[0], oy = origin[1], oz = origin[2];
+        final float dx = dir[0], dy = dir[1], dz = dir[2];
+        final int[] found = {-1};
+        float t = bvh.raycast(origin, dir, tMax, (i, best) -> {
+            /* Moller-Trumbore */
+            int o = i * 9;
+            float ax = corners[o], ay = corners[o + 1], az = corners[o + 2];
+            float e1x = corners[o + 3] - ax, e1y = corners[o + 4] - ay, e1z = corners[o + 5] - az;
+            float e2x = corners[o + 6] - ax, e2y = corners[o + 7] - ay, e2z = corners[o + 8] - az;
+            float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+            float det = e1x * px + e1y * py + e1z * pz;
+            if (det == 0) {
+                return best;	// parallel to the triangle
+            }
+            float inv = 1 / det;
+            float sx = ox - ax, sy = oy - ay, sz = oz - az;
+            float u = (sx * px + sy * py + sz * pz) * inv;
+            if (u < 0 || u > 1) {
+                return best;
+            }
+            float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+            float v = (dx * qx + dy * qy + dz * qz) * inv;
+            if (v < 0 || u + v > 1) {
+                return best;
+            }
+            float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+            if (d < 0 || d >= best) {
+                return best;
+            }
+            found[0] = i;
+            hit.u = u;
+            hit.v = v;
+            return d;
+        });
+        if (found[0] < 0) {
+            return false;
+        }
+        hit.t = t;
+        hit.face = face[found[0]];
+        for (int a = 0; a < 3; a++) {
+            hit.point[a] = origin[a] + t * dir[a];
+        }
+        return true;
+    }
+
+    /* finds the point of the mesh nearest to p, if it is within maxDistance */
+    public boolean nearest(final float[] p, float maxDistance, final Hit hit) {
+        final int[] found = {-1};
+        final float[] closest = new float[3];
+        float best = bvh.nearest(p, maxDistance * maxDistance, (i, best2) -> {
+            float d = closestPoint(i, p, closest);
+            if (d >= best2) {
+                return best2;
+            }
+            found[0] = i;
+            System.arraycopy(closest, 0, hit.point, 0, 3);
+            return d;
+        });
+        if (found[0] < 0) {
+            return false;
+        }
+        hit.t = (float) Math.sqrt(best);
+        hit.face = face[found[0]];
+        return true;
+    }
+
+    /* writes the point of leaf entry i nearest to p and returns its squared
+     * distance (Ericson, Real-Time Collision Detection, 5.1.5)
+     */
+    private float closestPoint(int i, float[] p, float[] out) {
+        int o = i * 9;
+        float ax = corners[o], ay = corners[o + 1], az = corners[o + 2];
+        float abx = corners[o + 3] - ax, aby = corners[o + 4] - ay, abz = corners[o + 5] - az;
+        float acx = corners[o + 6] - ax, acy = corners[o + 7] - ay, acz = corners[o + 8] - az;
+        float apx = p[0] - ax, apy = p[1] - ay, apz = p[2] - az;
+        float d1 = abx * apx + aby * apy + abz * apz, d2 = acx * apx + acy * apy + acz * apz;
+        float v, w;
+        if (d1 <= 0 && d2 <= 0) {
+            v = w = 0;		// vertex a
+        } else {
+            float bpx = apx - abx, bpy = apy - aby, bpz = apz - abz;
+            float d3 = abx * bpx + aby * bpy + abz * bpz, d4 = acx * bpx + acy * bpy + acz * bpz;
+            float cpx = apx - acx, cpy = apy - acy, cpz = apz - acz;
+            float d5 = abx * cpx + aby * cpy + abz * cpz, d6 = acx * cpx + acy * cpy + acz * cpz;
+            float vc = d1 * d4 - d3 * d2, vb = d5 * d2 - d1 * d6, va = d3 * d6 - d5 * d4;
+            if (d3 >= 0 && d4 <= d3) {
+                v = 1;		// vertex b
+                w = 0;
+            } else if (d6 >= 0 && d5 <= d6) {
+                v = 0;		// vertex c
+                w = 1;
+            } else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+                v = d1 / (d1 - d3);		// edge ab
+                w = 0;
+            } else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+                v = 0;		// edge ac
+                w = d2 / (d2 - d6);
+            } else if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+                w = (d4 - d3) / ((d4 - d3) + (d5 - d6));		// edge bc
+                v = 1 - w;
+            } else {
+                float denom = 1 / (va + vb + vc);		// inside
+                v = vb * denom;
+                w = vc * denom;
+            }
+        }
+        out[0] = ax + abx * v + acx * w;
+        out[1] = ay + aby * v + acy * w;
+        out[2] = az + abz * v + acz * w;
+        float ex = p[0] - out[0], ey = p[1] - out[1], ez = p[2] - out[2];
+        return ex * ex + ey * ey + ez * ez;
+    }
+
+    /* writes the faces whose bounding boxes overlap [min, max] to out and
+     * returns how many there are, which may be more than out holds
+     */
+    public int overlapping(final float[] min, final float[] max, final int[] out) {
+        final int[] n = {0};
+        bvh.overlapping(min, max, i -> {
+            int o = i * 9;
+            for (int a = 0; a < 3; a++) {
+                float lo = Math.min(corners[o + a], Math.min(corners[o + 3 + a], corners[o + 6 + a]));
+                float hi = Math.max(corners[o + a], Math.max(corners[o + 3 + a], corners[o + 6 + a]));
+                if (lo > max[a] || hi < min[a]) {
+                    return;
+                }
+            }
+            if (n[0] < out.length) {
+                out[n[0]] = face[i];
+            }
+            n[0]++;
+        });
+        return n[0];
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+
+/* This defines the MeshBatch class, which draws many instances of one
+ * mesh with a single submission per material.
+ * The scene runs on the fixed-function profile, where per-instance
+ * transforms cannot be fetched by the GPU, so the instances are
+ * transformed once on the CPU and concatenated into one mesh. Instances
+ * are grouped by material; group g covers the faces
+ * [groupFirst[g], groupFirst[g] + groupCount[g]) of the combined mesh.
+ */
+class MeshBatch {
+
+    public final Mesh mesh;
+    public final Material[] groupMaterial;
+    public final int[] groupFirst;
+    public final int[] groupCount;
+
+    private MeshBatch(Mesh mesh, Material[] groupMaterial, int[] groupFirst, int[] groupCount) {
+        this.mesh = mesh;
+        this.groupMaterial = groupMaterial;
+        this.groupFirst = groupFirst;
+        this.groupCount = groupCount;
+    }
+
+    public int groups() {
+        return groupMaterial.length;
+    }
+
+    /* instance i is source transformed by transforms[i] and drawn with materials[i] */
+    public static MeshBatch build(Mesh source, float[][] transforms, Material[] materials) {
+        source.toArrays();
+        int n = transforms.length;
+        int nv = source.num_verts, nf = source.num_faces;
+        if ((long) n * nv * 3 > Integer.MAX_VALUE || (long) n * nf * 3 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many instances for one batch");
+        }
+
+        /* order the instances so that equal materials are adjacent */
+        int[] order = new int[n];
+        boolean[] placed = new boolean[n];
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            if (placed[i]) {
+                continue;
+            }
+            for (int j = i; j < n; j++) {
+                if (!placed[j] && materials[j] == materials[i]) {
+                    order[next++] = j;
+                    placed[j] = true;
+                }
+            }
+        }
+
+        float[] verts = new float[n * nv * 3];
+        float[] norms = new float[n * nv * 3];
+        int[] faces = new int[n * nf * 3];
+        float[] nm = new float[9];
+        int groups = 0;
+        Material[] groupMaterial = new Material[n];
+        int[] groupFirst = new int[n];
+        int[] groupCount = new int[n];
+        for (int k = 0; k < n; k++) {
+            int i = order[k];
+            float[] t = transforms[i];
+            Mat4.normalMatrix(t, nm);
+            int vo = k * nv * 3;
+            for (int v = 0; v < nv * 3; v += 3) {
+                Mat4.transformPoint(t, source.verts[v], source.verts[v + 1], source.verts[v + 2], verts, vo + v);
+                float x = source.norms[v], y = source.norms[v + 1], z = source.norms[v + 2];
+                float tx = nm[0] * x + nm[3] * y + nm[6] * z;
+                float ty = nm[1] * x + nm[4] * y + nm[7] * z;
+                float tz = nm[2] * x + nm[5] * y + nm[8] * z;
+                float len = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+                float s = len == 0 ? 0 : 1 / len;
+                norms[vo + v] = tx * s;
+                norms[vo + v + 1] = ty * s;
+                norms[vo + v + 2] = tz * s;
+            }
+            int fo = k * nf * 3;
+            for (int f = 0; f < nf * 3; f++) {
+                faces[fo + f] = source.faces[f] + k * nv;
+            }
+
+            if (groups == 0 || groupMaterial[groups - 1] != materials[i]) {
+                groupMaterial[groups] = materials[i];
+                groupFirst[groups] = k * nf;
+                groups++;
+            }
+            groupCount[groups - 1] += nf;
+        }
+
+        Mesh mesh = new Mesh(verts, n * nv, faces, n * nf);
+        mesh.norms = norms;
+        mesh.computeBounds();
+        mesh.toBuffers();
+        return new MeshBatch(mesh, Arrays.copyOf(groupMaterial, groups),
+                Arrays.copyOf(groupFirst, groups), Arrays.copyOf(groupCount, groups));
+    }
+}
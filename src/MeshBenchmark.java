@@ -0,0 +1,377 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jogamp.opengl.GL2;
+
+/* This defines the MeshBenchmark class, a benchmark of the load path and
+ * of scene traversal that needs nothing but the jars in lib:
+ *
+ *     java MeshBenchmark [--quick] [--out results.json] [--baseline old.json] [file.obj ...]
+ *
+ * For every .obj file (by default all of them in the working directory)
+ * it times parsing, normal estimation, filling the direct buffers and
+ * reading the binary cache, building a MeshBVH and casting rays at it.
+ * The forest is benchmarked the same way when tree_conical.obj is among
+ * the files. Then it times updating a scene graph of SCENE_NODES nodes
+ * and recording and sorting its CommandList, the work of a frame before
+ * the first GL call.
+ *
+ * Like JMH it runs warmup iterations before measured ones, reports the
+ * throughput as the mean and standard deviation over the measured
+ * iterations, and, like its gc profiler, the bytes allocated per
+ * operation and the collections during measurement. Every result is
+ * passed to a sink so the JIT cannot drop the work.
+ * Replaying is left out: GL2 has too many methods for a
+ * java.lang.reflect.Proxy to stand in for it, and the scene graph is
+ * built so that everything up to CommandList.replay() needs no context.
+ *
+ * --baseline compares with an earlier --out file and exits with status 1
+ * if any benchmark got slower by more than REGRESSION and by more than
+ * the two runs' standard deviations together, so a script can catch
+ * regressions without tripping over noise.
+ */
+class MeshBenchmark {
+
+    static final int WARMUP_ITERATIONS = 3, ITERATIONS = 5;
+    static final long ITERATION_NANOS = 1000000000L;
+    static final double REGRESSION = 0.10;		// slowdown that counts as a regression
+    static final int SCENE_NODES = 1000;
+    static final int RAYS = 4096;			// per raycast operation
+
+    /* one operation of a benchmark; the result goes to the sink */
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    static class Result {
+        String name;
+        double ops_per_s, error;	// mean and standard deviation over the iterations
+        double bytes_per_op;		// NaN where the JVM cannot count allocations
+        long gcs;
+
+        public String toString() {
+            return String.format("%-34s %12.2f ops/s  +- %8.2f  %14.0f B/op  %3d gcs",
+                    name, ops_per_s, error, bytes_per_op, gcs);
+        }
+    }
+
+    private static int sink;
+    private final int warmups, iterations;
+    private final long iteration_nanos;
+    private final ArrayList<Result> results = new ArrayList<Result>();
+
+    MeshBenchmark(int warmups, int iterations, long iterationNanos) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iteration_nanos = iterationNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String out = null, baseline = null;
+        ArrayList<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--quick")) {
+                quick = true;
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else if (args[i].equals("--baseline") && i + 1 < args.length) {
+                baseline = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            File[] objs = new File(".").listFiles((dir, name) -> name.endsWith(".obj"));
+            if (objs != null) {
+                Arrays.sort(objs, (a, b) -> Long.compare(a.length(), b.length()));
+                for (File f : objs) {
+                    files.add(f.getName());
+                }
+            }
+        }
+
+        MeshBenchmark bench = quick ? new MeshBenchmark(1, 3, ITERATION_NANOS / 5)
+                : new MeshBenchmark(WARMUP_ITERATIONS, ITERATIONS, ITERATION_NANOS);
+        for (String file : files) {
+            Mesh mesh = bench.benchmarkMesh(file);
+            if (mesh != null && file.endsWith("tree_conical.obj")) {
+                bench.benchmarkForest(mesh);
+            }
+        }
+        bench.benchmarkScene();
+
+        if (out != null) {
+            bench.write(out);
+            System.out.println("Wrote " + bench.results.size() + " results to " + out + ".");
+        }
+        if (baseline != null && bench.compare(baseline) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /* returns the mesh, normalized and with normals, or null if it could not be read */
+    private Mesh benchmarkMesh(final String filename) throws Exception {
+        ObjParser obj;
+        try {
+            obj = ObjParser.parse(filename);
+        } catch (IOException e) {
+            System.out.println("Error reading from file " + filename + ": " + e.getMessage());
+            return null;
+        }
+        System.out.println(filename + ": " + obj.num_verts + " vertices, " + obj.num_faces + " faces");
+
+        run(filename + " parse", () -> ObjParser.parse(filename));
+
+        final Mesh mesh = new Mesh(obj.verts, obj.num_verts, obj.faces, obj.num_faces);
+        mesh.normalize();
+        run(filename + " normals", () -> {
+            mesh.computeNormals(Mesh.Weighting.AREA, false);
+            return mesh.norms;
+        });
+        if (mesh.num_faces >= Mesh.PARALLEL_FACES) {
+            run(filename + " normals (parallel)", () -> {
+                mesh.computeNormals(Mesh.Weighting.AREA, true);
+                return mesh.norms;
+            });
+        }
+        run(filename + " buffers", () -> {
+            mesh.toBuffers();
+            return mesh.faceBuffer;
+        });
+
+        /* a cache of its own, so the one next to the model is left alone */
+        final File source = new File(filename);
+        final File cache = File.createTempFile("bench", ".mesh");
+        try {
+            mesh.computeBounds();
+            MeshCache.write(mesh, cache, source);
+            run(filename + " cache read", () -> MeshCache.read(cache, source));
+        } finally {
+            Files.deleteIfExists(cache.toPath());
+        }
+        benchmarkBVH(filename, mesh);
+        return mesh;
+    }
+
+    /* twenty trees in a row, as Hierarchical plants them */
+    private void benchmarkForest(Mesh tree) throws Exception {
+        float[][] transforms = new float[20][];
+        Material[] materials = new Material[20];
+        Material bark = new Material(10, new float[]{0.2f, 0.5f, 0.2f, 1f}, new float[]{0.1f, 0.1f, 0.1f, 1f});
+        for (int n = 0; n < 20; n++) {
+            transforms[n] = Mat4.translation(n * 0.5f - 2, 0.2f, n * 0.5f - 6);
+            materials[n] = bark;
+        }
+        Mesh forest = MeshBatch.build(tree, transforms, materials).mesh;
+        forest.computeBounds();
+        System.out.println("forest: " + forest.num_verts + " vertices, " + forest.num_faces + " faces");
+        benchmarkBVH("forest", forest);
+    }
+
+    /* building the tree, and RAYS rays from outside aimed into the bounding box */
+    private void benchmarkBVH(String name, final Mesh mesh) throws Exception {
+        run(name + " bvh build", () -> new MeshBVH(mesh));
+        final MeshBVH bvh = new MeshBVH(mesh);
+        final float[][] origins = new float[RAYS][], dirs = new float[RAYS][];
+        Random random = new Random(2);
+        float size = Math.max(mesh.max[0] - mesh.min[0], Math.max(mesh.max[1] - mesh.min[1], mesh.max[2] - mesh.min[2]));
+        for (int i = 0; i < RAYS; i++) {
+            origins[i] = new float[3];
+            dirs[i] = new float[3];
+            for (int a = 0; a < 3; a++) {
+                float center = (mesh.min[a] + mesh.max[a]) / 2;
+                origins[i][a] = center + (random.nextFloat() - 0.5f) * 4 * size;
+                dirs[i][a] = mesh.min[a] + random.nextFloat() * (mesh.max[a] - mesh.min[a]) - origins[i][a];
+            }
+        }
+        final MeshBVH.Hit hit = new MeshBVH.Hit();
+        final int[] hits = new int[1];
+        run(name + " bvh " + RAYS + " rays", () -> {
+            hits[0] = 0;
+            for (int i = 0; i < RAYS; i++) {
+                if (bvh.raycast(origins[i], dirs[i], Float.POSITIVE_INFINITY, hit)) {
+                    hits[0]++;
+                }
+            }
+            return hits;
+        });
+        System.out.println(name + ": " + hits[0] + " of " + RAYS + " rays hit");
+    }
+
+    /* a forest of SCENE_NODES nodes in groups of ten, a tenth of them moving every frame */
+    private void benchmarkScene() throws Exception {
+        final SceneNode root = new SceneNode("root");
+        final SceneNode[] nodes = new SceneNode[SCENE_NODES];
+        Random random = new Random(1);		// the same scene every run
+        Material[] materials = new Material[8];
+        for (int i = 0; i < materials.length; i++) {
+            materials[i] = new Material(16 * i, new float[]{i / 8f, 0.5f, 0.5f, 1f}, new float[]{1f, 1f, 1f, 1f});
+        }
+        SceneNode.Drawable box = new SceneNode.Drawable() {
+            public void draw(GL2 gl) {
+                gl.glDrawElements(GL2.GL_TRIANGLES, 36, GL2.GL_UNSIGNED_INT, 0L);
+            }
+
+            public boolean getBounds(float[] min, float[] max) {
+                Arrays.fill(min, -0.5f);
+                Arrays.fill(max, 0.5f);
+                return true;
+            }
+        };
+        SceneNode group = root;
+        for (int i = 0; i < SCENE_NODES; i++) {
+            if (i % 10 == 0) {
+                group = root.add(new SceneNode("group " + i / 10));
+                group.setLocal(Mat4.translation(random.nextFloat() * 100 - 50, 0, random.nextFloat() * 100 - 50));
+            }
+            nodes[i] = group.add(new SceneNode("node " + i, box, materials[random.nextInt(materials.length)]));
+            nodes[i].setLocal(Mat4.translation(random.nextFloat() * 10 - 5, random.nextFloat() * 10 - 5, random.nextFloat() * 10 - 5));
+        }
+
+        final float[] projection = Mat4.perspective(new float[16], 45, 1.5f, 0.1f, 200);
+        final float[] view = Mat4.translation(0, 0, -60);
+        final float[] scratch = new float[16];
+        final float[] m = new float[16];
+        final int[] frame = new int[1];
+        root.update();
+
+        run("scene update", () -> {
+            int f = frame[0]++;
+            for (int i = f % 10; i < SCENE_NODES; i += 10) {
+                nodes[i].setLocal(Mat4.rotate(Mat4.translate(Mat4.setIdentity(m), 0, i % 7, 0), f, 0, 1, 0));
+            }
+            root.update();
+            return root;
+        });
+        /* what the frame pipeline does on its workers, here on one thread and then on all */
+        final CommandList list = new CommandList();
+        System.arraycopy(view, 0, list.view, 0, 16);
+        list.frustum.set(Mat4.multiply(scratch, projection, view));
+        run("scene record", () -> {
+            list.reset(root.getSubtreeSize());
+            list.stats.culled = root.record(list.frustum, list, 0);
+            list.sort();
+            return list;
+        });
+        final ForkJoinPool pool = new ForkJoinPool();
+        run("scene record (" + pool.getParallelism() + " threads)", () -> pool.invoke(ForkJoinTask.adapt(() -> {
+            list.reset(root.getSubtreeSize());
+            root.record(list.frustum, list, 0);
+            list.sort();
+            return list;
+        })));
+        pool.shutdown();
+        System.out.println("scene: recorded " + list.size() + " commands, culled " + list.stats.culled);
+    }
+
+    /* warms op up, then measures it over the iterations */
+    private void run(String name, Op op) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            iterate(op);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean counting = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        long thread = Thread.currentThread().getId();
+        long gcs = gcCount();
+        long bytes = counting ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread) : 0;
+        long ops = 0;
+        double[] rates = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long n = iterate(op);
+            rates[i] = n * 1e9 / (System.nanoTime() - start);
+            ops += n;
+        }
+        Result r = new Result();
+        r.name = name;
+        r.bytes_per_op = counting
+                ? (double) (((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread) - bytes) / ops
+                : Double.NaN;
+        r.gcs = gcCount() - gcs;
+        double sum = 0, squares = 0;
+        for (double rate : rates) {
+            sum += rate;
+        }
+        r.ops_per_s = sum / iterations;
+        for (double rate : rates) {
+            squares += (rate - r.ops_per_s) * (rate - r.ops_per_s);
+        }
+        r.error = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        results.add(r);
+        System.out.println(r);
+    }
+
+    /* runs op for one iteration's time and returns how often it ran */
+    private long iterate(Op op) throws Exception {
+        long start = System.nanoTime();
+        long n = 0;
+        do {
+            Object result = op.run();
+            sink += System.identityHashCode(result);
+            n++;
+        } while (System.nanoTime() - start < iteration_nanos);
+        return n;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    private void write(String filename) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                out.println("  {\"name\": \"" + r.name + "\", \"ops_per_s\": " + r.ops_per_s + ", \"error\": " + r.error
+                        + ", \"bytes_per_op\": " + (Double.isNaN(r.bytes_per_op) ? "null" : String.valueOf(r.bytes_per_op))
+                        + ", \"gcs\": " + r.gcs + "}" + (i + 1 < results.size() ? "," : ""));
+            }
+            out.println("]");
+        }
+    }
+
+    /* prints the change against an earlier --out file and returns the number of regressions */
+    private int compare(String filename) throws IOException {
+        HashMap<String, double[]> before = new HashMap<String, double[]>();
+        Pattern entry = Pattern.compile("\"name\": \"([^\"]*)\", \"ops_per_s\": ([-0-9.eE]+), \"error\": ([-0-9.eE]+)");
+        for (String line : Files.readAllLines(new File(filename).toPath())) {
+            Matcher m = entry.matcher(line);
+            if (m.find()) {
+                before.put(m.group(1), new double[]{Double.parseDouble(m.group(2)), Double.parseDouble(m.group(3))});
+            }
+        }
+        int regressions = 0;
+        for (Result r : results) {
+            double[] old = before.get(r.name);
+            if (old == null || old[0] <= 0) {
+                continue;
+            }
+            double change = r.ops_per_s / old[0] - 1;
+            boolean slower = change < -REGRESSION && old[0] - r.ops_per_s > old[1] + r.error;
+            regressions += slower ? 1 : 0;
+            System.out.println(String.format("%-34s %+7.1f%%%s", r.name, 100 * change, slower ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regressions against " + filename + ".");
+        return regressions;
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/* This defines the MeshCache class, which keeps a binary copy of every
+ * loaded mesh next to its .obj file (bunny.obj -> bunny.obj.mesh) so
+ * that later runs can skip parsing and normal estimation.
+ *
+ * The cache file is little-endian:
+ *   magic, version                        2 ints
+ *   source length, modification time      2 longs
+ *   source CRC32                          1 long
+ *   num_verts, num_faces                  2 ints
+ *   bounding box min, max                 6 floats
+ *   (padding up to HEADER_SIZE bytes)
+ *   vertices, normals                     num_verts * 3 floats each
+ *   faces                                 num_faces * 3 ints
+ *
+ * A cache is used when the length and modification time of the source
+ * still match, or failing that, when its CRC32 does (e.g. after a fresh
+ * checkout). The buffers of a cached mesh are views of the mapped file.
+ * Simplified levels of detail are cached the same way, one file per
+ * level (bunny.obj -> bunny.obj.lod1.mesh, bunny.obj.lod2.mesh, ...).
+ */
+class MeshCache {
+
+    static final int MAGIC = 0x4853454d;	// "MESH"
+    static final int VERSION = 4;		// bump whenever the load pipeline changes its output
+    static final int HEADER_SIZE = 64;
+
+    public static String cacheName(String filename) {
+        return filename + ".mesh";
+    }
+
+    /* returns the cached mesh for filename, or loads it from the .obj
+     * file and writes a new cache
+     */
+    public static Mesh load(String filename) throws IOException {
+        File source = new File(filename);
+        File cache = new File(cacheName(filename));
+        if (cache.isFile() && source.isFile()) {
+            Mesh mesh = read(cache, source);
+            if (mesh != null) {
+                return mesh;
+            }
+        }
+        Mesh mesh = Mesh.load(filename);
+        mesh.toBuffers();
+        try {
+            write(mesh, cache, source);
+        } catch (IOException e) {
+            System.out.println("Could not write mesh cache " + cache + ": " + e.getMessage());
+        }
+        return mesh;
+    }
+
+    public static String levelName(String filename, int level) {
+        return filename + ".lod" + level + ".mesh";
+    }
+
+    /* returns the simplified levels of the mesh loaded from filename,
+     * from their caches if all of them are up to date, or else built by
+     * MeshSimplifier and cached
+     */
+    public static Mesh[] loadLevels(String filename, Mesh mesh, int levels, int minFaces) throws IOException {
+        File source = new File(filename);
+        Mesh[] out = new Mesh[MeshSimplifier.levelCount(mesh.num_faces, levels, minFaces)];
+        boolean cached = source.isFile();
+        for (int k = 0; k < out.length && cached; k++) {
+            File cache = new File(levelName(filename, k + 1));
+            out[k] = cache.isFile() ? read(cache, source) : null;
+            cached = out[k] != null;
+        }
+        if (cached) {
+            return out;
+        }
+        out = MeshSimplifier.buildLevels(mesh, levels, minFaces);
+        for (int k = 0; k < out.length; k++) {
+            File cache = new File(levelName(filename, k + 1));
+            try {
+                write(out[k], cache, source);
+            } catch (IOException e) {
+                System.out.println("Could not write mesh cache " + cache + ": " + e.getMessage());
+            }
+        }
+        return out;
+    }
+
+    /* maps a cache file, returning null if it is stale or not a cache */
+    static Mesh read(File cache, File source) throws IOException {
+        MappedByteBuffer map = map(cache);
+        if (map == null || map.getLong(8) != source.length()
+                || (map.getLong(16) != source.lastModified() && map.getLong(24) != crc(source))) {
+            return null;
+        }
+        return mesh(map);
+    }
+
+    /* maps a cache file that the caller knows to be up to date, as the
+     * clusters of a ClusterStore are, returning null if it is not a cache
+     */
+    static Mesh read(File cache) throws IOException {
+        MappedByteBuffer map = map(cache);
+        return map == null ? null : mesh(map);
+    }
+
+    private static MappedByteBuffer map(File cache) throws IOException {
+        MappedByteBuffer map;
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r")) {
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (map.capacity() < HEADER_SIZE) {
+            return null;
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            return null;
+        }
+        return map;
+    }
+
+    private static Mesh mesh(MappedByteBuffer map) {
+        int num_verts = map.getInt(32);
+        int num_faces = map.getInt(36);
+        long size = HEADER_SIZE + (long) num_verts * 24 + (long) num_faces * 12;
+        if (num_verts < 0 || num_faces < 0 || map.capacity() != size) {
+            return null;
+        }
+
+        Mesh mesh = new Mesh(null, num_verts, null, num_faces);
+        for (int i = 0; i < 3; i++) {
+            mesh.min[i] = map.getFloat(40 + i * 4);
+            mesh.max[i] = map.getFloat(52 + i * 4);
+        }
+        ByteBuffer verts = slice(map, HEADER_SIZE, num_verts * 12);
+        ByteBuffer norms = slice(map, HEADER_SIZE + num_verts * 12, num_verts * 12);
+        ByteBuffer faces = slice(map, HEADER_SIZE + num_verts * 24, num_faces * 12);
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            mesh.vertexBuffer = verts.asFloatBuffer();
+            mesh.normalBuffer = norms.asFloatBuffer();
+            mesh.faceBuffer = faces.asIntBuffer();
+        } else {
+            /* GL wants native order, so big-endian machines pay for one copy */
+            mesh.vertexBuffer = copy(verts).asFloatBuffer();
+            mesh.normalBuffer = copy(norms).asFloatBuffer();
+            mesh.faceBuffer = copy(faces).asIntBuffer();
+        }
+        return mesh;
+    }
+
+    static void write(Mesh mesh, File cache, File source) throws IOException {
+        write(mesh, cache, source.length(), source.lastModified(), crc(source));
+    }
+
+    /* writes a cache stamped with the given length, time and CRC of its source */
+    static void write(Mesh mesh, File cache, long length, long modified, long crc) throws IOException {
+        long size = HEADER_SIZE + (long) mesh.num_verts * 24 + (long) mesh.num_faces * 12;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("mesh is too large to be cached");
+        }
+        File tmp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+        try {
+            ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION);
+            out.putLong(length).putLong(modified).putLong(crc);
+            out.putInt(mesh.num_verts).putInt(mesh.num_faces);
+            for (int i = 0; i < 3; i++) {
+                out.putFloat(40 + i * 4, mesh.min[i]);
+                out.putFloat(52 + i * 4, mesh.max[i]);
+            }
+            out.position(HEADER_SIZE);
+            out.asFloatBuffer().put(mesh.verts, 0, mesh.num_verts * 3);
+            out.position(HEADER_SIZE + mesh.num_verts * 12);
+            out.asFloatBuffer().put(mesh.norms, 0, mesh.num_verts * 3);
+            out.position(HEADER_SIZE + mesh.num_verts * 24);
+            out.asIntBuffer().put(mesh.faces, 0, mesh.num_faces * 3);
+            out.rewind();
+            try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+                while (out.hasRemaining()) {
+                    file.getChannel().write(out);
+                }
+            }
+            /* readers never see a half written cache */
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    static long crc(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            crc.update(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+        return crc.getValue();
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int offset, int length) {
+        ByteBuffer d = b.duplicate();
+        d.position(offset);
+        d.limit(offset + length);
+        return d.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer copy(ByteBuffer b) {
+        ByteBuffer c = ByteBuffer.allocateDirect(b.remaining()).order(ByteOrder.nativeOrder());
+        while (b.remaining() >= 4) {
+            c.putInt(b.getInt());
+        }
+        c.flip();
+        return c;
+    }
+}
@@ -0,0 +1,368 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/* This defines the MeshManager class, which shares meshes between their
+ * users and keeps their memory within a budget.
+ *
+ * Meshes are keyed by file name, or by any name for meshes built
+ * elsewhere (levels of detail, batches). acquire() returns the one
+ * Handle for a key, loading the mesh only the first time, and counts
+ * its users; every acquire() is matched by one release().
+ *
+ * Host memory is the mesh's arrays and direct buffers. A mesh nobody
+ * holds stays cached until the host budget is exceeded, and then the
+ * least recently used ones are dropped and their direct buffers freed
+ * at once rather than whenever the collector gets to them.
+ * GPU memory is what the users report for their buffer objects. Over
+ * the GPU budget, trimGpu() asks the least recently drawn users to
+ * delete their copies, which they make again on their next draw; it
+ * must run on the GL thread.
+ */
+class MeshManager {
+
+    static final long DEFAULT_HOST_BUDGET = 1L << 30;
+    static final long DEFAULT_GPU_BUDGET = 512L << 20;
+
+    /* one mesh and what is known about its users */
+    class Handle {
+        public final String key;
+        public final CompletableFuture<Mesh> mesh;
+        private int refs;
+        private long host_bytes;
+        private long gpu_bytes;
+        private volatile long last_used;		// frame of the last touch()
+        private final ArrayList<Runnable> gpu_release = new ArrayList<Runnable>();	// delete the users' GPU copies
+
+        private Handle(String key, CompletableFuture<Mesh> mesh) {
+            this.key = key;
+            this.mesh = mesh;
+            last_used = frame;
+        }
+
+        /* marks the mesh as used in this frame */
+        public void touch() {
+            last_used = frame;
+        }
+
+        /* a user made (or, negative, deleted) GPU copies of bytes */
+        public void addGpuBytes(long bytes) {
+            synchronized (MeshManager.this) {
+                gpu_bytes += bytes;
+                if (handles.get(key) == this) {
+                    gpu_total += bytes;
+                }
+            }
+        }
+
+        /* adds what trimGpu() runs, on the GL thread, to have a user's
+         * GPU copies deleted; it must report them with addGpuBytes()
+         */
+        public void onGpuEvict(Runnable release) {
+            synchronized (MeshManager.this) {
+                gpu_release.add(release);
+            }
+        }
+
+        /* takes back what onGpuEvict() added, when the user is closed */
+        public void removeGpuEvict(Runnable release) {
+            synchronized (MeshManager.this) {
+                gpu_release.remove(release);
+            }
+        }
+
+        /* ends one acquire(); the mesh may be freed once nobody holds it */
+        public void release() {
+            MeshManager.this.release(this);
+        }
+    }
+
+    private final ModelLoader loader;
+    private final HashMap<String, Handle> handles = new HashMap<String, Handle>();
+    private long host_budget, gpu_budget;
+    private long host_total, gpu_total;
+    private volatile long frame = 0;
+
+    /* what happened since the manager was made */
+    private long hits, misses, evictions, gpu_evictions;
+
+    public MeshManager(ModelLoader loader) {
+        this(loader, DEFAULT_HOST_BUDGET, DEFAULT_GPU_BUDGET);
+    }
+
+    public MeshManager(ModelLoader loader, long hostBudget, long gpuBudget) {
+        this.loader = loader;
+        this.host_budget = hostBudget;
+        this.gpu_budget = gpuBudget;
+    }
+
+    public synchronized void setBudgets(long hostBudget, long gpuBudget) {
+        host_budget = hostBudget;
+        gpu_budget = gpuBudget;
+        trimHost();
+    }
+
+    /* the mesh of a file, loaded by the ModelLoader on the first call */
+    public Handle acquire(String filename) {
+        return acquire(filename, () -> loader.load(filename));
+    }
+
+    /* the mesh under key, from source only if the key is not known yet */
+    public Handle acquire(String key, Supplier<CompletableFuture<Mesh>> source) {
+        synchronized (this) {
+            Handle h = handles.get(key);
+            if (h != null) {
+                return use(h);
+            }
+        }
+        return adopt(key, source.get());
+    }
+
+    /* the mesh under key, which source builds unless key is already known */
+    public synchronized Handle adopt(String key, CompletableFuture<Mesh> source) {
+        Handle h = handles.get(key);
+        if (h != null) {
+            return use(h);
+        }
+        misses++;
+        final Handle created = new Handle(key, source);
+        created.refs = 1;
+        handles.put(key, created);
+        source.thenAccept(mesh -> loaded(created, mesh));
+        return created;
+    }
+
+    private Handle use(Handle h) {
+        hits++;
+        h.refs++;
+        h.touch();
+        return h;
+    }
+
+    private synchronized void loaded(Handle h, Mesh mesh) {
+        if (handles.get(h.key) != h) {
+            return;		// evicted while loading
+        }
+        measure(h);
+        trimHost();
+    }
+
+    /* users may have added arrays or buffers to the mesh since it was last measured */
+    private void measure(Handle h) {
+        if (h.mesh.isDone() && !h.mesh.isCompletedExceptionally()) {
+            long bytes = hostBytes(h.mesh.join());
+            host_total += bytes - h.host_bytes;
+            h.host_bytes = bytes;
+        }
+    }
+
+    private synchronized void release(Handle h) {
+        if (h.refs <= 0) {
+            throw new IllegalStateException(h.key + " released more often than acquired");
+        }
+        h.refs--;
+        if (handles.get(h.key) == h) {
+            measure(h);
+        }
+        trimHost();
+    }
+
+    /* drops unused meshes, least recently used first, until within the host budget */
+    private void trimHost() {
+        while (host_total > host_budget) {
+            Handle victim = null;
+            for (Handle h : handles.values()) {
+                if (h.refs == 0 && h.mesh.isDone() && (victim == null || h.last_used < victim.last_used)) {
+                    victim = h;
+                }
+            }
+            if (victim == null) {
+                return;		// everything left is in use
+            }
+            handles.remove(victim.key);
+            host_total -= victim.host_bytes;
+            gpu_total -= victim.gpu_bytes;
+            evictions++;
+            if (!victim.mesh.isCompletedExceptionally()) {
+                free(victim.mesh.join());
+            }
+        }
+    }
+
+    /* starts a frame and, over the GPU budget, has the least recently
+     * drawn meshes delete their GPU copies; call on the GL thread
+     */
+    public void trimGpu() {
+        frame++;
+        ArrayList<Runnable> releases = null;
+        synchronized (this) {
+            long over = gpu_total - gpu_budget;
+            while (over > 0) {
+                Handle victim = null;
+                for (Handle h : handles.values()) {
+                    /* what was drawn in the last frame would only be uploaded again */
+                    if (h.gpu_bytes > 0 && h.last_used < frame - 1
+                            && (victim == null || h.last_used < victim.last_used)) {
+                        victim = h;
+                    }
+                }
+                if (victim == null) {
+                    break;
+                }
+                if (releases == null) {
+                    releases = new ArrayList<Runnable>();
+                }
+                releases.addAll(victim.gpu_release);
+                over -= victim.gpu_bytes;
+                victim.last_used = frame;	// not picked twice; the releases report the bytes
+                gpu_evictions++;
+            }
+        }
+        if (releases != null) {
+            for (Runnable r : releases) {
+                r.run();
+            }
+        }
+    }
+
+    static long hostBytes(Mesh mesh) {
+        long bytes = 0;
+        bytes += mesh.verts == null ? 0 : mesh.verts.length * 4L;
+        bytes += mesh.norms == null ? 0 : mesh.norms.length * 4L;
+        bytes += mesh.faces == null ? 0 : mesh.faces.length * 4L;
+        bytes += mesh.vertexBuffer == null ? 0 : mesh.vertexBuffer.capacity() * 4L;
+        bytes += mesh.normalBuffer == null ? 0 : mesh.normalBuffer.capacity() * 4L;
+        bytes += mesh.faceBuffer == null ? 0 : mesh.faceBuffer.capacity() * 4L;
+        return bytes;
+    }
+
+    /* drops the mesh's data and frees its direct buffers now */
+    static void free(Mesh mesh) {
+        Buffer[] buffers = {mesh.vertexBuffer, mesh.normalBuffer, mesh.faceBuffer};
+        mesh.verts = mesh.norms = null;
+        mesh.faces = null;
+        mesh.vertexBuffer = mesh.normalBuffer = null;
+        mesh.faceBuffer = null;
+        for (Buffer b : buffers) {
+            free(b);
+        }
+    }
+
+    /* sun.misc.Unsafe and, from JDK 9 on, its invokeCleaner(ByteBuffer);
+     * null where they do not exist
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static volatile boolean cannot_free;	// reported once
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 8, or no Unsafe at all
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /* runs the cleaner of the direct or mapped buffer that b is a view
+     * of, which releases the memory or unmaps the file immediately.
+     * From JDK 9 on that is Unsafe.invokeCleaner on the buffer the view
+     * came from; on JDK 8 it is the buffer's own cleaner(). Where neither
+     * is accessible the buffer is left to the collector, which is
+     * reported once. Nothing may touch b afterwards.
+     */
+    static boolean free(Buffer b) {
+        if (b == null || !b.isDirect()) {
+            return false;
+        }
+        Exception failure;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, rootBuffer(b));
+                return true;
+            }
+            Object root = b;
+            for (Object next = call(root, "attachment"); next != null; next = call(root, "attachment")) {
+                root = next;		// views and slices keep the buffer they came from here
+            }
+            Object cleaner = call(root, "cleaner");
+            if (cleaner == null) {
+                return false;		// memory the buffer does not own
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            failure = e;
+        }
+        if (!cannot_free) {
+            cannot_free = true;
+            System.out.println("Cannot free direct buffers on this JVM, leaving them to the collector: " + failure);
+        }
+        return false;
+    }
+
+    /* the direct ByteBuffer that b is a view or slice of. The JDK 9+
+     * buffers keep it in their private field att, which is read through
+     * Unsafe because java.base does not open its buffer classes.
+     */
+    private static ByteBuffer rootBuffer(Buffer b) throws ReflectiveOperationException {
+        Method offset = UNSAFE.getClass().getMethod("objectFieldOffset", Field.class);
+        Method get = UNSAFE.getClass().getMethod("getObject", Object.class, long.class);
+        Object root = b;
+        for (Object next = root; next != null; ) {
+            root = next;
+            next = null;
+            for (Class<?> c = root.getClass(); c != null && next == null; c = c.getSuperclass()) {
+                try {
+                    next = get.invoke(UNSAFE, root, offset.invoke(UNSAFE, c.getDeclaredField("att")));
+                    break;
+                } catch (NoSuchFieldException e) {
+                    // declared further up
+                }
+            }
+        }
+        if (!(root instanceof ByteBuffer)) {
+            throw new IllegalArgumentException("not a view of a ByteBuffer: " + root.getClass().getName());
+        }
+        return (ByteBuffer) root;
+    }
+
+    private static Object call(Object o, String name) throws ReflectiveOperationException {
+        Method m = o.getClass().getMethod(name);
+        m.setAccessible(true);
+        return m.invoke(o);
+    }
+
+    public synchronized long getHostBytes() {
+        return host_total;
+    }
+
+    public synchronized long getGpuBytes() {
+        return gpu_total;
+    }
+
+    public synchronized String toString() {
+        int used = 0;
+        for (Handle h : handles.values()) {
+            used += h.refs > 0 ? 1 : 0;
+        }
+        return String.format("%d meshes (%d in use), host %.1f of %.1f MB, GPU %.1f of %.1f MB; "
+                        + "%d hits, %d misses, %d evicted, %d GPU copies evicted",
+                handles.size(), used, host_total / 1048576.0, host_budget / 1048576.0,
+                gpu_total / 1048576.0, gpu_budget / 1048576.0, hits, misses, evictions, gpu_evictions);
+    }
+}
@@ -0,0 +1,436 @@
+import java.util.Arrays;
+
+/* This defines the MeshSimplifier class, which reduces a triangle mesh
+ * by quadric error metric edge collapse (Garland and Heckbert).
+ * Every vertex carries the sum of the plane quadrics of its triangles;
+ * edges are collapsed cheapest first into the point that minimizes the
+ * summed quadric. Open boundaries get extra perpendicular planes so that
+ * silhouettes and seams are kept, and collapses that would flip a
+ * triangle, or turn it against the normal it started with, are rejected. The priority queue uses lazy deletion: every
+ * entry remembers the version of both of its vertices and is dropped
+ * when either has changed since it was pushed.
+ */
+class MeshSimplifier {
+
+    static final double BOUNDARY_WEIGHT = 100.0;
+
+    private final float[] verts;		// working copy of the positions
+    private final int[] faces;			// working copy of the faces
+    private final float[] normals;		// per face, the unit normal of the original
+    private final int num_verts, num_faces;
+    private final double[] quadrics;	// ten coefficients per vertex
+    private final boolean[] removed;	// per vertex, collapsed into another
+    private final boolean[] dead;		// per face, degenerated by a collapse
+    private final int[] version;		// per vertex, bumped whenever it changes
+    private final int[][] vertexFaces;	// faces around each vertex, may hold dead ones
+    private final int[] vertexFaceCount;
+    private final int[] mark;			// scratch for de-duplicating neighbors
+    private int markValue = 0;
+    private int live_faces;
+
+    /* binary min-heap of candidate collapses */
+    private double[] heapCost = new double[1024];
+    private int[] heapA = new int[1024], heapB = new int[1024];
+    private int[] heapVersionA = new int[1024], heapVersionB = new int[1024];
+    private int heapSize = 0;
+
+    private final double[] sum = new double[10];	// scratch for cost()
+    private final double[] optimum = new double[3];	// result of the last cost()
+
+    public MeshSimplifier(Mesh mesh) {
+        mesh.toArrays();
+        num_verts = mesh.num_verts;
+        num_faces = mesh.num_faces;
+        verts = Arrays.copyOf(mesh.verts, num_verts * 3);
+        faces = Arrays.copyOf(mesh.faces, num_faces * 3);
+        normals = new float[num_faces * 3];
+        quadrics = new double[num_verts * 10];
+        removed = new boolean[num_verts];
+        dead = new boolean[num_faces];
+        version = new int[num_verts];
+        mark = new int[num_verts];
+        live_faces = num_faces;
+
+        MeshTopology topology = new MeshTopology(mesh);
+        vertexFaceCount = new int[num_verts];
+        vertexFaces = new int[num_verts][];
+        for (int v = 0; v < num_verts; v++) {
+            int n = topology.vertex_start[v + 1] - topology.vertex_start[v];
+            vertexFaces[v] = new int[Math.max(n, 1)];
+            for (int i = 0; i < n; i++) {
+                vertexFaces[v][i] = topology.vertex_corners[topology.vertex_start[v] + i] / 3;
+            }
+            vertexFaceCount[v] = n;
+        }
+
+        for (int f = 0; f < num_faces; f++) {
+            addFaceQuadric(f);
+        }
+        addBoundaryQuadricsAndEdges(topology);
+    }
+
+    /* returns a mesh of at most target faces, or as close to it as the
+     * collapses allow, with freshly estimated normals
+     */
+    public static Mesh simplify(Mesh mesh, int target) {
+        return new MeshSimplifier(mesh).run(target);
+    }
+
+    /* builds successively coarser levels, each with about half the faces
+     * of the one before, while they stay above minFaces
+     */
+    public static Mesh[] buildLevels(Mesh mesh, int levels, int minFaces) {
+        Mesh[] out = new Mesh[levelCount(mesh.num_faces, levels, minFaces)];
+        if (out.length == 0) {
+            return out;
+        }
+        MeshSimplifier simplifier = new MeshSimplifier(mesh);
+        int target = mesh.num_faces;
+        for (int n = 0; n < out.length; n++) {
+            /* the same simplifier keeps collapsing, so levels nest */
+            target /= 2;
+            out[n] = simplifier.run(target);
+        }
+        return out;
+    }
+
+    /* how many levels buildLevels makes for a mesh of num_faces faces */
+    public static int levelCount(int num_faces, int levels, int minFaces) {
+        int n = 0;
+        for (int target = num_faces / 2; n < levels && target >= minFaces; target /= 2) {
+            n++;
+        }
+        return n;
+    }
+
+    public Mesh run(int target) {
+        while (live_faces > target && heapSize > 0) {
+            int a = heapA[0], b = heapB[0];
+            boolean valid = !removed[a] && !removed[b]
+                    && heapVersionA[0] == version[a] && heapVersionB[0] == version[b];
+            pop();
+            if (valid) {
+                collapse(a, b);
+            }
+        }
+        return extract();
+    }
+
+    public int liveFaces() {
+        return live_faces;
+    }
+
+    private void addFaceQuadric(int f) {
+        int a = faces[f * 3] * 3, b = faces[f * 3 + 1] * 3, c = faces[f * 3 + 2] * 3;
+        double e1x = verts[b] - verts[a], e1y = verts[b + 1] - verts[a + 1], e1z = verts[b + 2] - verts[a + 2];
+        double e2x = verts[c] - verts[a], e2y = verts[c + 1] - verts[a + 1], e2z = verts[c + 2] - verts[a + 2];
+        double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+        double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (len == 0) {
+            return;
+        }
+        double area = len / 2;
+        nx /= len;
+        ny /= len;
+        nz /= len;
+        normals[f * 3] = (float) nx;
+        normals[f * 3 + 1] = (float) ny;
+        normals[f * 3 + 2] = (float) nz;
+        double d = -(nx * verts[a] + ny * verts[a + 1] + nz * verts[a + 2]);
+        for (int k = 0; k < 3; k++) {
+            addPlane(faces[f * 3 + k], nx, ny, nz, d, area);
+        }
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d, double w) {
+        int o = v * 10;
+        quadrics[o] += w * a * a;
+        quadrics[o + 1] += w * a * b;
+        quadrics[o + 2] += w * a * c;
+        quadrics[o + 3] += w * a * d;
+        quadrics[o + 4] += w * b * b;
+        quadrics[o + 5] += w * b * c;
+        quadrics[o + 6] += w * b * d;
+        quadrics[o + 7] += w * c * c;
+        quadrics[o + 8] += w * c * d;
+        quadrics[o + 9] += w * d * d;
+    }
+
+    /* adds perpendicular planes along the open edges and queues every
+     * edge once
+     */
+    private void addBoundaryQuadricsAndEdges(MeshTopology topology) {
+        for (int i = 0; i < num_faces * 3; i++) {
+            if (topology.isOpen(i)) {
+                addBoundaryPlane(i / 3, faces[i], faces[MeshTopology.next(i)]);
+            }
+        }
+        for (int i = 0; i < num_faces * 3; i++) {
+            int a = faces[i], b = faces[MeshTopology.next(i)];
+            if (a != b && topology.isFirst(i)) {
+                push(a, b);
+            }
+        }
+    }
+
+    private void addBoundaryPlane(int f, int a, int b) {
+        int c = faces[f * 3] + faces[f * 3 + 1] + faces[f * 3 + 2] - a - b;
+        double ex = verts[b * 3] - verts[a * 3], ey = verts[b * 3 + 1] - verts[a * 3 + 1], ez = verts[b * 3 + 2] - verts[a * 3 + 2];
+        double fx = verts[c * 3] - verts[a * 3], fy = verts[c * 3 + 1] - verts[a * 3 + 1], fz = verts[c * 3 + 2] - verts[a * 3 + 2];
+        double nx = ey * fz - ez * fy, ny = ez * fx - ex * fz, nz = ex * fy - ey * fx;
+        /* plane through the edge, perpendicular to the face */
+        double px = ey * nz - ez * ny, py = ez * nx - ex * nz, pz = ex * ny - ey * nx;
+        double len = Math.sqrt(px * px + py * py + pz * pz);
+        if (len == 0) {
+            return;
+        }
+        px /= len;
+        py /= len;
+        pz /= len;
+        double d = -(px * verts[a * 3] + py * verts[a * 3 + 1] + pz * verts[a * 3 + 2]);
+        double w = BOUNDARY_WEIGHT * (ex * ex + ey * ey + ez * ez);
+        addPlane(a, px, py, pz, d, w);
+        addPlane(b, px, py, pz, d, w);
+    }
+
+    /* the error of collapsing a and b, leaving the best position in optimum */
+    private double cost(int a, int b) {
+        double[] q = sum;
+        for (int k = 0; k < 10; k++) {
+            q[k] = quadrics[a * 10 + k] + quadrics[b * 10 + k];
+        }
+        /* solve the 3x3 system by Cramer's rule */
+        double det = q[0] * (q[4] * q[7] - q[5] * q[5]) - q[1] * (q[1] * q[7] - q[5] * q[2]) + q[2] * (q[1] * q[5] - q[4] * q[2]);
+        double scale = Math.abs(q[0]) + Math.abs(q[4]) + Math.abs(q[7]);
+        if (Math.abs(det) > 1e-12 * scale * scale * scale && scale > 0) {
+            double bx = -q[3], by = -q[6], bz = -q[8];
+            optimum[0] = (bx * (q[4] * q[7] - q[5] * q[5]) - q[1] * (by * q[7] - q[5] * bz) + q[2] * (by * q[5] - q[4] * bz)) / det;
+            optimum[1] = (q[0] * (by * q[7] - q[5] * bz) - bx * (q[1] * q[7] - q[5] * q[2]) + q[2] * (q[1] * bz - by * q[2])) / det;
+            optimum[2] = (q[0] * (q[4] * bz - by * q[5]) - q[1] * (q[1] * bz - by * q[2]) + bx * (q[1] * q[5] - q[4] * q[2])) / det;
+            return error(q, optimum[0], optimum[1], optimum[2]);
+        }
+        /* degenerate quadric: pick the best of the endpoints and the midpoint */
+        double best = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < 3; k++) {
+            double x, y, z;
+            if (k < 2) {
+                int v = (k == 0 ? a : b) * 3;
+                x = verts[v];
+                y = verts[v + 1];
+                z = verts[v + 2];
+            } else {
+                x = (verts[a * 3] + verts[b * 3]) / 2.0;
+                y = (verts[a * 3 + 1] + verts[b * 3 + 1]) / 2.0;
+                z = (verts[a * 3 + 2] + verts[b * 3 + 2]) / 2.0;
+            }
+            double e = error(q, x, y, z);
+            if (e < best) {
+                best = e;
+                optimum[0] = x;
+                optimum[1] = y;
+                optimum[2] = z;
+            }
+        }
+        return best;
+    }
+
+    private static double error(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+                + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+                + q[7] * z * z + 2 * q[8] * z + q[9];
+    }
+
+    private void collapse(int a, int b) {
+        cost(a, b);
+        float x = (float) optimum[0], y = (float) optimum[1], z = (float) optimum[2];
+        if (flips(a, b, x, y, z) || flips(b, a, x, y, z)) {
+            return;
+        }
+
+        verts[a * 3] = x;
+        verts[a * 3 + 1] = y;
+        verts[a * 3 + 2] = z;
+        for (int k = 0; k < 10; k++) {
+            quadrics[a * 10 + k] += quadrics[b * 10 + k];
+        }
+        removed[b] = true;
+        version[a]++;
+        version[b]++;
+
+        for (int i = 0; i < vertexFaceCount[b]; i++) {
+            int f = vertexFaces[b][i];
+            if (dead[f]) {
+                continue;
+            }
+            int o = f * 3;
+            if (faces[o] == a || faces[o + 1] == a || faces[o + 2] == a) {
+                dead[f] = true;
+                live_faces--;
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                if (faces[o + k] == b) {
+                    faces[o + k] = a;
+                }
+            }
+            addVertexFace(a, f);
+        }
+        vertexFaceCount[b] = 0;
+        compactVertexFaces(a);
+
+        /* queue the edges from a to its new neighborhood */
+        markValue++;
+        mark[a] = markValue;
+        for (int i = 0; i < vertexFaceCount[a]; i++) {
+            int o = vertexFaces[a][i] * 3;
+            for (int k = 0; k < 3; k++) {
+                int n = faces[o + k];
+                if (mark[n] != markValue) {
+                    mark[n] = markValue;
+                    push(a, n);
+                }
+            }
+        }
+    }
+
+    /* whether moving v to (x, y, z), with other merged into it, turns any
+     * remaining face around v over, or against its original normal; small
+     * turns that each pass the first test add up over many collapses
+     */
+    private boolean flips(int v, int other, float x, float y, float z) {
+        for (int i = 0; i < vertexFaceCount[v]; i++) {
+            int f = vertexFaces[v][i];
+            if (dead[f]) {
+                continue;
+            }
+            int o = f * 3;
+            if (faces[o] == other || faces[o + 1] == other || faces[o + 2] == other) {
+                continue;	// this face disappears
+            }
+            int k = faces[o] == v ? 0 : faces[o + 1] == v ? 1 : 2;
+            int p = faces[o + (k + 1) % 3] * 3, q = faces[o + (k + 2) % 3] * 3;
+            int c = v * 3;
+            double e1x = verts[p] - verts[c], e1y = verts[p + 1] - verts[c + 1], e1z = verts[p + 2] - verts[c + 2];
+            double e2x = verts[q] - verts[c], e2y = verts[q + 1] - verts[c + 1], e2z = verts[q + 2] - verts[c + 2];
+            double ox = e1y * e2z - e1z * e2y, oy = e1z * e2x - e1x * e2z, oz = e1x * e2y - e1y * e2x;
+            e1x = verts[p] - x;
+            e1y = verts[p + 1] - y;
+            e1z = verts[p + 2] - z;
+            e2x = verts[q] - x;
+            e2y = verts[q + 1] - y;
+            e2z = verts[q + 2] - z;
+            double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+            if (ox * nx + oy * ny + oz * nz <= 0
+                    || normals[o] * nx + normals[o + 1] * ny + normals[o + 2] * nz < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addVertexFace(int v, int f) {
+        if (vertexFaceCount[v] == vertexFaces[v].length) {
+            vertexFaces[v] = Arrays.copyOf(vertexFaces[v], vertexFaces[v].length * 2);
+        }
+        vertexFaces[v][vertexFaceCount[v]++] = f;
+    }
+
+    private void compactVertexFaces(int v) {
+        int n = 0;
+        for (int i = 0; i < vertexFaceCount[v]; i++) {
+            int f = vertexFaces[v][i];
+            if (!dead[f]) {
+                vertexFaces[v][n++] = f;
+            }
+        }
+        vertexFaceCount[v] = n;
+    }
+
+    /* copies the live faces and the vertices they use into a new mesh */
+    private Mesh extract() {
+        int[] index = new int[num_verts];
+        Arrays.fill(index, -1);
+        int[] outFaces = new int[live_faces * 3];
+        float[] outVerts = new float[num_verts * 3];
+        int nv = 0, n = 0;
+        for (int f = 0; f < num_faces; f++) {
+            if (dead[f]) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = faces[f * 3 + k];
+                if (index[v] < 0) {
+                    index[v] = nv;
+                    System.arraycopy(verts, v * 3, outVerts, nv * 3, 3);
+                    nv++;
+                }
+                outFaces[n++] = index[v];
+            }
+        }
+        Mesh mesh = new Mesh(Arrays.copyOf(outVerts, nv * 3), nv, outFaces, live_faces);
+        mesh.computeNormals();
+        mesh.computeBounds();
+        MeshOptimizer.optimize(mesh);
+        mesh.toBuffers();
+        return mesh;
+    }
+
+    private void push(int a, int b) {
+        if (heapSize == heapCost.length) {
+            int n = heapSize * 2;
+            heapCost = Arrays.copyOf(heapCost, n);
+            heapA = Arrays.copyOf(heapA, n);
+            heapB = Arrays.copyOf(heapB, n);
+            heapVersionA = Arrays.copyOf(heapVersionA, n);
+            heapVersionB = Arrays.copyOf(heapVersionB, n);
+        }
+        double c = cost(a, b);
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapCost[parent] <= c) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        heapCost[i] = c;
+        heapA[i] = a;
+        heapB[i] = b;
+        heapVersionA[i] = version[a];
+        heapVersionB[i] = version[b];
+    }
+
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0) {
+            return;
+        }
+        int last = heapSize;
+        double c = heapCost[last];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapCost[child + 1] < heapCost[child]) {
+                child++;
+            }
+            if (heapCost[child] >= c) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        move(last, i);
+    }
+
+    private void move(int from, int to) {
+        heapCost[to] = heapCost[from];
+        heapA[to] = heapA[from];
+        heapB[to] = heapB[from];
+        heapVersionA[to] = heapVersionA[from];
+        heapVersionB[to] = heapVersionB[from];
+    }
+}
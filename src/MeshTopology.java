@@ -0,0 +1,376 @@
+import java.util.Arrays;
+
+/* This defines the MeshTopology class: the cleanup of a mesh as it is
+ * read from an .obj file, and the adjacency of a mesh.
+ *
+ * weld() merges vertices closer than a tolerance, so that faces written
+ * with split copies of a position share one vertex again and get smooth
+ * normals. Positions are hashed into a grid of cells twice the tolerance
+ * wide, so a vertex only looks in the at most 8 cells its tolerance box
+ * overlaps; the first vertex found within the tolerance stands for it.
+ * removeDegenerate() drops the faces that use a vertex twice, that have
+ * no area to float precision, or that repeat an earlier face with the
+ * same winding. clean() runs both and drops the vertices no face uses.
+ *
+ * An instance is the adjacency of a mesh, in compressed rows: the corners
+ * around every vertex, in face order, and for every corner (the edge
+ * from its vertex to the next one of its face) the ring of corners on
+ * the same edge, in either direction. A ring of two makes the corners
+ * twin half-edges, a ring of one is an open edge and a longer ring a
+ * non-manifold one. Both are built with counting sorts, so the class
+ * takes time and memory linear in the size of the mesh.
+ */
+final class MeshTopology {
+
+    static final float WELD_TOLERANCE = 1e-6f;	// of the longest side of the bounding box
+    static final float AREA_TOLERANCE = 1e-7f;	// of the longest edge squared, about float precision
+    static final int SORT_BUCKET = 32;			// larger buckets are sorted rather than searched
+
+    public final int num_verts, num_faces;
+    public final int[] faces;			// the mesh's faces, not copied
+
+    /* vertex_corners[vertex_start[v] .. vertex_start[v + 1]) are the corners at vertex v */
+    public final int[] vertex_start;
+    public final int[] vertex_corners;
+
+    /* per corner, the next corner on the same edge, larger except at the
+     * end of the ring, or the corner itself on an open edge
+     */
+    public final int[] radial;
+
+    public int edges, open_edges, nonmanifold_edges;
+
+    public MeshTopology(Mesh mesh) {
+        this(mesh, true);
+    }
+
+    /* without edges, radial is null and the edge counts are 0 */
+    public MeshTopology(Mesh mesh, boolean withEdges) {
+        mesh.toArrays();
+        num_verts = mesh.num_verts;
+        num_faces = mesh.num_faces;
+        faces = mesh.faces;
+        int corners = num_faces * 3;
+
+        vertex_start = new int[num_verts + 1];
+        vertex_corners = new int[corners];
+        bucket(vertex_start, vertex_corners, false);
+        if (!withEdges) {
+            radial = null;
+            return;
+        }
+
+        /* the corners of every edge are next to each other in the bucket
+         * of its lower vertex
+         */
+        radial = new int[corners];
+        int[] start = new int[num_verts + 1];
+        int[] bucket = new int[corners];
+        bucket(start, bucket, true);
+        for (int c = 0; c < corners; c++) {
+            radial[c] = c;
+        }
+        long[] keys = new long[0];
+        for (int v = 0; v < num_verts; v++) {
+            int lo = start[v], hi = start[v + 1];
+            if (hi - lo <= SORT_BUCKET) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int c = bucket[i], to = high(c);
+                    for (int j = i - 1; j >= lo; j--) {
+                        if (high(bucket[j]) == to) {
+                            link(bucket[j], c);		// bucket[j] is the end of the ring so far
+                            break;
+                        }
+                    }
+                }
+                continue;
+            }
+            if (keys.length < hi - lo) {
+                keys = new long[hi - lo];
+            }
+            for (int i = lo; i < hi; i++) {
+                keys[i - lo] = (long) high(bucket[i]) << 32 | bucket[i];
+            }
+            Arrays.sort(keys, 0, hi - lo);
+            for (int i = 1; i < hi - lo; i++) {
+                if (keys[i] >>> 32 == keys[i - 1] >>> 32) {
+                    link((int) keys[i - 1], (int) keys[i]);
+                }
+            }
+        }
+
+        for (int c = 0; c < corners; c++) {
+            /* count every edge at the end of its ring */
+            if (radial[c] <= c) {
+                edges++;
+                if (radial[c] == c) {
+                    open_edges++;
+                } else if (radial[radial[c]] != c) {
+                    nonmanifold_edges++;
+                }
+            }
+        }
+    }
+
+    /* sorts the corners into rows by their vertex, or by the lower vertex
+     * of their edge, keeping face order within a row
+     */
+    private void bucket(int[] start, int[] out, boolean edges) {
+        int corners = num_faces * 3;
+        for (int c = 0; c < corners; c++) {
+            start[(edges ? low(c) : faces[c]) + 1]++;
+        }
+        for (int v = 0; v < num_verts; v++) {
+            start[v + 1] += start[v];
+        }
+        int[] next = Arrays.copyOf(start, num_verts);
+        for (int c = 0; c < corners; c++) {
+            out[next[edges ? low(c) : faces[c]]++] = c;
+        }
+    }
+
+    /* appends c to the ring that ends with last */
+    private void link(int last, int c) {
+        radial[c] = radial[last];
+        radial[last] = c;
+    }
+
+    /* the corner after c in its face */
+    public static int next(int c) {
+        return c - c % 3 + (c % 3 + 1) % 3;
+    }
+
+    private int low(int c) {
+        return Math.min(faces[c], faces[next(c)]);
+    }
+
+    private int high(int c) {
+        return Math.max(faces[c], faces[next(c)]);
+    }
+
+    public boolean isOpen(int c) {
+        return radial[c] == c;
+    }
+
+    /* the other corner of a manifold edge, or -1 */
+    public int twin(int c) {
+        int d = radial[c];
+        return d != c && radial[d] == c ? d : -1;
+    }
+
+    /* whether c is the first corner of its edge in face order */
+    public boolean isFirst(int c) {
+        for (int d = radial[c]; d != c; d = radial[d]) {
+            if (d < c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* what clean() did to one mesh */
+    static class Cleanup {
+        public int verts_before, faces_before;
+        public int welded, unused;		// vertices removed
+        public int degenerate, duplicate;	// faces removed
+        public int verts_after, faces_after;
+
+        public String toString() {
+            return String.format("%d -> %d vertices (%d welded, %d unused), "
+                            + "%d -> %d faces (%d degenerate, %d duplicate)",
+                    verts_before, verts_after, welded, unused,
+                    faces_before, faces_after, degenerate, duplicate);
+        }
+    }
+
+    /* welds the vertices of mesh within WELD_TOLERANCE of its size, removes
+     * degenerate and duplicate faces and then the unused vertices; the mesh
+     * must not have normals or buffers yet
+     */
+    public static Cleanup clean(Mesh mesh) {
+        mesh.computeBounds();
+        float size = Math.max(mesh.max[0] - mesh.min[0], Math.max(mesh.max[1] - mesh.min[1], mesh.max[2] - mesh.min[2]));
+        return clean(mesh, WELD_TOLERANCE * size);
+    }
+
+    public static Cleanup clean(Mesh mesh, float tolerance) {
+        Cleanup report = new Cleanup();
+        report.verts_before = mesh.num_verts;
+        report.faces_before = mesh.num_faces;
+        report.welded = weld(mesh, tolerance);
+        int faces = mesh.num_faces;
+        report.duplicate = removeDegenerate(mesh);
+        report.degenerate = faces - mesh.num_faces - report.duplicate;
+        report.unused = removeUnused(mesh) - report.welded;
+        report.verts_after = mesh.num_verts;
+        report.faces_after = mesh.num_faces;
+        return report;
+    }
+
+    /* points the faces of every vertex within tolerance of an earlier one
+     * at that one instead, and returns how many were; the vertices stay
+     * until removeUnused()
+     */
+    public static int weld(Mesh mesh, float tolerance) {
+        int n = mesh.num_verts;
+        float[] verts = mesh.verts;
+        float cell = tolerance > 0 ? 2 * tolerance : 1;
+        float tol2 = tolerance * tolerance;
+
+        /* open addressing from cells to the first vertex kept in them */
+        int capacity = Integer.highestOneBit(Math.max(n, 4)) * 4;
+        long[] keys = new long[capacity];
+        int[] head = new int[capacity];
+        int[] chain = new int[n];			// the next vertex kept in the same cell
+        int[] remap = new int[n];
+        Arrays.fill(head, -1);
+
+        int welded = 0;
+        for (int v = 0; v < n; v++) {
+            float x = verts[v * 3], y = verts[v * 3 + 1], z = verts[v * 3 + 2];
+            int found = -1;
+            search:
+            for (long ix = cellOf(x - tolerance, cell); ix <= cellOf(x + tolerance, cell); ix++) {
+                for (long iy = cellOf(y - tolerance, cell); iy <= cellOf(y + tolerance, cell); iy++) {
+                    for (long iz = cellOf(z - tolerance, cell); iz <= cellOf(z + tolerance, cell); iz++) {
+                        int slot = slot(keys, head, cellKey(ix, iy, iz));
+                        for (int w = head[slot]; w >= 0; w = chain[w]) {
+                            float dx = verts[w * 3] - x, dy = verts[w * 3 + 1] - y, dz = verts[w * 3 + 2] - z;
+                            if (dx * dx + dy * dy + dz * dz <= tol2) {
+                                found = w;
+                                break search;
+                            }
+                        }
+                    }
+                }
+            }
+            if (found >= 0) {
+                remap[v] = found;
+                welded++;
+                continue;
+            }
+            remap[v] = v;
+            long key = cellKey(cellOf(x, cell), cellOf(y, cell), cellOf(z, cell));
+            int slot = slot(keys, head, key);
+            keys[slot] = key;
+            chain[v] = head[slot];
+            head[slot] = v;
+        }
+        if (welded > 0) {
+            for (int i = 0; i < mesh.num_faces * 3; i++) {
+                mesh.faces[i] = remap[mesh.faces[i]];
+            }
+        }
+        return welded;
+    }
+
+    private static long cellOf(float x, float cell) {
+        return (long) Math.floor(x / cell);
+    }
+
+    /* 21 bits per axis; cells that share a key only share a hash chain */
+    private static long cellKey(long ix, long iy, long iz) {
+        return (ix & 0x1fffff) << 42 | (iy & 0x1fffff) << 21 | (iz & 0x1fffff);
+    }
+
+    private static int slot(long[] keys, int[] head, long key) {
+        int mask = keys.length - 1;
+        int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (head[i] >= 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /* removes the faces that use a vertex twice or have no area, and then
+     * those that repeat an earlier face in the same winding, keeping the
+     * order of the rest; returns the number of repeated faces
+     */
+    public static int removeDegenerate(Mesh mesh) {
+        float[] v = mesh.verts;
+        int[] faces = mesh.faces;
+        int n = 0;
+        for (int f = 0; f < mesh.num_faces; f++) {
+            int a = faces[f * 3], b = faces[f * 3 + 1], c = faces[f * 3 + 2];
+            if (a == b || b == c || c == a) {
+                continue;
+            }
+            float e1x = v[b * 3] - v[a * 3], e1y = v[b * 3 + 1] - v[a * 3 + 1], e1z = v[b * 3 + 2] - v[a * 3 + 2];
+            float e2x = v[c * 3] - v[a * 3], e2y = v[c * 3 + 1] - v[a * 3 + 1], e2z = v[c * 3 + 2] - v[a * 3 + 2];
+            float e3x = e2x - e1x, e3y = e2y - e1y, e3z = e2z - e1z;
+            float nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+            float longest = Math.max(e1x * e1x + e1y * e1y + e1z * e1z,
+                    Math.max(e2x * e2x + e2y * e2y + e2z * e2z, e3x * e3x + e3y * e3y + e3z * e3z));
+            float limit = AREA_TOLERANCE * longest;
+            if (nx * nx + ny * ny + nz * nz <= limit * limit) {
+                continue;
+            }
+            System.arraycopy(faces, f * 3, faces, n * 3, 3);
+            n++;
+        }
+        mesh.num_faces = n;
+
+        /* a repeated face has the first edge of the face it repeats */
+        MeshTopology topology = new MeshTopology(mesh);
+        boolean[] repeated = new boolean[n];
+        int count = 0;
+        for (int f = 0; f < n; f++) {
+            for (int d = topology.radial[f * 3]; d != f * 3; d = topology.radial[d]) {
+                if (d < f * 3 && sameFace(faces, f, d / 3)) {
+                    repeated[f] = true;
+                    count++;
+                    break;
+                }
+            }
+        }
+        if (count > 0) {
+            int m = 0;
+            for (int f = 0; f < n; f++) {
+                if (!repeated[f]) {
+                    System.arraycopy(faces, f * 3, faces, m * 3, 3);
+                    m++;
+                }
+            }
+            mesh.num_faces = m;
+        }
+        return count;
+    }
+
+    /* whether faces f and g have the same corners in the same cyclic order */
+    private static boolean sameFace(int[] faces, int f, int g) {
+        for (int k = 0; k < 3; k++) {
+            if (faces[g * 3 + k] == faces[f * 3]) {
+                return faces[g * 3 + (k + 1) % 3] == faces[f * 3 + 1]
+                        && faces[g * 3 + (k + 2) % 3] == faces[f * 3 + 2];
+            }
+        }
+        return false;
+    }
+
+    /* renumbers the vertices the faces use in their old order and drops
+     * the rest; returns how many were dropped
+     */
+    public static int removeUnused(Mesh mesh) {
+        int[] index = new int[mesh.num_verts];
+        for (int i = 0; i < mesh.num_faces * 3; i++) {
+            index[mesh.faces[i]] = 1;
+        }
+        int n = 0;
+        for (int v = 0; v < mesh.num_verts; v++) {
+            if (index[v] != 0) {
+                index[v] = n;
+                System.arraycopy(mesh.verts, v * 3, mesh.verts, n * 3, 3);
+                if (mesh.norms != null) {
+                    System.arraycopy(mesh.norms, v * 3, mesh.norms, n * 3, 3);
+                }
+                n++;
+            }
+        }
+        for (int i = 0; i < mesh.num_faces * 3; i++) {
+            mesh.faces[i] = index[mesh.faces[i]];
+        }
+        int dropped = mesh.num_verts - n;
+        mesh.num_verts = n;
+        return dropped;
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/* This defines the ModelLoader class, which loads meshes on a pool of
+ * worker threads so that all models of a scene are read in parallel
+ * and the window can open before any of them is ready.
+ * Meshes come from the binary MeshCache when it is up to date, and
+ * their simplified levels of detail are built after them.
+ * Every load returns a future that completes with the mesh, or
+ * exceptionally with the IOException that made the load fail.
+ */
+class ModelLoader {
+
+    static final int LOD_LEVELS = 4;		// simplified levels per mesh, each with half the faces
+    static final int LOD_MIN_FACES = 500;	// no level is made smaller than this
+
+    private final ExecutorService pool;
+
+    public ModelLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ModelLoader(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "model-loader-" + count.incrementAndGet());
+                t.setDaemon(true);	// never keep the application alive
+                return t;
+            }
+        });
+    }
+
+    public CompletableFuture<Mesh> load(final String filename) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return MeshCache.load(filename);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    /* simplifies the mesh base completes with into levels of detail */
+    public CompletableFuture<Mesh[]> loadLevels(final String filename, CompletableFuture<Mesh> base) {
+        return base.thenApplyAsync(mesh -> {
+            try {
+                return MeshCache.loadLevels(filename, mesh, LOD_LEVELS, LOD_MIN_FACES);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    /* runs a mesh generator, such as one of the Primitives */
+    public CompletableFuture<Mesh> generate(final Supplier<Mesh> generator) {
+        return CompletableFuture.supplyAsync(generator, pool);
+    }
+
+    /* opens the ClusterStore of a file, building it first if needed */
+    public CompletableFuture<ClusterStore> openClusters(final String filename) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return ClusterStore.open(filename);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    /* maps one cluster of a store */
+    public CompletableFuture<Mesh> loadCluster(final ClusterStore store, final int cluster) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return store.read(cluster);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* This defines the ObjParser class, which reads the vertex ("v") and
+ * face ("f") records of a Wavefront .obj file straight from the bytes
+ * of a memory-mapped file into primitive arrays.
+ * No Strings or boxed numbers are created on the common path.
+ * Faces may be written as v, v/vt, v//vn or v/vt/vn and may use negative
+ * (relative) indices; polygons are split into triangle fans.
+ * Normals, texture coordinates, comments and all other records are skipped.
+ * stream() reads files of any size a chunk at a time; then the arrays
+ * hold one chunk and the face indices count from the start of the file.
+ */
+class ObjParser {
+
+    public float[] verts = new float[3 * 4096];	// x, y, z of every vertex
+    public int[] faces = new int[3 * 4096];		// three zero-based vertex indices per triangle
+    public int num_verts;		// number of vertices
+    public int num_faces;		// number of triangle faces
+    public long vertex_base;	// vertices in the chunks before this one
+
+    static final int CHUNK = 16 << 20;		// bytes mapped at a time by stream()
+
+    /* takes the vertices and faces of one chunk of a streamed file */
+    interface Sink {
+        void chunk(ObjParser parser) throws IOException;
+    }
+
+    private static final double[] POW10 = new double[23];	// powers of ten that are exact in a double
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private ByteBuffer buf;
+    private int pos, end;
+    private int line;
+
+    public static ObjParser parse(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(filename + " is too large to be mapped");
+            }
+            ObjParser parser = new ObjParser();
+            parser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            return parser;
+        }
+    }
+
+    /* parses filename in chunks of whole lines, handing every chunk to
+     * sink before the next is read, so the file may be larger than
+     * memory; face indices must be below 2^31
+     */
+    public static void stream(String filename, Sink sink) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            ObjParser parser = new ObjParser();
+            for (long offset = 0; offset < size; ) {
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK, size - offset));
+                int limit = chunk.limit();
+                if (offset + limit < size) {
+                    while (limit > 0 && chunk.get(limit - 1) != '\n') {
+                        limit--;
+                    }
+                    if (limit == 0) {
+                        throw new IOException("Line " + (parser.line + 1) + " of " + filename + " is too long.");
+                    }
+                    chunk.limit(limit);
+                }
+                parser.parse(chunk);
+                sink.chunk(parser);
+                MeshManager.free(chunk);
+                parser.vertex_base += parser.num_verts;
+                parser.num_verts = parser.num_faces = 0;
+                offset += limit;
+            }
+        }
+    }
+
+    /* parses the bytes between the position and the limit of b */
+    public void parse(ByteBuffer b) throws IOException {
+        buf = b;
+        pos = b.position();
+        end = b.limit();
+        while (pos < end) {
+            line++;
+            skipSpaces();
+            if (pos < end && isSpace(pos + 1)) {
+                switch (buf.get(pos)) {
+                    case 'v':
+                        pos++;
+                        parseVertex();
+                        break;
+                    case 'f':
+                        pos++;
+                        parseFace();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            skipLine();
+        }
+        for (int i = 0; i < num_faces * 3; i++) {
+            if (faces[i] < 0 || faces[i] >= vertex_base + num_verts) {
+                throw new IOException("Face index " + faces[i] + " is out of range, only "
+                        + (vertex_base + num_verts) + " vertices were read.");
+            }
+        }
+        buf = null;
+    }
+
+    private void parseVertex() throws IOException {
+        float x = parseFloat();
+        float y = parseFloat();
+        float z = parseFloat();
+        if (num_verts * 3 + 3 > verts.length) {
+            verts = Arrays.copyOf(verts, verts.length * 2);
+        }
+        int i = num_verts * 3;
+        verts[i] = x;
+        verts[i + 1] = y;
+        verts[i + 2] = z;
+        num_verts++;
+    }
+
+    private void parseFace() throws IOException {
+        int count = 0, first = 0, prev = 0;
+        while (true) {
+            skipSpaces();
+            if (atLineEnd()) {
+                break;
+            }
+            int v = parseIndex();
+            /* skip the texture and normal indices of this corner */
+            while (pos < end && !isSpace(pos) && !atLineEnd()) {
+                pos++;
+            }
+            if (count == 0) {
+                first = v;
+            } else if (count >= 2) {
+                if (num_faces * 3 + 3 > faces.length) {
+                    faces = Arrays.copyOf(faces, faces.length * 2);
+                }
+                int i = num_faces * 3;
+                faces[i] = first;
+                faces[i + 1] = prev;
+                faces[i + 2] = v;
+                num_faces++;
+            }
+            prev = v;
+            count++;
+        }
+        if (count < 3) {
+            throw new IOException("Face with fewer than three vertices on line " + line);
+        }
+    }
+
+    private int parseIndex() throws IOException {
+        boolean negative = false;
+        if (pos < end && buf.get(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        byte c;
+        while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            pos++;
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Face index too large on line " + line);
+            }
+        }
+        if (pos == start || value == 0) {
+            throw new IOException("Bad face index on line " + line);
+        }
+        /* negative indices count back from the most recent vertex */
+        return negative ? (int) (vertex_base + num_verts - value) : (int) value - 1;
+    }
+
+    private float parseFloat() throws IOException {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        byte c = at(pos);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean any = false;
+        while ((c = at(pos)) >= '0' && c <= '9') {
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa != 0) {
+                digits++;
+            }
+            any = true;
+            pos++;
+        }
+        if (c == '.') {
+            pos++;
+            while ((c = at(pos)) >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                exponent--;
+                any = true;
+                pos++;
+            }
+        }
+        if (any && (c == 'e' || c == 'E')) {
+            pos++;
+            boolean expNegative = false;
+            c = at(pos);
+            if (c == '-' || c == '+') {
+                expNegative = c == '-';
+                pos++;
+            }
+            int e = 0;
+            while ((c = at(pos)) >= '0' && c <= '9' && e < 10000) {
+                e = e * 10 + (c - '0');
+                pos++;
+            }
+            exponent += expNegative ? -e : e;
+        }
+        /* the fast path is exact while the mantissa and the power of ten both fit in a double */
+        if (!any || digits > 15 || exponent < -22 || exponent > 22 || !(pos >= end || isSpace(pos) || atLineEnd())) {
+            return slowFloat(start);
+        }
+        double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+        return (float) (negative ? -value : value);
+    }
+
+    private float slowFloat(int start) throws IOException {
+        pos = start;
+        while (pos < end && !isSpace(pos) && !atLineEnd()) {
+            pos++;
+        }
+        byte[] token = new byte[pos - start];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = buf.get(start + i);
+        }
+        try {
+            return Float.parseFloat(new String(token, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad number on line " + line);
+        }
+    }
+
+    private byte at(int p) {
+        return p < end ? buf.get(p) : 0;
+    }
+
+    private boolean isSpace(int p) {
+        if (p >= end) {
+            return false;
+        }
+        byte c = buf.get(p);
+        return c == ' ' || c == '\t';
+    }
+
+    private boolean atLineEnd() {
+        if (pos >= end) {
+            return true;
+        }
+        byte c = buf.get(pos);
+        return c == '\n' || c == '\r' || c == '#';
+    }
+
+    private void skipSpaces() {
+        while (isSpace(pos)) {
+            pos++;
+        }
+    }
+
+    private void skipLine() {
+        while (pos < end && buf.get(pos) != '\n') {
+            pos++;
+        }
+        pos++;
+    }
+}
@@ -0,0 +1,187 @@
+/* This defines the Primitives class, which generates the meshes of simple
+ * shapes: spheres, cubes, cylinders, planes and tori.
+ *
+ * The meshes are indexed triangles with exact normals, in the same Mesh
+ * form as loaded models, so they are drawn, batched, culled and picked
+ * like them. Unlike loaded models they are not normalized: the sizes are
+ * those asked for, around the origin, with y up. Front faces wind
+ * counterclockwise seen from outside.
+ *
+ * Generating a mesh costs about as much as a frame of immediate-mode
+ * drawing, so it is done once; key() names a shape with its parameters,
+ * under which a MeshManager shares one mesh among all its users.
+ */
+final class Primitives {
+
+    private Primitives() {
+    }
+
+    /* the name of a shape with its parameters, e.g. sphere(0.3, 50, 50) */
+    public static String key(String shape, Object... params) {
+        StringBuilder b = new StringBuilder(shape).append('(');
+        for (int i = 0; i < params.length; i++) {
+            b.append(i > 0 ? ", " : "").append(params[i]);
+        }
+        return b.append(')').toString();
+    }
+
+    /* a sphere around the y axis, with slices around it and stacks from pole to pole */
+    public static Mesh sphere(float radius, int slices, int stacks) {
+        check(slices >= 3 && stacks >= 2);
+        Mesh mesh = allocate((stacks + 1) * (slices + 1), 2 * slices * (stacks - 1));
+        for (int i = 0; i <= stacks; i++) {
+            double theta = Math.PI * i / stacks;
+            float y = (float) Math.cos(theta), r = (float) Math.sin(theta);
+            for (int j = 0; j <= slices; j++) {
+                double phi = 2 * Math.PI * j / slices;
+                float x = r * (float) Math.cos(phi), z = -r * (float) Math.sin(phi);
+                vertex(mesh, x * radius, y * radius, z * radius, x, y, z);
+            }
+        }
+        grid(mesh, 0, stacks, slices, true);
+        return finish(mesh);
+    }
+
+    /* an axis-aligned cube with sides of length size */
+    public static Mesh cube(float size) {
+        Mesh mesh = allocate(24, 12);
+        float h = size / 2;
+        /* per side the normal, then u and v with u x v = normal */
+        int[][] sides = {
+            {1, 0, 0, 0, 1, 0, 0, 0, 1}, {-1, 0, 0, 0, 0, 1, 0, 1, 0},
+            {0, 1, 0, 0, 0, 1, 1, 0, 0}, {0, -1, 0, 1, 0, 0, 0, 0, 1},
+            {0, 0, 1, 1, 0, 0, 0, 1, 0}, {0, 0, -1, 0, 1, 0, 1, 0, 0}};
+        int[] su = {-1, 1, 1, -1}, sv = {-1, -1, 1, 1};
+        for (int[] s : sides) {
+            int base = mesh.num_verts;
+            for (int c = 0; c < 4; c++) {
+                float x = h * (s[0] + su[c] * s[3] + sv[c] * s[6]);
+                float y = h * (s[1] + su[c] * s[4] + sv[c] * s[7]);
+                float z = h * (s[2] + su[c] * s[5] + sv[c] * s[8]);
+                vertex(mesh, x, y, z, s[0], s[1], s[2]);
+            }
+            face(mesh, base, base + 1, base + 2);
+            face(mesh, base, base + 2, base + 3);
+        }
+        return finish(mesh);
+    }
+
+    /* a closed cylinder around the y axis, centered on the origin */
+    public static Mesh cylinder(float radius, float height, int slices) {
+        check(slices >= 3);
+        Mesh mesh = allocate(4 * (slices + 1) + 2, 4 * slices);
+        float h = height / 2;
+        for (int i = 0; i <= 1; i++) {
+            for (int j = 0; j <= slices; j++) {
+                double phi = 2 * Math.PI * j / slices;
+                float x = (float) Math.cos(phi), z = -(float) Math.sin(phi);
+                vertex(mesh, x * radius, i == 0 ? h : -h, z * radius, x, 0, z);
+            }
+        }
+        grid(mesh, 0, 1, slices, false);
+        /* the caps, a fan each with normals along the axis */
+        for (int cap = 0; cap <= 1; cap++) {
+            float y = cap == 0 ? h : -h, ny = cap == 0 ? 1 : -1;
+            int center = mesh.num_verts;
+            vertex(mesh, 0, y, 0, 0, ny, 0);
+            for (int j = 0; j <= slices; j++) {
+                double phi = 2 * Math.PI * j / slices;
+                vertex(mesh, radius * (float) Math.cos(phi), y, -radius * (float) Math.sin(phi), 0, ny, 0);
+            }
+            for (int j = 0; j < slices; j++) {
+                if (cap == 0) {
+                    face(mesh, center, center + 1 + j, center + 2 + j);
+                } else {
+                    face(mesh, center, center + 2 + j, center + 1 + j);
+                }
+            }
+        }
+        return finish(mesh);
+    }
+
+    /* a plane in xz facing up, centered on the origin, divided into divisions^2 squares */
+    public static Mesh plane(float width, float depth, int divisions) {
+        check(divisions >= 1);
+        Mesh mesh = allocate((divisions + 1) * (divisions + 1), 2 * divisions * divisions);
+        for (int i = 0; i <= divisions; i++) {
+            for (int j = 0; j <= divisions; j++) {
+                vertex(mesh, width * ((float) j / divisions - .5f), 0, depth * ((float) i / divisions - .5f), 0, 1, 0);
+            }
+        }
+        grid(mesh, 0, divisions, divisions, false);
+        return finish(mesh);
+    }
+
+    /* a torus around the y axis; rings around the axis, sides around the tube */
+    public static Mesh torus(float major, float minor, int rings, int sides) {
+        check(rings >= 3 && sides >= 3);
+        Mesh mesh = allocate((sides + 1) * (rings + 1), 2 * rings * sides);
+        for (int i = 0; i <= sides; i++) {
+            double psi = 2 * Math.PI * i / sides;
+            float c = (float) Math.cos(psi), s = (float) Math.sin(psi);
+            for (int j = 0; j <= rings; j++) {
+                double phi = 2 * Math.PI * j / rings;
+                float x = (float) Math.cos(phi), z = -(float) Math.sin(phi);
+                float r = major + minor * c;
+                vertex(mesh, x * r, -minor * s, z * r, x * c, -s, z * c);
+            }
+        }
+        grid(mesh, 0, sides, rings, false);
+        return finish(mesh);
+    }
+
+    private static void check(boolean valid) {
+        if (!valid) {
+            throw new IllegalArgumentException("too few divisions for a closed shape");
+        }
+    }
+
+    private static Mesh allocate(int verts, int faces) {
+        Mesh mesh = new Mesh(new float[verts * 3], 0, new int[faces * 3], 0);
+        mesh.norms = new float[verts * 3];
+        return mesh;
+    }
+
+    private static void vertex(Mesh mesh, float x, float y, float z, float nx, float ny, float nz) {
+        int o = mesh.num_verts++ * 3;
+        mesh.verts[o] = x;
+        mesh.verts[o + 1] = y;
+        mesh.verts[o + 2] = z;
+        mesh.norms[o] = nx;
+        mesh.norms[o + 1] = ny;
+        mesh.norms[o + 2] = nz;
+    }
+
+    private static void face(Mesh mesh, int a, int b, int c) {
+        int o = mesh.num_faces++ * 3;
+        mesh.faces[o] = a;
+        mesh.faces[o + 1] = b;
+        mesh.faces[o + 2] = c;
+    }
+
+    /* two triangles for every square of a grid of (rows + 1) x (cols + 1)
+     * vertices from base on, where the rows run down and the columns
+     * around so that their cross product points out; with poles, the
+     * first and last rows are single points and get one triangle each
+     */
+    private static void grid(Mesh mesh, int base, int rows, int cols, boolean poles) {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                int a = base + i * (cols + 1) + j, b = a + cols + 1;
+                if (!poles || i > 0) {
+                    face(mesh, a, b, a + 1);
+                }
+                if (!poles || i < rows - 1) {
+                    face(mesh, b, b + 1, a + 1);
+                }
+            }
+        }
+    }
+
+    private static Mesh finish(Mesh mesh) {
+        mesh.computeBounds();
+        MeshOptimizer.optimize(mesh);
+        mesh.toBuffers();
+        return mesh;
+    }
+}
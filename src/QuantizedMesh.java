@@ -0,0 +1,260 @@
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import com.jogamp.opengl.GL2;
+
+/* This defines the QuantizedMesh class, a compact copy of a Mesh.
+ *
+ * Positions are 16-bit integers relative to the bounding box:
+ * position = offset + scale * q. One scale is used for all three axes so
+ * that the decoding can be left to the modelview matrix (a translate and
+ * a uniform scale) without bending the normals.
+ * Normals are octahedral encoded in two 8- or 16-bit components.
+ * Indices are 16 bits wide when the mesh has at most 65536 vertices.
+ *
+ * The fixed-function pipeline cannot decode octahedral normals, so
+ * glNormals() expands them to three signed bytes or shorts, which GL
+ * maps back to [-1, 1] itself.
+ */
+class QuantizedMesh {
+
+    public enum NormalBits {
+        OCT8(1, 127, GL2.GL_BYTE),
+        OCT16(2, 32767, GL2.GL_SHORT);
+
+        final int bytes;		// per component
+        final int max;			// the code of 1.0
+        final int glType;
+
+        NormalBits(int bytes, int max, int glType) {
+            this.bytes = bytes;
+            this.max = max;
+            this.glType = glType;
+        }
+    }
+
+    public final int num_verts;
+    public final int num_faces;
+    public final NormalBits normalBits;
+    public final float[] offset = new float[3];
+    public float scale;
+
+    public final ShortBuffer positions;	// x, y, z of every vertex
+    public final ByteBuffer normals;		// octahedral u, v of every vertex
+    public final Buffer indices;			// a ShortBuffer of unsigned shorts, or an IntBuffer
+
+    private QuantizedMesh(int num_verts, int num_faces, NormalBits normalBits) {
+        this.num_verts = num_verts;
+        this.num_faces = num_faces;
+        this.normalBits = normalBits;
+        positions = direct(num_verts * 3 * 2).asShortBuffer();
+        normals = direct(num_verts * 2 * normalBits.bytes);
+        indices = num_verts <= 1 << 16 ? direct(num_faces * 3 * 2).asShortBuffer()
+                : direct(num_faces * 3 * 4).asIntBuffer();
+    }
+
+    public static QuantizedMesh encode(Mesh mesh, NormalBits normalBits) {
+        QuantizedMesh q = new QuantizedMesh(mesh.num_verts, mesh.num_faces, normalBits);
+        float extent = 0;
+        for (int i = 0; i < 3; i++) {
+            q.offset[i] = (mesh.min[i] + mesh.max[i]) / 2;
+            extent = Math.max(extent, (mesh.max[i] - mesh.min[i]) / 2);
+        }
+        q.scale = extent > 0 ? extent / Short.MAX_VALUE : 1;
+
+        FloatBuffer v = mesh.vertexBuffer, n = mesh.normalBuffer;
+        float[] uv = new float[2];
+        for (int i = 0; i < mesh.num_verts; i++) {
+            for (int k = 0; k < 3; k++) {
+                float c = Math.round((v.get(i * 3 + k) - q.offset[k]) / q.scale);
+                q.positions.put(i * 3 + k, (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, c)));
+            }
+            encodeNormal(n.get(i * 3), n.get(i * 3 + 1), n.get(i * 3 + 2), normalBits.max, uv);
+            for (int k = 0; k < 2; k++) {
+                if (normalBits == NormalBits.OCT8) {
+                    q.normals.put(i * 2 + k, (byte) uv[k]);
+                } else {
+                    q.normals.putShort((i * 2 + k) * 2, (short) uv[k]);
+                }
+            }
+        }
+
+        IntBuffer f = mesh.faceBuffer;
+        for (int i = 0; i < mesh.num_faces * 3; i++) {
+            if (q.indices instanceof ShortBuffer) {
+                ((ShortBuffer) q.indices).put(i, (short) f.get(i));
+            } else {
+                ((IntBuffer) q.indices).put(i, f.get(i));
+            }
+        }
+        return q;
+    }
+
+    /* writes the octahedral codes of the unit vector (x, y, z) to uv,
+     * choosing the rounding that decodes closest to it
+     */
+    static void encodeNormal(float x, float y, float z, int max, float[] uv) {
+        float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (l1 == 0) {
+            uv[0] = uv[1] = 0;
+            return;
+        }
+        float u = x / l1, v = y / l1;
+        if (z < 0) {
+            float fu = (1 - Math.abs(v)) * sign(u);
+            float fv = (1 - Math.abs(u)) * sign(v);
+            u = fu;
+            v = fv;
+        }
+        float bestDot = -2;
+        float[] d = new float[3];
+        for (int k = 0; k < 4; k++) {
+            float cu = (float) ((k & 1) == 0 ? Math.floor(u * max) : Math.ceil(u * max));
+            float cv = (float) ((k & 2) == 0 ? Math.floor(v * max) : Math.ceil(v * max));
+            decodeNormal(cu, cv, max, d, 0);
+            float dot = d[0] * x + d[1] * y + d[2] * z;
+            if (dot > bestDot) {
+                bestDot = dot;
+                uv[0] = cu;
+                uv[1] = cv;
+            }
+        }
+    }
+
+    /* writes the unit vector of the codes (cu, cv) to out[o .. o + 2] */
+    static void decodeNormal(float cu, float cv, int max, float[] out, int o) {
+        float u = Math.max(-1, cu / max), v = Math.max(-1, cv / max);
+        float x = u, y = v, z = 1 - Math.abs(u) - Math.abs(v);
+        if (z < 0) {
+            x = (1 - Math.abs(v)) * sign(u);
+            y = (1 - Math.abs(u)) * sign(v);
+        }
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        out[o] = x / len;
+        out[o + 1] = y / len;
+        out[o + 2] = z / len;
+    }
+
+    /* like Math.signum, but 1 for zero so the folded half is not lost */
+    private static float sign(float x) {
+        return x >= 0 ? 1 : -1;
+    }
+
+    private float normalCode(int i) {
+        return normalBits == NormalBits.OCT8 ? normals.get(i) : normals.getShort(i * 2);
+    }
+
+    /* expands the mesh back to floats */
+    public Mesh decode() {
+        Mesh mesh = new Mesh(new float[num_verts * 3], num_verts, new int[num_faces * 3], num_faces);
+        mesh.norms = new float[num_verts * 3];
+        for (int i = 0; i < num_verts; i++) {
+            for (int k = 0; k < 3; k++) {
+                mesh.verts[i * 3 + k] = offset[k] + scale * positions.get(i * 3 + k);
+            }
+            decodeNormal(normalCode(i * 2), normalCode(i * 2 + 1), normalBits.max, mesh.norms, i * 3);
+        }
+        for (int i = 0; i < num_faces * 3; i++) {
+            mesh.faces[i] = index(i);
+        }
+        mesh.computeBounds();
+        mesh.toBuffers();
+        return mesh;
+    }
+
+    public int index(int i) {
+        if (indices instanceof ShortBuffer) {
+            return ((ShortBuffer) indices).get(i) & 0xffff;
+        }
+        return ((IntBuffer) indices).get(i);
+    }
+
+    /* the normals as three components of the type glNormalType() */
+    public Buffer glNormals() {
+        float[] d = new float[3];
+        ByteBuffer out = direct(num_verts * 3 * normalBits.bytes);
+        for (int i = 0; i < num_verts; i++) {
+            decodeNormal(normalCode(i * 2), normalCode(i * 2 + 1), normalBits.max, d, 0);
+            for (int k = 0; k < 3; k++) {
+                int c = Math.round(d[k] * normalBits.max);
+                if (normalBits == NormalBits.OCT8) {
+                    out.put(i * 3 + k, (byte) c);
+                } else {
+                    out.putShort((i * 3 + k) * 2, (short) c);
+                }
+            }
+        }
+        return normalBits == NormalBits.OCT8 ? out : out.asShortBuffer();
+    }
+
+    public int glNormalType() {
+        return normalBits.glType;
+    }
+
+    public int glIndexType() {
+        return indices instanceof ShortBuffer ? GL2.GL_UNSIGNED_SHORT : GL2.GL_UNSIGNED_INT;
+    }
+
+    public int indexBytes() {
+        return indices instanceof ShortBuffer ? 2 : 4;
+    }
+
+    /* bytes of positions, octahedral normals and indices */
+    public long sizeInBytes() {
+        return (long) num_verts * (6 + 2 * normalBits.bytes) + (long) num_faces * 3 * indexBytes();
+    }
+
+    /* bytes of what is uploaded, with the normals expanded for GL */
+    public long gpuSizeInBytes() {
+        return (long) num_verts * (6 + 3 * normalBits.bytes) + (long) num_faces * 3 * indexBytes();
+    }
+
+    /* the largest difference of a position coordinate from mesh */
+    public float maxPositionError(Mesh mesh) {
+        float error = 0;
+        for (int i = 0; i < num_verts * 3; i++) {
+            float p = offset[i % 3] + scale * positions.get(i);
+            error = Math.max(error, Math.abs(p - mesh.vertexBuffer.get(i)));
+        }
+        return error;
+    }
+
+    /* the largest angle in degrees between a normal of mesh and the one GL gets */
+    public float maxNormalError(Mesh mesh) {
+        Buffer gl = glNormals();
+        double error = 0;
+        for (int i = 0; i < num_verts; i++) {
+            double x, y, z;
+            if (gl instanceof ShortBuffer) {
+                ShortBuffer s = (ShortBuffer) gl;
+                x = s.get(i * 3);
+                y = s.get(i * 3 + 1);
+                z = s.get(i * 3 + 2);
+            } else {
+                ByteBuffer b = (ByteBuffer) gl;
+                x = b.get(i * 3);
+                y = b.get(i * 3 + 1);
+                z = b.get(i * 3 + 2);
+            }
+            float nx = mesh.normalBuffer.get(i * 3), ny = mesh.normalBuffer.get(i * 3 + 1), nz = mesh.normalBuffer.get(i * 3 + 2);
+            double len = Math.sqrt(x * x + y * y + z * z) * Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len > 0) {
+                error = Math.max(error, Math.acos(Math.min(1, (x * nx + y * ny + z * nz) / len)));
+            }
+        }
+        return (float) Math.toDegrees(error);
+    }
+
+    public String report(Mesh mesh) {
+        return String.format("%d -> %d bytes on the host, %d on the GPU, max position error %.2g, max normal error %.2f degrees",
+                mesh.sizeInBytes(), sizeInBytes(), gpuSizeInBytes(), maxPositionError(mesh), maxNormalError(mesh));
+    }
+
+    private static ByteBuffer direct(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* This defines the QuantizedMeshCheck class, a round trip of every
+ * bundled model through QuantizedMesh:
+ *
+ *     java QuantizedMeshCheck [file.obj ...]
+ *
+ * For every .obj file (by default all of them in the working directory)
+ * and both normal layouts it encodes the mesh, decodes it again and
+ * checks that the indices are the same, that no position moved by more
+ * than one quantization step, and that no normal turned by more than
+ * the layout allows, both as decoded and as GL gets it from glNormals().
+ * It prints the report() of every encoding and exits with status 1 if
+ * any check failed.
+ */
+class QuantizedMeshCheck {
+
+    /* the largest normal error in degrees, by QuantizedMesh.NormalBits ordinal */
+    static final float[] MAX_NORMAL_ERROR = {1.0f, 0.05f};
+
+    public static void main(String[] args) {
+        ArrayList<String> files = new ArrayList<String>(Arrays.asList(args));
+        if (files.isEmpty()) {
+            File[] objs = new File(".").listFiles((dir, name) -> name.endsWith(".obj"));
+            if (objs != null) {
+                Arrays.sort(objs);
+                for (File f : objs) {
+                    files.add(f.getName());
+                }
+            }
+        }
+        int failures = 0, checked = 0;
+        for (String file : files) {
+            Mesh mesh;
+            try {
+                mesh = MeshCache.load(file);
+            } catch (IOException e) {
+                System.out.println("Error reading from file " + file + ": " + e.getMessage());
+                failures++;
+                continue;
+            }
+            for (QuantizedMesh.NormalBits bits : QuantizedMesh.NormalBits.values()) {
+                failures += check(file, mesh, bits);
+                checked++;
+            }
+        }
+        System.out.println(failures == 0 ? "OK, " + checked + " round trips" : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /* returns the number of failed checks */
+    private static int check(String file, Mesh mesh, QuantizedMesh.NormalBits bits) {
+        QuantizedMesh q = QuantizedMesh.encode(mesh, bits);
+        Mesh decoded = q.decode();
+        System.out.println(file + " " + bits + ": " + q.report(mesh) + ".");
+        int failures = 0;
+
+        for (int i = 0; i < mesh.num_faces * 3; i++) {
+            if (decoded.faces[i] != mesh.faceBuffer.get(i)) {
+                System.out.println("FAILED: index " + i + " is " + decoded.faces[i] + " instead of " + mesh.faceBuffer.get(i) + ".");
+                failures++;
+                break;
+            }
+        }
+
+        float position = 0;
+        double normal = 0;
+        for (int i = 0; i < mesh.num_verts; i++) {
+            double dot = 0, a = 0, b = 0;
+            for (int k = 0; k < 3; k++) {
+                position = Math.max(position, Math.abs(decoded.verts[i * 3 + k] - mesh.vertexBuffer.get(i * 3 + k)));
+                float n = mesh.normalBuffer.get(i * 3 + k), d = decoded.norms[i * 3 + k];
+                dot += n * d;
+                a += n * n;
+                b += d * d;
+            }
+            if (a > 0 && b > 0) {
+                normal = Math.max(normal, Math.toDegrees(Math.acos(Math.min(1, dot / Math.sqrt(a * b)))));
+            }
+        }
+        if (position > q.scale) {
+            System.out.println(String.format("FAILED: a position moved by %.3g, more than the step %.3g.", position, q.scale));
+            failures++;
+        }
+        float limit = MAX_NORMAL_ERROR[bits.ordinal()];
+        if (normal > limit) {
+            System.out.println(String.format("FAILED: a decoded normal turned by %.3f degrees, more than %.3f.", normal, limit));
+            failures++;
+        }
+        float gl = q.maxNormalError(mesh);
+        if (gl > limit) {
+            System.out.println(String.format("FAILED: a normal GL gets turned by %.3f degrees, more than %.3f.", gl, limit));
+            failures++;
+        }
+        return failures;
+    }
+}
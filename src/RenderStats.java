@@ -0,0 +1,19 @@
+/* This defines the RenderStats class, counters that the renderer
+ * resets at the start of every frame.
+ */
+class RenderStats {
+
+    public int drawn;		// drawables submitted
+    public int culled;		// drawables skipped by frustum culling
+    public int drawCalls;		// glDrawElements and the like
+    public long triangles;		// submitted by those calls
+
+    public void reset() {
+        drawn = culled = drawCalls = 0;
+        triangles = 0;
+    }
+
+    public String toString() {
+        return drawn + " drawn, " + culled + " culled, " + drawCalls + " draw calls, " + triangles + " triangles";
+    }
+}
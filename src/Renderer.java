@@ -0,0 +1,16 @@
+/* This defines the Renderer interface, a backend that draws the frames
+ * the FramePipeline builds. GLRenderer draws with the GL context of a
+ * window or offscreen drawable; SoftwareRenderer draws on the CPU
+ * without any GL at all.
+ */
+interface Renderer {
+
+    /* draws the commands of a frame */
+    void render(CommandList frame);
+
+    /* what drawables hand their triangles to when the renderer is not GL */
+    interface MeshSink {
+        /* count faces of mesh, starting at face first */
+        void mesh(Mesh mesh, int first, int count, Material material);
+    }
+}
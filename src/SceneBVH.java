@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+
+/* This defines the SceneBVH class, a BVH over the drawn nodes of a scene
+ * graph in world space, for picking and other queries.
+ *
+ * Every visible node with bounds is one entry. A query that reaches an
+ * entry carries on in the node's own coordinates, in the MeshBVH of its
+ * drawable, or against its bounding box when it has none. The ray is
+ * taken into the node by the inverse world matrix without normalizing
+ * its direction, so a distance t means the same point in both spaces.
+ *
+ * The tree is a snapshot of the world matrices as of the last update()
+ * of the graph; build a new one when the scene moves. That is cheap,
+ * since the meshes' trees are kept by their drawables.
+ */
+class SceneBVH {
+
+    /* a MeshBVH.Hit in world coordinates, with the node that was hit; face
+     * is -1 when the ray met the bounding box of a node without triangles
+     */
+    public static class Hit extends MeshBVH.Hit {
+        public SceneNode node;
+    }
+
+    public final BVH bvh;
+    private final SceneNode[] nodes;		// per leaf entry, as are the arrays below
+    private final MeshBVH[] meshes;
+    private final float[] boxes;			// world bounds
+    private final float[] world;			// world matrices
+    private final float[] inverse;			// and their inverses
+    private final float[] scale;			// how much the inverse world matrix scales lengths at most
+
+    public SceneBVH(SceneNode root) {
+        ArrayList<SceneNode> found = new ArrayList<SceneNode>();
+        collect(root, found);
+        int n = found.size();
+        float[] world_boxes = new float[n * 6];
+        float[] min = new float[3], max = new float[3];
+        for (int i = 0; i < n; i++) {
+            found.get(i).getWorldBounds(min, max);
+            System.arraycopy(min, 0, world_boxes, i * 6, 3);
+            System.arraycopy(max, 0, world_boxes, i * 6 + 3, 3);
+        }
+        bvh = new BVH(world_boxes, n);
+
+        nodes = new SceneNode[n];
+        meshes = new MeshBVH[n];
+        boxes = new float[n * 6];
+        world = new float[n * 16];
+        inverse = new float[n * 16];
+        scale = new float[n];
+        float[] m = new float[16];
+        for (int i = 0; i < n; i++) {
+            int p = bvh.order[i];
+            SceneNode node = found.get(p);
+            nodes[i] = node;
+            System.arraycopy(world_boxes, p * 6, boxes, i * 6, 6);
+            meshes[i] = node.drawable.getBVH();
+            System.arraycopy(node.getWorld(), 0, world, i * 16, 16);
+            if (Mat4.invert(m, node.getWorld())) {
+                System.arraycopy(m, 0, inverse, i * 16, 16);
+                scale[i] = Mat4.maxScale(m);
+            } else {
+                meshes[i] = null;	// flattened to nothing; only its box can be hit
+            }
+        }
+    }
+
+    private static void collect(SceneNode node, ArrayList<SceneNode> out) {
+        if (!node.visible) {
+            return;
+        }
+        if (node.drawable != null && node.getWorldBounds(new float[3], new float[3])) {
+            out.add(node);
+        }
+        for (SceneNode child : node.getChildren()) {
+            collect(child, out);
+        }
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /* the nearest triangle, or box, that the ray origin + t * dir meets for t in [0, tMax] */
+    public boolean raycast(final float[] origin, final float[] dir, float tMax, final Hit hit) {
+        final float[] o = new float[3], d = new float[3];
+        final MeshBVH.Hit local = new MeshBVH.Hit();
+        final int[] found = {-1};
+        float t = bvh.raycast(origin, dir, tMax, (i, best) -> {
+            MeshBVH mesh = meshes[i];
+            if (mesh == null) {
+                float near = boxDistance(i, origin, dir);
+                if (near < best) {
+                    found[0] = i;
+                    hit.face = -1;
+                    return near;
+                }
+                return best;
+            }
+            transform(inverse, i * 16, origin, o, 1);
+            transform(inverse, i * 16, dir, d, 0);
+            if (mesh.raycast(o, d, best, local)) {
+                found[0] = i;
+                hit.face = local.face;
+                hit.u = local.u;
+                hit.v = local.v;
+                return local.t;
+            }
+            return best;
+        });
+        if (found[0] < 0) {
+            return false;
+        }
+        hit.t = t;
+        hit.node = nodes[found[0]];
+        for (int a = 0; a < 3; a++) {
+            hit.point[a] = origin[a] + t * dir[a];
+        }
+        return true;
+    }
+
+    /* where the ray enters the world box of entry i, or infinity */
+    private float boxDistance(int i, float[] origin, float[] dir) {
+        float near = 0, far = Float.POSITIVE_INFINITY;
+        for (int a = 0; a < 3; a++) {
+            float inv = 1 / dir[a];
+            float t0 = (boxes[i * 6 + a] - origin[a]) * inv, t1 = (boxes[i * 6 + 3 + a] - origin[a]) * inv;
+            near = Math.max(near, Math.min(t0, t1));
+            far = Math.min(far, Math.max(t0, t1));
+        }
+        return near <= far ? near : Float.POSITIVE_INFINITY;
+    }
+
+    /* out = the matrix at m[o] applied to the point (w = 1) or direction (w = 0) v */
+    private static void transform(float[] m, int o, float[] v, float[] out, float w) {
+        for (int r = 0; r < 3; r++) {
+            out[r] = m[o + r] * v[0] + m[o + 4 + r] * v[1] + m[o + 8 + r] * v[2] + m[o + 12 + r] * w;
+        }
+    }
+
+    /* the surface point nearest to p within maxDistance.
+     * Each mesh is searched in its own coordinates, which finds the exact
+     * nearest point when node transforms scale uniformly, as they do in
+     * this scene; under a non-uniform scale it is a close approximation.
+     */
+    public boolean nearest(final float[] p, float maxDistance, final Hit hit) {
+        final float[] local_p = new float[3], q = new float[3];
+        final MeshBVH.Hit local = new MeshBVH.Hit();
+        final int[] found = {-1};
+        float best = bvh.nearest(p, maxDistance * maxDistance, (i, best2) -> {
+            MeshBVH mesh = meshes[i];
+            if (mesh == null) {
+                /* the nearest point of the box */
+                float d = 0;
+                for (int a = 0; a < 3; a++) {
+                    q[a] = Math.max(boxes[i * 6 + a], Math.min(boxes[i * 6 + 3 + a], p[a]));
+                    d += (q[a] - p[a]) * (q[a] - p[a]);
+                }
+                if (d < best2) {
+                    found[0] = i;
+                    hit.face = -1;
+                    System.arraycopy(q, 0, hit.point, 0, 3);
+                    return d;
+                }
+                return best2;
+            }
+            transform(inverse, i * 16, p, local_p, 1);
+            float radius = (float) Math.sqrt(best2) * scale[i];	// everything nearer in the world is within it
+            if (!mesh.nearest(local_p, Float.isInfinite(radius) ? Float.MAX_VALUE : radius * 1.0001f, local)) {
+                return best2;
+            }
+            transform(world, i * 16, local.point, q, 1);
+            float d = 0;
+            for (int a = 0; a < 3; a++) {
+                d += (q[a] - p[a]) * (q[a] - p[a]);
+            }
+            if (d < best2) {
+                found[0] = i;
+                hit.face = local.face;
+                System.arraycopy(q, 0, hit.point, 0, 3);
+                return d;
+            }
+            return best2;
+        });
+        if (found[0] < 0) {
+            return false;
+        }
+        hit.t = (float) Math.sqrt(best);
+        hit.node = nodes[found[0]];
+        return true;
+    }
+
+    /* writes the nodes whose world boxes overlap [min, max] to out and
+     * returns how many there are, which may be more than out holds
+     */
+    public int overlapping(final float[] min, final float[] max, final SceneNode[] out) {
+        final int[] n = {0};
+        bvh.overlapping(min, max, i -> {
+            for (int a = 0; a < 3; a++) {
+                if (boxes[i * 6 + a] > max[a] || boxes[i * 6 + 3 + a] < min[a]) {
+                    return;
+                }
+            }
+            if (n[0] < out.length) {
+                out[n[0]] = nodes[i];
+            }
+            n[0]++;
+        });
+        return n[0];
+    }
+}
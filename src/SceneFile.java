@@ -0,0 +1,498 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/* This defines the SceneFile class, a scene described in a JSON file:
+ *
+ *   "materials":  name -> {"shininess": s, "diffuse": [r, g, b, a], "specular": [r, g, b, a]}
+ *   "models":     name -> "file.obj"
+ *                      or {"sphere": [radius, slices, stacks]}, {"cube": [size]},
+ *                         {"cylinder": [radius, height, slices]}, {"plane": [width, depth, divisions]},
+ *                         {"torus": [major, minor, rings, sides]}, see Primitives
+ *                      or {"batch": model, "material": name, "instances": [[x, y, z], ...]},
+ *                         copies of a model at translations, see MeshBatch; the instances
+ *                         can also be a row {"count": n, "first": [x, y, z], "step": [x, y, z]}
+ *   "animations": name -> {"loop" or "pingPong": [from, to], "rate": r,
+ *                          "start": [position, direction], "easing": "linear", "smooth" or "sine"}
+ *   "nodes":      [{"name": n, "model": m, "material": m, "visible": true,
+ *                   "transform": [steps], "children": [nodes]}]
+ *
+ * Every node but "name" is optional. The steps of a transform are applied
+ * in order, like the Mat4 calls they stand for:
+ *   {"translate": [x, y, z]}, {"scale": s or [x, y, z]}, {"rotate": [angle, x, y, z]}
+ * and a step with "reversed": track only applies while that animation
+ * runs backwards. Wherever a number is expected in a step, a string
+ * names an animation, as in "sun", "-sun" or "0.1*sun", and a rate
+ * given as "speed" or "2*speed" follows the viewer's animation speed.
+ *
+ * Files of models are relative to the scene file. The parts of the
+ * document that describe each entry are kept, so two readings of a file
+ * can be compared entry by entry to find what changed.
+ */
+final class SceneFile {
+
+    /* a number, or factor times the value of an animation */
+    static final class Value {
+        final float constant;
+        final double factor;
+        final String name;		// null for a constant
+
+        Value(float constant) {
+            this.constant = constant;
+            this.factor = 0;
+            this.name = null;
+        }
+
+        Value(double factor, String name) {
+            this.constant = 0;
+            this.factor = factor;
+            this.name = name;
+        }
+
+        float get(Map<String, AnimationTrack> tracks) {
+            return name == null ? constant : (float) (factor * tracks.get(name).get());
+        }
+    }
+
+    /* one step of a transform */
+    static final class Step {
+        enum Kind {
+            TRANSLATE,
+            SCALE,
+            ROTATE
+        }
+
+        final Kind kind;
+        final Value[] args;
+        final String reversed;	// the step applies only while this animation runs backwards, or null
+
+        Step(Kind kind, Value[] args, String reversed) {
+            this.kind = kind;
+            this.args = args;
+            this.reversed = reversed;
+        }
+
+        /* multiplies m by the step and returns it */
+        float[] apply(float[] m, Map<String, AnimationTrack> tracks) {
+            if (reversed != null && tracks.get(reversed).getDirection() > 0) {
+                return m;
+            }
+            switch (kind) {
+                case TRANSLATE:
+                    return Mat4.translate(m, args[0].get(tracks), args[1].get(tracks), args[2].get(tracks));
+                case SCALE:
+                    return Mat4.scale(m, args[0].get(tracks), args[1].get(tracks), args[2].get(tracks));
+                default:
+                    return Mat4.rotate(m, args[0].get(tracks), args[1].get(tracks), args[2].get(tracks), args[3].get(tracks));
+            }
+        }
+    }
+
+    static final class MaterialSpec {
+        final Object json;
+        final float shininess;
+        final float[] diffuse, specular;
+
+        MaterialSpec(Object json, float shininess, float[] diffuse, float[] specular) {
+            this.json = json;
+            this.shininess = shininess;
+            this.diffuse = diffuse;
+            this.specular = specular;
+        }
+
+        Material create() {
+            return new Material(shininess, diffuse, specular);
+        }
+    }
+
+    static final class ModelSpec {
+        final Object json;
+        final String file;			// an .obj file, or null
+        final String shape;			// a primitive, or null
+        final float[] params;
+        final String batch;			// the model a batch copies, or null
+        final String material;		// of a batch
+        final float[][] transforms;	// of the copies of a batch
+
+        ModelSpec(Object json, String file, String shape, float[] params, String batch, String material, float[][] transforms) {
+            this.json = json;
+            this.file = file;
+            this.shape = shape;
+            this.params = params;
+            this.batch = batch;
+            this.material = material;
+            this.transforms = transforms;
+        }
+
+        /* the MeshManager key of a primitive */
+        String key() {
+            return Primitives.key(shape, arguments());
+        }
+
+        Supplier<Mesh> generator() {
+            final float[] p = params;
+            switch (shape) {
+                case "sphere":
+                    return () -> Primitives.sphere(p[0], (int) p[1], (int) p[2]);
+                case "cube":
+                    return () -> Primitives.cube(p[0]);
+                case "cylinder":
+                    return () -> Primitives.cylinder(p[0], p[1], (int) p[2]);
+                case "plane":
+                    return () -> Primitives.plane(p[0], p[1], (int) p[2]);
+                default:
+                    return () -> Primitives.torus(p[0], p[1], (int) p[2], (int) p[3]);
+            }
+        }
+
+        /* the parameters as the generator takes them, sizes as floats and counts as ints */
+        private Object[] arguments() {
+            int sizes = shape.equals("sphere") ? 1 : shape.equals("cube") ? 1 : 2;
+            Object[] args = new Object[params.length];
+            for (int i = 0; i < params.length; i++) {
+                args[i] = i < sizes ? (Object) params[i] : (Object) (int) params[i];
+            }
+            return args;
+        }
+    }
+
+    static final class TrackSpec {
+        final Object json;
+        final AnimationTrack.Mode mode;
+        final double from, to;
+        final double rate;
+        final boolean speed;		// rate is a factor of the animation speed
+        final AnimationTrack.Easing easing;
+        final double start;
+        final int direction;
+
+        TrackSpec(Object json, AnimationTrack.Mode mode, double from, double to, double rate, boolean speed,
+                  AnimationTrack.Easing easing, double start, int direction) {
+            this.json = json;
+            this.mode = mode;
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+            this.speed = speed;
+            this.easing = easing;
+            this.start = start;
+            this.direction = direction;
+        }
+
+        double getRate(double animationSpeed) {
+            return speed ? rate * animationSpeed : rate;
+        }
+
+        AnimationTrack create(String name, double animationSpeed) {
+            return new AnimationTrack(name, mode, from, to, getRate(animationSpeed), easing).start(start, direction);
+        }
+    }
+
+    static final class NodeSpec {
+        final Object json;			// without the children
+        final String name;
+        final String parent;		// null for a child of the scene's root
+        final String model, material;
+        final boolean visible;
+        final Step[] transform;
+
+        NodeSpec(Object json, String name, String parent, String model, String material, boolean visible, Step[] transform) {
+            this.json = json;
+            this.name = name;
+            this.parent = parent;
+            this.model = model;
+            this.material = material;
+            this.visible = visible;
+            this.transform = transform;
+        }
+    }
+
+    static final String[] SHAPES = {"sphere", "cube", "cylinder", "plane", "torus"};
+    static final int[] SHAPE_PARAMS = {3, 1, 3, 3, 4};
+
+    public final File file;
+    public final LinkedHashMap<String, MaterialSpec> materials = new LinkedHashMap<String, MaterialSpec>();
+    public final LinkedHashMap<String, ModelSpec> models = new LinkedHashMap<String, ModelSpec>();
+    public final LinkedHashMap<String, TrackSpec> tracks = new LinkedHashMap<String, TrackSpec>();
+    public final ArrayList<NodeSpec> nodes = new ArrayList<NodeSpec>();	// parents before their children
+
+    private SceneFile(File file) {
+        this.file = file;
+    }
+
+    public static SceneFile read(File file) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        SceneFile scene = new SceneFile(file);
+        scene.parse(Json.parse(text, file.getPath()));
+        return scene;
+    }
+
+    /* the .obj files the models read */
+    public List<File> getModelFiles() {
+        ArrayList<File> files = new ArrayList<File>();
+        for (ModelSpec model : models.values()) {
+            if (model.file != null) {
+                files.add(new File(model.file));
+            }
+        }
+        return files;
+    }
+
+    private void parse(Object document) throws IOException {
+        Map<String, Object> root = object(document, "the scene");
+        for (Map.Entry<String, Object> e : object(root.getOrDefault("materials", new LinkedHashMap<String, Object>()), "materials").entrySet()) {
+            Map<String, Object> m = object(e.getValue(), "material " + e.getKey());
+            materials.put(e.getKey(), new MaterialSpec(m, (float) number(m.get("shininess"), "shininess of " + e.getKey()),
+                    floats(m.get("diffuse"), 4, "diffuse of " + e.getKey()), floats(m.get("specular"), 4, "specular of " + e.getKey())));
+        }
+        for (Map.Entry<String, Object> e : object(root.getOrDefault("animations", new LinkedHashMap<String, Object>()), "animations").entrySet()) {
+            tracks.put(e.getKey(), track(e.getKey(), object(e.getValue(), "animation " + e.getKey())));
+        }
+        for (Map.Entry<String, Object> e : object(root.getOrDefault("models", new LinkedHashMap<String, Object>()), "models").entrySet()) {
+            models.put(e.getKey(), model(e.getKey(), e.getValue()));
+        }
+        for (ModelSpec m : models.values()) {
+            if (m.batch != null && (!models.containsKey(m.batch) || models.get(m.batch).batch != null)) {
+                throw error("a batch copies \"" + m.batch + "\", which is not a model of its own");
+            }
+            if (m.material != null && !materials.containsKey(m.material)) {
+                throw error("unknown material \"" + m.material + "\"");
+            }
+        }
+        HashSet<String> names = new HashSet<String>();
+        for (Object node : list(root.getOrDefault("nodes", new ArrayList<Object>()), "nodes")) {
+            node(node, null, names);
+        }
+    }
+
+    private TrackSpec track(String name, Map<String, Object> t) throws IOException {
+        boolean loop = t.containsKey("loop");
+        List<Object> range = list(loop ? t.get("loop") : t.get("pingPong"), "the \"loop\" or \"pingPong\" range of " + name);
+        if (range.size() != 2) {
+            throw error("the range of " + name + " needs from and to");
+        }
+        Object rate = t.getOrDefault("rate", 1.0);
+        boolean speed = rate instanceof String;
+        double factor = speed ? factor((String) rate, "speed", name) : number(rate, "rate of " + name);
+        double from = number(range.get(0), "range of " + name), to = number(range.get(1), "range of " + name);
+        double start = from;
+        int direction = 1;
+        if (t.containsKey("start")) {
+            List<Object> s = list(t.get("start"), "start of " + name);
+            if (s.isEmpty() || s.size() > 2) {
+                throw error("the start of " + name + " needs a position and maybe a direction");
+            }
+            start = number(s.get(0), "start of " + name);
+            direction = s.size() > 1 && number(s.get(1), "start of " + name) < 0 ? -1 : 1;
+        }
+        AnimationTrack.Easing easing = AnimationTrack.Easing.LINEAR;
+        if (t.containsKey("easing")) {
+            try {
+                easing = AnimationTrack.Easing.valueOf(string(t.get("easing"), "easing of " + name).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw error("unknown easing " + t.get("easing") + " of " + name);
+            }
+        }
+        return new TrackSpec(t, loop ? AnimationTrack.Mode.LOOP : AnimationTrack.Mode.PING_PONG,
+                from, to, factor, speed, easing, start, direction);
+    }
+
+    private ModelSpec model(String name, Object json) throws IOException {
+        if (json instanceof String) {
+            return new ModelSpec(json, resolve((String) json), null, null, null, null, null);
+        }
+        Map<String, Object> m = object(json, "model " + name);
+        if (m.containsKey("file")) {
+            return new ModelSpec(json, resolve(string(m.get("file"), "file of " + name)), null, null, null, null, null);
+        }
+        if (m.containsKey("batch")) {
+            return new ModelSpec(json, null, null, null, string(m.get("batch"), "batch of " + name),
+                    string(m.get("material"), "material of " + name), instances(m.get("instances"), name));
+        }
+        for (int s = 0; s < SHAPES.length; s++) {
+            if (m.containsKey(SHAPES[s])) {
+                float[] params = floats(m.get(SHAPES[s]), SHAPE_PARAMS[s], SHAPES[s] + " of " + name);
+                return new ModelSpec(json, null, SHAPES[s], params, null, null, null);
+            }
+        }
+        throw error("model " + name + " is neither a file, a shape nor a batch");
+    }
+
+    private float[][] instances(Object json, String name) throws IOException {
+        if (json instanceof Map) {
+            Map<String, Object> row = object(json, "instances of " + name);
+            int count = (int) number(row.get("count"), "count of " + name);
+            float[] first = floats(row.get("first"), 3, "first of " + name);
+            float[] step = floats(row.get("step"), 3, "step of " + name);
+            float[][] transforms = new float[Math.max(0, count)][];
+            for (int i = 0; i < transforms.length; i++) {
+                transforms[i] = Mat4.translation((float) (first[0] + (double) i * step[0]),
+                        (float) (first[1] + (double) i * step[1]), (float) (first[2] + (double) i * step[2]));
+            }
+            return transforms;
+        }
+        List<Object> list = list(json, "instances of " + name);
+        float[][] transforms = new float[list.size()][];
+        for (int i = 0; i < transforms.length; i++) {
+            float[] t = floats(list.get(i), 3, "instances of " + name);
+            transforms[i] = Mat4.translation(t[0], t[1], t[2]);
+        }
+        return transforms;
+    }
+
+    private void node(Object json, String parent, HashSet<String> names) throws IOException {
+        Map<String, Object> n = object(json, "a node");
+        String name = string(n.get("name"), "the name of a node");
+        if (!names.add(name)) {
+            throw error("two nodes are named \"" + name + "\"");
+        }
+        String model = n.containsKey("model") ? string(n.get("model"), "model of " + name) : null;
+        String material = n.containsKey("material") ? string(n.get("material"), "material of " + name) : null;
+        if (model != null && !models.containsKey(model)) {
+            throw error("unknown model \"" + model + "\" in node " + name);
+        }
+        if (material != null && !materials.containsKey(material)) {
+            throw error("unknown material \"" + material + "\" in node " + name);
+        }
+        boolean visible = !Boolean.FALSE.equals(n.get("visible"));
+        List<Object> steps = list(n.getOrDefault("transform", new ArrayList<Object>()), "transform of " + name);
+        Step[] transform = new Step[steps.size()];
+        for (int i = 0; i < transform.length; i++) {
+            transform[i] = step(object(steps.get(i), "a step of " + name), name);
+        }
+        LinkedHashMap<String, Object> own = new LinkedHashMap<String, Object>(n);
+        own.remove("children");
+        nodes.add(new NodeSpec(own, name, parent, model, material, visible, transform));
+        for (Object child : list(n.getOrDefault("children", new ArrayList<Object>()), "children of " + name)) {
+            node(child, name, names);
+        }
+    }
+
+    private Step step(Map<String, Object> s, String node) throws IOException {
+        String reversed = null;
+        if (s.containsKey("reversed")) {
+            reversed = string(s.get("reversed"), "reversed in " + node);
+            if (!tracks.containsKey(reversed)) {
+                throw error("unknown animation \"" + reversed + "\" in node " + node);
+            }
+        }
+        if (s.containsKey("translate")) {
+            return new Step(Step.Kind.TRANSLATE, values(s.get("translate"), 3, node), reversed);
+        }
+        if (s.containsKey("rotate")) {
+            return new Step(Step.Kind.ROTATE, values(s.get("rotate"), 4, node), reversed);
+        }
+        if (s.containsKey("scale")) {
+            Object scale = s.get("scale");
+            Value[] args = scale instanceof List ? values(scale, 3, node) : new Value[3];
+            if (!(scale instanceof List)) {
+                args[0] = args[1] = args[2] = value(scale, node);
+            }
+            return new Step(Step.Kind.SCALE, args, reversed);
+        }
+        throw error("a step of " + node + " is not a translate, scale or rotate");
+    }
+
+    private Value[] values(Object json, int n, String node) throws IOException {
+        List<Object> list = list(json, "a step of " + node);
+        if (list.size() != n) {
+            throw error("a step of " + node + " needs " + n + " values");
+        }
+        Value[] values = new Value[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = value(list.get(i), node);
+        }
+        return values;
+    }
+
+    private Value value(Object json, String node) throws IOException {
+        if (!(json instanceof String)) {
+            return new Value((float) number(json, "a step of " + node));
+        }
+        String s = (String) json;
+        String name = s.substring(s.indexOf('*') + 1).trim();
+        if (name.startsWith("-")) {
+            name = name.substring(1).trim();
+        }
+        if (!tracks.containsKey(name)) {
+            throw error("unknown animation \"" + name + "\" in node " + node);
+        }
+        return new Value(factor(s, name, node), name);
+    }
+
+    /* the factor of "name", "-name" or "k*name" */
+    private double factor(String s, String name, String where) throws IOException {
+        int star = s.indexOf('*');
+        String last = s.substring(star + 1).trim();
+        double sign = last.startsWith("-") ? -1 : 1;
+        if (!(sign < 0 ? last.substring(1).trim() : last).equals(name)) {
+            throw error("\"" + s + "\" in " + where + " is not a multiple of " + name);
+        }
+        if (star < 0) {
+            return sign;
+        }
+        try {
+            return sign * Double.parseDouble(s.substring(0, star).trim());
+        } catch (NumberFormatException e) {
+            throw error("bad factor in \"" + s + "\" in " + where);
+        }
+    }
+
+    private String resolve(String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? path : new File(file.getParentFile(), path).getPath();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> object(Object json, String what) throws IOException {
+        if (!(json instanceof Map)) {
+            throw error(what + " should be an object");
+        }
+        return (Map<String, Object>) json;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> list(Object json, String what) throws IOException {
+        if (!(json instanceof List)) {
+            throw error(what + " should be an array");
+        }
+        return (List<Object>) json;
+    }
+
+    private String string(Object json, String what) throws IOException {
+        if (!(json instanceof String)) {
+            throw error(what + " should be a string");
+        }
+        return (String) json;
+    }
+
+    private double number(Object json, String what) throws IOException {
+        if (!(json instanceof Double)) {
+            throw error(what + " should be a number");
+        }
+        return (Double) json;
+    }
+
+    private float[] floats(Object json, int n, String what) throws IOException {
+        List<Object> list = list(json, what);
+        if (list.size() != n) {
+            throw error(what + " should have " + n + " numbers");
+        }
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (float) number(list.get(i), what);
+        }
+        return values;
+    }
+
+    private IOException error(String message) {
+        return new IOException(file.getPath() + ": " + message);
+    }
+}
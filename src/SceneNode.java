@@ -0,0 +1,346 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+import com.jogamp.opengl.GL2;
+
+/* This defines the SceneNode class, one node of a retained scene graph.
+ * A node has a local transform relative to its parent, an optional
+ * drawable with its material, and children. World matrices are cached
+ * and recomputed by update() only for subtrees whose local transforms
+ * changed since the last update, so a static scene costs nothing and an
+ * animated one only pays for the animated branches.
+ * Every node also keeps a world bounding sphere around itself and one
+ * around its whole subtree, so record() can skip a subtree with a single
+ * frustum test.
+ * Nothing here touches GL; record() writes a CommandList that a renderer
+ * replays, so the graph can be built, updated, traversed and culled
+ * without a context.
+ */
+class SceneNode {
+
+    /* something that can be drawn at the current modelview matrix */
+    public interface Drawable {
+        void draw(GL2 gl);
+
+        /* writes the local bounding box, or returns false if it is unknown */
+        default boolean getBounds(float[] min, float[] max) {
+            return false;
+        }
+
+        /* called before draw() with the projected radius of the bounds in
+         * pixels, for drawables that pick a level of detail
+         */
+        default void setDetail(float pixels) {
+        }
+
+        /* the triangles of the drawable for ray casts and other queries,
+         * in the coordinates of getBounds(), or null to use the bounds
+         */
+        default MeshBVH getBVH() {
+            return null;
+        }
+
+        /* hands the triangles to a renderer other than GL, in material
+         * unless the drawable has materials of its own
+         */
+        default void draw(Renderer.MeshSink out, Material material) {
+        }
+    }
+
+    public final String name;
+    public Drawable drawable;
+    public Material material;
+    public boolean visible = true;
+
+    private SceneNode parent;
+    private final ArrayList<SceneNode> children = new ArrayList<SceneNode>();
+
+    private final float[] local = Mat4.identity();
+    private final float[] world = Mat4.identity();
+    private boolean dirty = true;			// local changed since the last update
+    private boolean childDirty = false;		// some descendant is dirty
+
+    /* world bounds; spheres are (x, y, z, radius) with a negative radius for
+     * "nothing to draw" and an infinite one for "bounds unknown"
+     */
+    private final float[] localMin = new float[3], localMax = new float[3];
+    private final float[] worldMin = new float[3], worldMax = new float[3];
+    private final float[] sphere = {0, 0, 0, -1};
+    private final float[] subtree = {0, 0, 0, -1};
+    private boolean hasBounds;
+    private int size = 1;		// nodes in the subtree, as of the last update()
+
+    /* record() hands subtrees with more nodes than this to other threads */
+    static final int PARALLEL_NODES = 256;
+
+    public SceneNode(String name) {
+        this.name = name;
+    }
+
+    public SceneNode(String name, Drawable drawable, Material material) {
+        this.name = name;
+        this.drawable = drawable;
+        this.material = material;
+    }
+
+    public SceneNode add(SceneNode child) {
+        if (child.parent != null) {
+            child.parent.remove(child);
+        }
+        child.parent = this;
+        children.add(child);
+        child.markDirty();
+        return child;
+    }
+
+    public void remove(SceneNode child) {
+        if (children.remove(child)) {
+            child.parent = null;
+            markDirty();
+        }
+    }
+
+    public SceneNode getParent() {
+        return parent;
+    }
+
+    public List<SceneNode> getChildren() {
+        return children;
+    }
+
+    public SceneNode find(String name) {
+        if (this.name.equals(name)) {
+            return this;
+        }
+        for (SceneNode child : children) {
+            SceneNode found = child.find(name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /* replaces the local transform; nothing is invalidated if it is unchanged */
+    public void setLocal(float[] m) {
+        if (!Arrays.equals(local, m)) {
+            System.arraycopy(m, 0, local, 0, 16);
+            markDirty();
+        }
+    }
+
+    public float[] getLocal() {
+        return local;
+    }
+
+    /* the world matrix as of the last update(); do not modify */
+    public float[] getWorld() {
+        return world;
+    }
+
+    /* re-reads the bounds of every drawable in the subtree, e.g. after
+     * meshes finished loading
+     */
+    public void invalidate() {
+        markDirty();
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).invalidate();
+        }
+    }
+
+    /* writes the world bounding box as of the last update(), or returns
+     * false if the node has no bounds
+     */
+    public boolean getWorldBounds(float[] min, float[] max) {
+        if (hasBounds) {
+            System.arraycopy(worldMin, 0, min, 0, 3);
+            System.arraycopy(worldMax, 0, max, 0, 3);
+        }
+        return hasBounds;
+    }
+
+    /* the sphere around the subtree as of the last update(); do not modify */
+    public float[] getSubtreeSphere() {
+        return subtree;
+    }
+
+    private void markDirty() {
+        dirty = true;
+        for (SceneNode p = parent; p != null && !p.childDirty; p = p.parent) {
+            p.childDirty = true;
+        }
+    }
+
+    /* recomputes the world matrices of all dirty subtrees and returns
+     * how many nodes were recomputed
+     */
+    public int update() {
+        if (dirty) {
+            return updateAll(parent == null ? null : parent.world);
+        }
+        int count = 0;
+        if (childDirty) {
+            childDirty = false;
+            for (int i = 0; i < children.size(); i++) {
+                count += children.get(i).update();
+            }
+            updateSubtreeSphere();
+        }
+        return count;
+    }
+
+    private int updateAll(float[] parentWorld) {
+        if (parentWorld == null) {
+            System.arraycopy(local, 0, world, 0, 16);
+        } else {
+            Mat4.multiply(world, parentWorld, local);
+        }
+        dirty = childDirty = false;
+        updateSphere();
+        int count = 1;
+        for (int i = 0; i < children.size(); i++) {
+            count += children.get(i).updateAll(world);
+        }
+        updateSubtreeSphere();
+        return count;
+    }
+
+    private void updateSphere() {
+        hasBounds = drawable != null && drawable.getBounds(localMin, localMax);
+        if (hasBounds) {
+            Mat4.transformBox(world, localMin, localMax, worldMin, worldMax);
+            float dx = localMax[0] - localMin[0], dy = localMax[1] - localMin[1], dz = localMax[2] - localMin[2];
+            Mat4.transformPoint(world, (localMin[0] + localMax[0]) / 2, (localMin[1] + localMax[1]) / 2,
+                    (localMin[2] + localMax[2]) / 2, sphere, 0);
+            sphere[3] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2 * Mat4.maxScale(world);
+        } else {
+            sphere[3] = drawable != null ? Float.POSITIVE_INFINITY : -1;
+        }
+    }
+
+    private void updateSubtreeSphere() {
+        System.arraycopy(sphere, 0, subtree, 0, 4);
+        size = 1;
+        for (int i = 0; i < children.size(); i++) {
+            merge(subtree, children.get(i).subtree);
+            size += children.get(i).size;
+        }
+    }
+
+    /* the number of nodes in the subtree as of the last update(), which
+     * is one more than the largest depth-first index below this node
+     */
+    public int getSubtreeSize() {
+        return size;
+    }
+
+    /* grows sphere a to enclose sphere b */
+    static void merge(float[] a, float[] b) {
+        if (b[3] < 0 || a[3] == Float.POSITIVE_INFINITY) {
+            return;
+        }
+        if (a[3] < 0 || b[3] == Float.POSITIVE_INFINITY) {
+            System.arraycopy(b, 0, a, 0, 4);
+            return;
+        }
+        float dx = b[0] - a[0], dy = b[1] - a[1], dz = b[2] - a[2];
+        float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (d + b[3] <= a[3]) {
+            return;
+        }
+        if (d + a[3] <= b[3]) {
+            System.arraycopy(b, 0, a, 0, 4);
+            return;
+        }
+        float r = (d + a[3] + b[3]) / 2;
+        float t = (r - a[3]) / d;
+        a[0] += dx * t;
+        a[1] += dy * t;
+        a[2] += dz * t;
+        a[3] = r;
+    }
+
+    /* the radius of the bounding sphere on screen, in pixels, or -1 if
+     * the drawable has no bounds
+     */
+    public float getProjectedRadius(float[] view, float pixelScale) {
+        if (!hasBounds) {
+            return -1;
+        }
+        float x = view[0] * sphere[0] + view[4] * sphere[1] + view[8] * sphere[2] + view[12];
+        float y = view[1] * sphere[0] + view[5] * sphere[1] + view[9] * sphere[2] + view[13];
+        float z = view[2] * sphere[0] + view[6] * sphere[1] + view[10] * sphere[2] + view[14];
+        float d = (float) Math.sqrt(x * x + y * y + z * z);
+        return d > sphere[3] ? sphere[3] * pixelScale / d : Float.POSITIVE_INFINITY;
+    }
+
+    /* records the commands of the visible drawables that the frustum
+     * (in world space, null for none) does not cull into out, this
+     * node's at depth-first index index, and returns how many drawables
+     * were culled. Run in a ForkJoinPool, large subtrees are recorded in
+     * parallel; the graph must not change meanwhile.
+     */
+    public int record(Frustum frustum, final CommandList out, int index) {
+        if (!visible) {
+            return 0;
+        }
+        if (frustum != null) {
+            int test = frustum.testSphere(subtree);
+            if (test == Frustum.OUTSIDE) {
+                return countDrawables();
+            }
+            if (test == Frustum.INSIDE) {
+                frustum = null;
+            }
+        }
+        int culled = 0;
+        if (drawable != null) {
+            if (frustum != null && (frustum.testSphere(sphere) == Frustum.OUTSIDE
+                    || hasBounds && frustum.testBox(worldMin, worldMax) == Frustum.OUTSIDE)) {
+                culled++;
+            } else {
+                out.set(index, this);
+            }
+        }
+        index++;
+        if (size <= PARALLEL_NODES || !ForkJoinTask.inForkJoinPool()) {
+            return culled + recordChildren(frustum, out, 0, children.size(), index);
+        }
+        /* one task for every run of children with about PARALLEL_NODES nodes */
+        final Frustum f = frustum;
+        ArrayList<ForkJoinTask<Integer>> tasks = new ArrayList<ForkJoinTask<Integer>>();
+        for (int i = 0; i < children.size(); ) {
+            final int from = i, at = index;
+            int nodes = 0;
+            while (i < children.size() && nodes < PARALLEL_NODES) {
+                nodes += children.get(i++).size;
+            }
+            final int to = i;
+            tasks.add(ForkJoinTask.adapt(() -> recordChildren(f, out, from, to, at)));
+            index += nodes;
+        }
+        for (ForkJoinTask<Integer> task : ForkJoinTask.invokeAll(tasks)) {
+            culled += task.join();
+        }
+        return culled;
+    }
+
+    private int recordChildren(Frustum frustum, CommandList out, int from, int to, int index) {
+        int culled = 0;
+        for (int i = from; i < to; i++) {
+            culled += children.get(i).record(frustum, out, index);
+            index += children.get(i).size;
+        }
+        return culled;
+    }
+
+    private int countDrawables() {
+        int count = visible && drawable != null ? 1 : 0;
+        for (int i = 0; i < children.size(); i++) {
+            count += children.get(i).visible ? children.get(i).countDrawables() : 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/* This defines the SceneWatcher class, which reads a SceneFile again
+ * whenever it, or an .obj file one of its models reads, changes on disk.
+ *
+ * A thread of its own waits on a WatchService for the directories of
+ * those files. Editors write a file in several steps, so after the first
+ * event it waits until none has come for SETTLE_MILLIS, then reads the
+ * scene, if it changed, and hands it to the listener with the model
+ * files that were written. The listener runs on the
+ * watcher's thread; a scene that cannot be read, or that the listener
+ * fails on, is reported and skipped, and the next save is read again.
+ */
+class SceneWatcher {
+
+    static final long SETTLE_MILLIS = 100;
+
+    interface Listener {
+        void changed(SceneFile scene, Set<Path> models);
+    }
+
+    private final File file;
+    private final Listener listener;
+    private final WatchService service;
+    private final HashMap<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+    private final HashSet<Path> files = new HashSet<Path>();	// the scene and its models
+    private SceneFile scene;
+    private Thread thread;
+
+    /* watches file, which was last read as scene, or null if it could not be */
+    public SceneWatcher(File file, SceneFile scene, Listener listener) throws IOException {
+        this.file = file;
+        this.scene = scene;
+        this.listener = listener;
+        service = FileSystems.getDefault().newWatchService();
+        watch();
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "scene-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            System.out.println("Error closing the scene watcher: " + e.getMessage());
+        }
+    }
+
+    /* the absolute path the watcher compares files by */
+    static Path path(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    /* watches the directories of the scene file and of its models */
+    private void watch() throws IOException {
+        files.clear();
+        files.add(path(file));
+        if (scene != null) {
+            for (File model : scene.getModelFiles()) {
+                files.add(path(model));
+            }
+        }
+        for (Path p : files) {
+            Path dir = p.getParent();
+            if (!directories.containsKey(dir) && dir.toFile().isDirectory()) {
+                directories.put(dir, dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                HashSet<Path> touched = new HashSet<Path>();
+                collect(service.take(), touched);
+                for (WatchKey key; (key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null; ) {
+                    collect(key, touched);
+                }
+                reload(touched);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> touched) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+                touched.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+        }
+        key.reset();
+    }
+
+    private void reload(Set<Path> touched) {
+        HashSet<Path> models = new HashSet<Path>();
+        boolean changed = false;
+        for (Path p : touched) {
+            if (p.equals(path(file))) {
+                changed = true;
+            } else if (files.contains(p)) {
+                models.add(p);
+            }
+        }
+        if (!changed && models.isEmpty()) {
+            return;
+        }
+        try {
+            if (changed) {
+                scene = SceneFile.read(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading the scene: " + e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            System.out.println("Error reading the scene " + file + ": " + e);
+            return;
+        }
+        try {
+            watch();
+        } catch (IOException e) {
+            System.out.println("Error watching the scene: " + e.getMessage());
+        }
+        if (scene != null) {
+            try {
+                listener.changed(scene, models);
+            } catch (RuntimeException e) {
+                System.out.println("Error applying the scene " + file + ": " + e);
+            }
+        }
+    }
+}
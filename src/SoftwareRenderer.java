@@ -0,0 +1,693 @@
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/* This defines the SoftwareRenderer class, a Renderer that draws on the
+ * CPU into a color and a depth buffer outside the Java heap, for machines
+ * without a GL driver and for tests.
+ *
+ * It follows what Hierarchical.init() asks of GL: the three directional
+ * lights with GL's lighting equation, lit per vertex on both sides, with
+ * the flat shading, back-face culling and wireframe of the frame, a depth
+ * test and a perspective-correct interpolation of colors.
+ *
+ * A frame runs in three parallel passes:
+ *   vertices  each is transformed to clip space and lit, in batches of
+ *             VERTEX_BATCH
+ *   setup     triangles in batches of FACE_BATCH are clipped at the near
+ *             plane, culled, projected and binned into TILE by TILE pixel
+ *             tiles, each batch into bins of its own
+ *   raster    every tile is cleared and drawn from the bins of all batches
+ *             in batch order, in memory of its own, then copied out
+ * No two tasks write the same memory, and every tile sees its triangles
+ * in submission order, so the image does not depend on the number of
+ * threads.
+ */
+class SoftwareRenderer implements Renderer, Renderer.MeshSink {
+
+    static final int TILE = 64;
+    static final int VERTEX_BATCH = 16384;
+    static final int FACE_BATCH = 16384;
+
+    /* the lights and light model of Hierarchical.init(), in eye space */
+    static final float[][] LIGHT_DIRECTION = {normalize(0, 0, 1), normalize(-.1f, .1f, 0), normalize(.1f, .1f, 0)};
+    static final float[][] LIGHT_HALFWAY = {halfway(LIGHT_DIRECTION[0]), halfway(LIGHT_DIRECTION[1]), halfway(LIGHT_DIRECTION[2])};
+    static final float[][] LIGHT_COLOR = {{1, 1, 1}, {.6f, .05f, .05f}, {.05f, .05f, .6f}};	// diffuse and specular
+    static final float AMBIENT = .2f;		// GL's default material ambient in a white ambient light
+    static final int CLEAR_COLOR = 0x1a1a1a;	// .1 gray
+    static final int OUTLINE_COLOR = 0xffff00;
+
+    static final int V = 10;		// floats per vertex: clip x, y, z, w, front r, g, b, back r, g, b
+    static final int T = 22;		// per triangle: x, y, z, 1 / w and r, g, b of each corner, edge mask
+
+    public final int width, height;
+    private final int tiles_x, tiles_y;
+    private final IntBuffer color;		// 0xRRGGBB, rows from the top
+    private final FloatBuffer depth;
+    private final ForkJoinPool pool;
+
+    /* the draws of the frame */
+    private static class Draw {
+        Mesh mesh;
+        int first, count;
+        Material material;
+        final float[] modelview = new float[16];
+        int lo, hi;			// the vertices the faces use
+        int base;			// where vertex lo is in the arena
+    }
+
+    private final ArrayList<Draw> draws = new ArrayList<Draw>();
+    private int num_draws;
+    private final float[] current = new float[16];		// modelview of the command being gathered
+    private float[] arena = new float[0];		// vertices of all draws
+    private final ArrayList<Bins> bins = new ArrayList<Bins>();
+    private int num_bins;
+    private boolean flatshade, cullface, wireframe;
+
+    /* the counts and times of the last frame */
+    public long triangles, drawn, culled, clipped;
+    public long vertex_nanos, setup_nanos, raster_nanos;
+
+    public SoftwareRenderer(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SoftwareRenderer(int width, int height, int threads) {
+        this.width = width;
+        this.height = height;
+        tiles_x = (width + TILE - 1) / TILE;
+        tiles_y = (height + TILE - 1) / TILE;
+        color = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        depth = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("rasterizer-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    private static float[] normalize(float x, float y, float z) {
+        float s = 1 / (float) Math.sqrt(x * x + y * y + z * z);
+        return new float[]{x * s, y * s, z * s};
+    }
+
+    /* between the light and a viewer at infinity on the z axis */
+    private static float[] halfway(float[] l) {
+        return normalize(l[0], l[1], l[2] + 1);
+    }
+
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /* the last frame, 0xRRGGBB from the top row down; do not modify */
+    public IntBuffer getColor() {
+        return color.duplicate();
+    }
+
+    /* the window depth of the last frame, 0 near to 1 far */
+    public FloatBuffer getDepth() {
+        return depth.duplicate();
+    }
+
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        IntBuffer pixels = getColor();
+        for (int y = 0; y < height; y++) {
+            pixels.position(y * width);
+            pixels.get(row);
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    public void render(CommandList frame) {
+        flatshade = frame.flatshade;
+        cullface = frame.cullface;
+        wireframe = frame.wireframe;
+        triangles = drawn = culled = clipped = 0;
+
+        /* the drawables hand over their meshes through mesh() */
+        num_draws = 0;
+        for (int k = 0; k < frame.size(); k++) {
+            SceneNode.Drawable drawable = frame.getDrawable(k);
+            float pixels = frame.getPixels(k);
+            if (pixels >= 0) {
+                drawable.setDetail(pixels);
+            }
+            frame.getModelview(k, current);
+            drawable.draw(this, frame.getMaterial(k));
+        }
+        int verts = 0;
+        for (int d = 0; d < num_draws; d++) {
+            Draw draw = draws.get(d);
+            draw.base = verts;
+            verts += draw.hi - draw.lo;
+        }
+        if (arena.length < verts * V) {
+            arena = new float[verts * V];
+        }
+
+        long start = System.nanoTime();
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        final float[] projection = frame.projection;
+        for (int d = 0; d < num_draws; d++) {
+            final Draw draw = draws.get(d);
+            for (int v = draw.lo; v < draw.hi; v += VERTEX_BATCH) {
+                final int from = v, to = Math.min(draw.hi, v + VERTEX_BATCH);
+                tasks.add(() -> {
+                    shade(draw, projection, from, to);
+                    return null;
+                });
+            }
+        }
+        run(tasks);
+        long shaded = System.nanoTime();
+
+        num_bins = 0;
+        for (int d = 0; d < num_draws; d++) {
+            final Draw draw = draws.get(d);
+            for (int f = draw.first; f < draw.first + draw.count; f += FACE_BATCH) {
+                if (num_bins == bins.size()) {
+                    bins.add(new Bins(tiles_x * tiles_y));
+                }
+                final Bins b = bins.get(num_bins++);
+                final int from = f, to = Math.min(draw.first + draw.count, f + FACE_BATCH);
+                tasks.add(() -> {
+                    setup(draw, from, to, b);
+                    return null;
+                });
+            }
+        }
+        run(tasks);
+        for (int i = 0; i < num_bins; i++) {
+            Bins b = bins.get(i);
+            triangles += b.triangles;
+            drawn += b.count;
+            culled += b.culled;
+            clipped += b.clipped;
+        }
+        long set = System.nanoTime();
+
+        for (int t = 0; t < tiles_x * tiles_y; t++) {
+            final int tile = t;
+            tasks.add(() -> {
+                raster(tile);
+                return null;
+            });
+        }
+        run(tasks);
+        if (frame.outline) {
+            outline(frame);
+        }
+        long end = System.nanoTime();
+        vertex_nanos = shaded - start;
+        setup_nanos = set - shaded;
+        raster_nanos = end - set;
+    }
+
+    /* collects the draws of the node being gathered */
+    public void mesh(Mesh mesh, int first, int count, Material material) {
+        if (count <= 0 || mesh == null) {
+            return;
+        }
+        mesh.toArrays();
+        if (num_draws == draws.size()) {
+            draws.add(new Draw());
+        }
+        Draw draw = draws.get(num_draws++);
+        draw.mesh = mesh;
+        draw.first = first;
+        draw.count = count;
+        draw.material = material;
+        System.arraycopy(current, 0, draw.modelview, 0, 16);
+        int lo = Integer.MAX_VALUE, hi = 0;
+        int[] faces = mesh.faces;
+        for (int i = first * 3; i < (first + count) * 3; i++) {
+            int v = faces[i];
+            if (v < lo) {
+                lo = v;
+            }
+            if (v > hi) {
+                hi = v;
+            }
+        }
+        draw.lo = lo;
+        draw.hi = hi + 1;
+    }
+
+    /* runs the tasks on the pool and empties the list */
+    private void run(ArrayList<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            tasks.clear();
+        }
+    }
+
+    /* transforms vertices [from, to) of a draw to clip space and lights
+     * them, on the back as well when back faces are drawn
+     */
+    private void shade(Draw draw, float[] projection, int from, int to) {
+        float[] mv = draw.modelview;
+        float[] pmv = Mat4.multiply(new float[16], projection, mv);
+        float[] nm = Mat4.normalMatrix(mv, new float[9]);
+        float[] verts = draw.mesh.verts, norms = draw.mesh.norms;
+        Material m = draw.material;
+        float[] diffuse = m == null ? new float[]{.8f, .8f, .8f} : m.getDiffuse();	// GL's defaults
+        float[] specular = m == null ? new float[]{0, 0, 0} : m.getSpecular();
+        float shininess = m == null ? 0 : m.getShininess();
+        boolean back = !cullface;
+        for (int v = from; v < to; v++) {
+            float x = verts[v * 3], y = verts[v * 3 + 1], z = verts[v * 3 + 2];
+            int o = (draw.base + v - draw.lo) * V;
+            arena[o] = pmv[0] * x + pmv[4] * y + pmv[8] * z + pmv[12];
+            arena[o + 1] = pmv[1] * x + pmv[5] * y + pmv[9] * z + pmv[13];
+            arena[o + 2] = pmv[2] * x + pmv[6] * y + pmv[10] * z + pmv[14];
+            arena[o + 3] = pmv[3] * x + pmv[7] * y + pmv[11] * z + pmv[15];
+            float a = norms[v * 3], b = norms[v * 3 + 1], c = norms[v * 3 + 2];
+            float nx = nm[0] * a + nm[3] * b + nm[6] * c;
+            float ny = nm[1] * a + nm[4] * b + nm[7] * c;
+            float nz = nm[2] * a + nm[5] * b + nm[8] * c;
+            float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            float s = len == 0 ? 0 : 1 / len;
+            nx *= s;
+            ny *= s;
+            nz *= s;
+            light(nx, ny, nz, diffuse, specular, shininess, arena, o + 4);
+            if (back) {
+                light(-nx, -ny, -nz, diffuse, specular, shininess, arena, o + 7);
+            }
+        }
+    }
+
+    /* the color GL's fixed-function lighting gives a unit eye-space normal */
+    private static void light(float nx, float ny, float nz, float[] diffuse, float[] specular, float shininess,
+            float[] out, int o) {
+        float r = AMBIENT, g = AMBIENT, b = AMBIENT;
+        for (int l = 0; l < 3; l++) {
+            float[] dir = LIGHT_DIRECTION[l];
+            float ndl = nx * dir[0] + ny * dir[1] + nz * dir[2];
+            if (ndl <= 0) {
+                continue;
+            }
+            float[] c = LIGHT_COLOR[l];
+            r += ndl * c[0] * diffuse[0];
+            g += ndl * c[1] * diffuse[1];
+            b += ndl * c[2] * diffuse[2];
+            float[] h = LIGHT_HALFWAY[l];
+            float ndh = nx * h[0] + ny * h[1] + nz * h[2];
+            if (ndh > 0) {
+                float f = shininess == 0 ? 1 : (float) Math.pow(ndh, shininess);
+                r += f * c[0] * specular[0];
+                g += f * c[1] * specular[1];
+                b += f * c[2] * specular[2];
+            }
+        }
+        out[o] = Math.min(r, 1);
+        out[o + 1] = Math.min(g, 1);
+        out[o + 2] = Math.min(b, 1);
+    }
+
+    /* the triangles of one setup task, and the tiles each one touches */
+    private static class Bins {
+        float[] tris = new float[0];
+        int count;
+        int[] pairs = new int[0];		// tile and triangle
+        int num_pairs;
+        final int[] start;				// of every tile's triangles in list
+        int[] list = new int[0];
+        final float[] polygon = new float[4 * V];	// scratch for clipping
+        final float[] clip = new float[4 * V];
+        long triangles, culled, clipped;
+
+        Bins(int tiles) {
+            start = new int[tiles + 1];
+        }
+    }
+
+    private void setup(Draw draw, int from, int to, Bins b) {
+        b.count = b.num_pairs = 0;
+        b.triangles = to - from;
+        b.culled = b.clipped = 0;
+        int[] faces = draw.mesh.faces;
+        for (int f = from; f < to; f++) {
+            int n = 3;
+            boolean inside = true;
+            for (int c = 0; c < 3; c++) {
+                int o = (draw.base + faces[f * 3 + c] - draw.lo) * V;
+                System.arraycopy(arena, o, b.polygon, c * V, V);
+                inside &= b.polygon[c * V + 2] >= -b.polygon[c * V + 3];
+            }
+            float[] poly = b.polygon;
+            if (!inside) {
+                n = clipNear(b.polygon, b.clip);
+                poly = b.clip;
+                b.clipped++;
+                if (n < 3) {
+                    b.culled++;
+                    continue;
+                }
+            }
+            /* to window coordinates, rows from the top */
+            for (int c = 0; c < n; c++) {
+                int o = c * V;
+                float iw = 1 / poly[o + 3];
+                poly[o] = (poly[o] * iw * .5f + .5f) * width;
+                poly[o + 1] = (.5f - poly[o + 1] * iw * .5f) * height;
+                poly[o + 2] = poly[o + 2] * iw * .5f + .5f;
+                poly[o + 3] = iw;
+            }
+            /* counterclockwise in GL's window, whose y goes up, is front */
+            float area = (poly[V] - poly[0]) * (poly[2 * V + 1] - poly[1])
+                    - (poly[V + 1] - poly[1]) * (poly[2 * V] - poly[0]);
+            boolean front = area < 0;
+            if (area == 0 || cullface && !front) {
+                b.culled++;
+                continue;
+            }
+            int side = front ? 4 : 7;
+            for (int k = 1; k + 1 < n; k++) {
+                /* a fan; the bits are the edges 01, 12 and 20 that are edges of the polygon */
+                int mask = 2 | (k == 1 ? 1 : 0) | (k + 2 == n ? 4 : 0);
+                emit(b, poly, k * V, side, mask, draw, faces[f * 3 + 2]);
+            }
+        }
+        /* counting sort of the pairs by tile */
+        int[] start = b.start;
+        Arrays.fill(start, 0);
+        for (int i = 0; i < b.num_pairs; i++) {
+            start[b.pairs[i * 2] + 1]++;
+        }
+        for (int t = 1; t < start.length; t++) {
+            start[t] += start[t - 1];
+        }
+        if (b.list.length < b.num_pairs) {
+            b.list = new int[b.pairs.length / 2];
+        }
+        for (int i = 0; i < b.num_pairs; i++) {
+            b.list[start[b.pairs[i * 2]]++] = b.pairs[i * 2 + 1];
+        }
+        /* each start[t] has moved on to where tile t + 1 starts */
+        for (int t = start.length - 1; t > 0; t--) {
+            start[t] = start[t - 1];
+        }
+        start[0] = 0;
+    }
+
+    /* clips a triangle of three clip-space vertices against the near plane
+     * z = -w into out and returns its number of corners, up to four
+     */
+    private static int clipNear(float[] in, float[] out) {
+        int n = 0;
+        for (int c = 0; c < 3; c++) {
+            int p = c * V, q = (c + 1) % 3 * V;
+            float dp = in[p + 2] + in[p + 3], dq = in[q + 2] + in[q + 3];
+            if (dp >= 0) {
+                System.arraycopy(in, p, out, n++ * V, V);
+            }
+            if (dp >= 0 != dq >= 0) {
+                float t = dp / (dp - dq);
+                for (int i = 0; i < V; i++) {
+                    out[n * V + i] = in[p + i] + t * (in[q + i] - in[p + i]);
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /* stores the triangle of polygon corners 0, k and k + 1, at offset
+     * k in poly, and bins it; flat shading takes the color of vertex
+     * provoking, the triangle's last, even if clipping moved it
+     */
+    private void emit(Bins b, float[] poly, int k, int side, int mask, Draw draw, int provoking) {
+        if (b.tris.length < (b.count + 1) * T) {
+            b.tris = Arrays.copyOf(b.tris, Math.max(T * 256, b.tris.length * 2));
+        }
+        int o = b.count * T;
+        int flat = (draw.base + provoking - draw.lo) * V + side;
+        float minx = Float.POSITIVE_INFINITY, miny = minx, maxx = Float.NEGATIVE_INFINITY, maxy = maxx;
+        for (int c = 0; c < 3; c++) {
+            int p = c == 0 ? 0 : c == 1 ? k : k + V;
+            int q = o + c * 7;
+            b.tris[q] = poly[p];
+            b.tris[q + 1] = poly[p + 1];
+            b.tris[q + 2] = poly[p + 2];
+            b.tris[q + 3] = poly[p + 3];
+            float[] rgb = flatshade ? arena : poly;
+            int r = flatshade ? flat : p + side;
+            b.tris[q + 4] = rgb[r];
+            b.tris[q + 5] = rgb[r + 1];
+            b.tris[q + 6] = rgb[r + 2];
+            minx = Math.min(minx, poly[p]);
+            maxx = Math.max(maxx, poly[p]);
+            miny = Math.min(miny, poly[p + 1]);
+            maxy = Math.max(maxy, poly[p + 1]);
+        }
+        b.tris[o + 21] = mask;
+        int x0 = Math.max(0, (int) Math.floor(minx)), x1 = Math.min(width - 1, (int) Math.floor(maxx));
+        int y0 = Math.max(0, (int) Math.floor(miny)), y1 = Math.min(height - 1, (int) Math.floor(maxy));
+        if (x0 > x1 || y0 > y1) {
+            b.culled++;		// off the screen
+            return;
+        }
+        int tri = b.count++;
+        for (int ty = y0 / TILE; ty <= y1 / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= x1 / TILE; tx++) {
+                if (b.pairs.length < (b.num_pairs + 1) * 2) {
+                    b.pairs = Arrays.copyOf(b.pairs, Math.max(512, b.pairs.length * 2));
+                }
+                b.pairs[b.num_pairs * 2] = ty * tiles_x + tx;
+                b.pairs[b.num_pairs * 2 + 1] = tri;
+                b.num_pairs++;
+            }
+        }
+    }
+
+    /* memory of one tile, for each thread */
+    private final ThreadLocal<int[]> tile_color = ThreadLocal.withInitial(() -> new int[TILE * TILE]);
+    private final ThreadLocal<float[]> tile_depth = ThreadLocal.withInitial(() -> new float[TILE * TILE]);
+
+    private void raster(int tile) {
+        int x0 = tile % tiles_x * TILE, y0 = tile / tiles_x * TILE;
+        int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+        int[] pixels = tile_color.get();
+        float[] z = tile_depth.get();
+        Arrays.fill(pixels, CLEAR_COLOR);
+        Arrays.fill(z, 1f);
+        for (int i = 0; i < num_bins; i++) {
+            Bins b = bins.get(i);
+            for (int k = b.start[tile]; k < b.start[tile + 1]; k++) {
+                int o = b.list[k] * T;
+                if (wireframe) {
+                    int mask = (int) b.tris[o + 21];
+                    for (int e = 0; e < 3; e++) {
+                        if ((mask & 1 << e) != 0) {
+                            line(b.tris, o + e * 7, o + (e + 1) % 3 * 7, x0, y0, w, h, pixels, z);
+                        }
+                    }
+                } else {
+                    fill(b.tris, o, x0, y0, w, h, pixels, z);
+                }
+            }
+        }
+        IntBuffer out = color.duplicate();
+        FloatBuffer out_depth = depth.duplicate();
+        for (int y = 0; y < h; y++) {
+            out.position((y0 + y) * width + x0);
+            out.put(pixels, y * TILE, w);
+            out_depth.position((y0 + y) * width + x0);
+            out_depth.put(z, y * TILE, w);
+        }
+    }
+
+    /* draws the part of triangle t[o] in the tile at (x0, y0), testing and
+     * writing depth, with colors interpolated in eye space
+     */
+    private static void fill(float[] t, int o, int x0, int y0, int w, int h, int[] pixels, float[] depth) {
+        int a = o, b = o + 7, c = o + 14;
+        float area = (t[b] - t[a]) * (t[c + 1] - t[a + 1]) - (t[b + 1] - t[a + 1]) * (t[c] - t[a]);
+        if (area < 0) {
+            b = o + 14;
+            c = o + 7;
+            area = -area;
+        }
+        float ax = t[a], ay = t[a + 1], bx = t[b], by = t[b + 1], cx = t[c], cy = t[c + 1];
+        int minx = Math.max(x0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+        int maxx = Math.min(x0 + w - 1, (int) Math.floor(Math.max(ax, Math.max(bx, cx))));
+        int miny = Math.max(y0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+        int maxy = Math.min(y0 + h - 1, (int) Math.floor(Math.max(ay, Math.max(by, cy))));
+        if (minx > maxx || miny > maxy) {
+            return;
+        }
+        float inv = 1 / area;
+        float za = t[a + 2], zb = t[b + 2], zc = t[c + 2];
+        float qa = t[a + 3], qb = t[b + 3], qc = t[c + 3];	// 1 / w
+        float ra = t[a + 4] * qa, rb = t[b + 4] * qb, rc = t[c + 4] * qc;
+        float ga = t[a + 5] * qa, gb = t[b + 5] * qb, gc = t[c + 5] * qc;
+        float ba = t[a + 6] * qa, bb = t[b + 6] * qb, bc = t[c + 6] * qc;
+
+        /* edge functions at the first pixel center, and their steps */
+        float px = minx + .5f, py = miny + .5f;
+        float w0_row = (bx - px) * (cy - py) - (by - py) * (cx - px);
+        float w1_row = (cx - px) * (ay - py) - (cy - py) * (ax - px);
+        float w2_row = (ax - px) * (by - py) - (ay - py) * (bx - px);
+        float w0_dx = by - cy, w0_dy = cx - bx;
+        float w1_dx = cy - ay, w1_dy = ax - cx;
+        float w2_dx = ay - by, w2_dy = bx - ax;
+        for (int y = miny; y <= maxy; y++) {
+            float w0 = w0_row, w1 = w1_row, w2 = w2_row;
+            int row = (y - y0) * TILE - x0;
+            for (int x = minx; x <= maxx; x++) {
+                if (w0 >= 0 && w1 >= 0 && w2 >= 0) {
+                    float l0 = w0 * inv, l1 = w1 * inv, l2 = w2 * inv;
+                    float z = l0 * za + l1 * zb + l2 * zc;
+                    if (z < depth[row + x]) {
+                        depth[row + x] = z;
+                        float s = 1 / (l0 * qa + l1 * qb + l2 * qc);
+                        pixels[row + x] = rgb((l0 * ra + l1 * rb + l2 * rc) * s,
+                                (l0 * ga + l1 * gb + l2 * gc) * s, (l0 * ba + l1 * bb + l2 * bc) * s);
+                    }
+                }
+                w0 += w0_dx;
+                w1 += w1_dx;
+                w2 += w2_dx;
+            }
+            w0_row += w0_dy;
+            w1_row += w1_dy;
+            w2_row += w2_dy;
+        }
+    }
+
+    /* draws the part of the line between corners p and q of t in the tile
+     * at (x0, y0), one pixel per step along its longer axis
+     */
+    private static void line(float[] t, int p, int q, int x0, int y0, int w, int h, int[] pixels, float[] depth) {
+        float ax = t[p], ay = t[p + 1], dx = t[q] - ax, dy = t[q + 1] - ay;
+        int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dy))));
+        /* only the steps that can fall in the tile */
+        float lo = 0, hi = 1;
+        if (dx != 0) {
+            float t0 = (x0 - ax) / dx, t1 = (x0 + w - ax) / dx;
+            lo = Math.max(lo, Math.min(t0, t1));
+            hi = Math.min(hi, Math.max(t0, t1));
+        }
+        if (dy != 0) {
+            float t0 = (y0 - ay) / dy, t1 = (y0 + h - ay) / dy;
+            lo = Math.max(lo, Math.min(t0, t1));
+            hi = Math.min(hi, Math.max(t0, t1));
+        }
+        if (lo > hi) {
+            return;
+        }
+        int first = Math.max(0, (int) Math.floor(lo * steps) - 1), last = Math.min(steps, (int) Math.ceil(hi * steps) + 1);
+        for (int i = first; i <= last; i++) {
+            float f = (float) i / steps;
+            int x = (int) Math.floor(ax + f * dx), y = (int) Math.floor(ay + f * dy);
+            if (x < x0 || x >= x0 + w || y < y0 || y >= y0 + h) {
+                continue;
+            }
+            int at = (y - y0) * TILE + x - x0;
+            float z = t[p + 2] + f * (t[q + 2] - t[p + 2]);
+            if (z < depth[at]) {
+                depth[at] = z;
+                pixels[at] = rgb(t[p + 4] + f * (t[q + 4] - t[p + 4]), t[p + 5] + f * (t[q + 5] - t[p + 5]),
+                        t[p + 6] + f * (t[q + 6] - t[p + 6]));
+            }
+        }
+    }
+
+    private static int rgb(float r, float g, float b) {
+        return (int) (r * 255 + .5f) << 16 | (int) (g * 255 + .5f) << 8 | (int) (b * 255 + .5f);
+    }
+
+    /* draws the edges of the frame's outline box in lines over the finished image */
+    private void outline(CommandList frame) {
+        float[] pv = Mat4.multiply(new float[16], frame.projection, frame.view);
+        float[] min = frame.outline_min, max = frame.outline_max;
+        float[] ends = new float[2 * V];
+        float[] corner = new float[3];
+        int[] pixels = new int[width * height];
+        float[] z = new float[width * height];
+        color.duplicate().get(pixels);
+        depth.duplicate().get(z);
+        for (int a = 0; a < 3; a++) {
+            /* the four edges along axis a */
+            int b = (a + 1) % 3, c = (a + 2) % 3;
+            for (int k = 0; k < 4; k++) {
+                corner[b] = (k & 1) == 0 ? min[b] : max[b];
+                corner[c] = (k & 2) == 0 ? min[c] : max[c];
+                for (int e = 0; e < 2; e++) {
+                    corner[a] = e == 0 ? min[a] : max[a];
+                    int o = e * V;
+                    for (int r = 0; r < 4; r++) {
+                        ends[o + r] = pv[r] * corner[0] + pv[4 + r] * corner[1] + pv[8 + r] * corner[2] + pv[12 + r];
+                    }
+                    ends[o + 4] = ends[o + 5] = 1;
+                    ends[o + 6] = 0;
+                }
+                /* clip at the near plane */
+                float dp = ends[2] + ends[3], dq = ends[V + 2] + ends[V + 3];
+                if (dp < 0 && dq < 0) {
+                    continue;
+                }
+                if (dp < 0 || dq < 0) {
+                    int out = dp < 0 ? 0 : V;
+                    float s = dp / (dp - dq);
+                    for (int i = 0; i < 4; i++) {
+                        ends[out + i] = ends[i] + s * (ends[V + i] - ends[i]);
+                    }
+                }
+                for (int e = 0; e < 2; e++) {
+                    int o = e * V;
+                    float iw = 1 / ends[o + 3];
+                    ends[o] = (ends[o] * iw * .5f + .5f) * width;
+                    ends[o + 1] = (.5f - ends[o + 1] * iw * .5f) * height;
+                    ends[o + 2] = ends[o + 2] * iw * .5f + .5f;
+                }
+                lineFull(ends, pixels, z);
+            }
+        }
+        color.duplicate().put(pixels);
+        depth.duplicate().put(z);
+    }
+
+    /* a line between the two corners in ends, over the whole image */
+    private void lineFull(float[] ends, int[] pixels, float[] depth) {
+        float ax = ends[0], ay = ends[1], dx = ends[V] - ax, dy = ends[V + 1] - ay;
+        int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dy))));
+        if (steps > 4 * (width + height)) {
+            return;		// nearly at the eye; the clip has not made it short
+        }
+        for (int i = 0; i <= steps; i++) {
+            float f = (float) i / steps;
+            int x = (int) Math.floor(ax + f * dx), y = (int) Math.floor(ay + f * dy);
+            if (x < 0 || x >= width || y < 0 || y >= height) {
+                continue;
+            }
+            float z = ends[2] + f * (ends[V + 2] - ends[2]);
+            if (z < depth[y * width + x]) {
+                depth[y * width + x] = z;
+                pixels[y * width + x] = OUTLINE_COLOR;
+            }
+        }
+    }
+}